@@ -0,0 +1,298 @@
+package net.nuke24.jcr36;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.base64.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * JMH benchmarks for SimplerCommandRunner's hot paths.
+ * In the same package so that package-private bits (e.g. Piper) can be measured directly.
+ *
+ * Build with 'mvn -B package' in bench/ and run with
+ * 'java -jar target/benchmarks.jar -rf json -rff <file>'
+ * (or 'make bench' at the top level) to get results that can be compared between versions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimplerCommandRunnerBenchmarks {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	static final Object[] IO_NULL = new Object[] { null, null, null };
+	static final File PWD = new File(".").getAbsoluteFile();
+	static final Map<String,String> ENV_W_ALIASES = SimplerCommandRunner.withAliases(
+		Collections.<String,String>emptyMap(), SimplerCommandRunner.STANDARD_ALIASES);
+
+	static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+		@Override public void write(int b) { }
+		@Override public void write(byte[] buf, int off, int len) { }
+	};
+
+	static File makeTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if( !dir.delete() || !dir.mkdirs() ) throw new IOException("Failed to make temporary directory "+dir);
+		return dir;
+	}
+
+	static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if( children != null ) for( File c : children ) deleteRecursively(c);
+		f.delete();
+	}
+
+	static void writeFile(File f, byte[] data) throws IOException {
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+	}
+
+	//// Command parsing and dealiasing
+
+	static final String[] DOCMD_ARGS = new String[] {
+		"--cd=..", "FOO=bar", "--stdout=/dev/null", "jcr:docmd", "BAR=baz", "--timeout=5s", "jcr:print", "-n", "hello"
+	};
+	static final String[] EXIT_ARGS = new String[] { "FOO=bar", "jcr:exit", "0" };
+
+	/** Option parsing, variable assignment, and dealiasing, through a nested jcr:docmd */
+	@Benchmark public SimplerCommandRunner.JCRAction parseAndBind() {
+		return SimplerCommandRunner.JCRCommand.parse(DOCMD_ARGS, 0).bind(PWD, ENV_W_ALIASES, IO_NULL);
+	}
+
+	/** All of doJcrDoCmd, for a command that does nothing */
+	@Benchmark public int doJcrDoCmd() {
+		return SimplerCommandRunner.doJcrDoCmd(EXIT_ARGS, 0, PWD, ENV_W_ALIASES, IO_NULL);
+	}
+
+	/** One name that's an alias, and one that isn't */
+	@Benchmark public void dealiasCommand(Blackhole bh) {
+		bh.consume(SimplerCommandRunner.dealiasCommand("jcr:print", ENV_W_ALIASES));
+		bh.consume(SimplerCommandRunner.dealiasCommand("ls", ENV_W_ALIASES));
+	}
+
+	//// PATH resolution
+
+	/** A PATH of dirCount directories of filesPerDir files each, the program being looked for in the last one */
+	@State(Scope.Benchmark)
+	public static class PathTree {
+		@Param({"4", "32"}) public int dirCount;
+		@Param({"16", "512"}) public int filesPerDir;
+		@Param({"false", "true"}) public boolean indexFile;
+
+		File root;
+		Map<String,String> env;
+
+		@Setup(Level.Trial) public void setUp() throws IOException {
+			root = makeTempDir("jcr36-bench-path");
+			StringBuilder path = new StringBuilder();
+			for( int d = 0; d < dirCount; ++d ) {
+				File dir = new File(root, "bin"+d);
+				dir.mkdirs();
+				for( int f = 0; f < filesPerDir; ++f ) {
+					new File(dir, "program-"+d+"-"+f).createNewFile();
+				}
+				if( d == dirCount - 1 ) new File(dir, "target-program").createNewFile();
+				// Listings of recently-modified directories aren't trusted
+				dir.setLastModified(System.currentTimeMillis() - 60000);
+				if( d > 0 ) path.append(File.pathSeparator);
+				path.append(dir.getPath());
+			}
+			env = new HashMap<String,String>(ENV_W_ALIASES);
+			env.put("PATH", path.toString());
+			if( indexFile ) env.put(SimplerCommandRunner.PATH_INDEX_FILE_VAR, new File(root, "path-index.txt").getPath());
+		}
+
+		@TearDown(Level.Trial) public void tearDown() {
+			deleteRecursively(root);
+		}
+	}
+
+	@Benchmark public List<String> resolvePrograms(PathTree tree) {
+		return SimplerCommandRunner.resolvePrograms("target-program", tree.env, null);
+	}
+
+	//// URL encoding
+
+	static final String URL_ENCODED_PATH = "/home/user/My%20Documents/%E2%98%83%20snowman/report%20(2024).txt";
+	static final byte[] URL_DECODED_PATH = SimplerCommandRunner.urlDecode(URL_ENCODED_PATH);
+
+	@Benchmark public byte[] urlDecode() {
+		return SimplerCommandRunner.urlDecode(URL_ENCODED_PATH);
+	}
+
+	@Benchmark public String urlEncodePath() {
+		return SimplerCommandRunner.urlEncodePath(URL_DECODED_PATH);
+	}
+
+	//// Base64
+
+	@State(Scope.Thread)
+	public static class Base64Payload {
+		@Param({"16", "1024", "65536", "1048576"}) public int size;
+
+		byte[] raw;
+		byte[] encoded;
+		byte[] encodeBuffer;
+		byte[] decodeBuffer;
+
+		@Setup(Level.Trial) public void setUp() {
+			raw = new byte[size];
+			new Random(size).nextBytes(raw);
+			encoded = Base64.encode(raw);
+			encodeBuffer = new byte[(int)Base64.encodedLength(size, 0)];
+			decodeBuffer = new byte[Base64.maxDecodedLength(encoded.length)];
+		}
+	}
+
+	@Benchmark public int base64Encode(Base64Payload p) {
+		return Base64.encode(p.raw, 0, p.raw.length, p.encodeBuffer, 0, 0);
+	}
+
+	@Benchmark public int base64Decode(Base64Payload p) {
+		return Base64.decode(p.encoded, 0, p.encoded.length, p.decodeBuffer, 0, 0);
+	}
+
+	//// URI resolution
+
+	/** The same content, available by each kind of name that getInputStream understands */
+	@State(Scope.Thread)
+	public static class UriSource {
+		@Param({"path", "file", "data", "data-base64", "env", "sha1", "http-cached"}) public String scheme;
+
+		static final int SIZE = 4096;
+
+		File dir;
+		HttpServer server;
+		Map<String,String> env;
+		String name;
+		final byte[] buffer = new byte[8192];
+
+		@Setup(Level.Trial) public void setUp() throws IOException, NoSuchAlgorithmException {
+			StringBuilder text = new StringBuilder();
+			while( text.length() < SIZE ) text.append("Hello, world!\n");
+			final byte[] content = text.substring(0, SIZE).getBytes(UTF8);
+
+			dir = makeTempDir("jcr36-bench-uri");
+			env = new HashMap<String,String>(ENV_W_ALIASES);
+			File file = new File(dir, "content.txt");
+			writeFile(file, content);
+
+			if( "path".equals(scheme) ) {
+				name = "content.txt";
+			} else if( "file".equals(scheme) ) {
+				name = file.toURI().toString();
+			} else if( "data".equals(scheme) ) {
+				name = "data:text/plain,"+SimplerCommandRunner.urlEncodePath(content);
+			} else if( "data-base64".equals(scheme) ) {
+				name = "data:text/plain;base64,"+new String(Base64.encode(content), UTF8);
+			} else if( "env".equals(scheme) ) {
+				env.put("BENCH_CONTENT", new String(content, UTF8));
+				name = "x-jcr36-env:BENCH_CONTENT";
+			} else if( "sha1".equals(scheme) ) {
+				String sha1 = SimplerCommandRunner.base32Encode(MessageDigest.getInstance("SHA-1").digest(content));
+				File blobDir = new File(dir, "repo/data/bench/"+sha1.substring(0, 2));
+				blobDir.mkdirs();
+				writeFile(new File(blobDir, sha1), content);
+				env.put(SimplerCommandRunner.BLOB_REPOSITORIES_VAR, new File(dir, "repo").getPath());
+				name = "urn:sha1:"+sha1;
+			} else if( "http-cached".equals(scheme) ) {
+				server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+				server.createContext("/", new HttpHandler() {
+					@Override public void handle(HttpExchange ex) throws IOException {
+						ex.getResponseHeaders().set("Cache-Control", "max-age=86400");
+						ex.sendResponseHeaders(200, content.length);
+						ex.getResponseBody().write(content);
+						ex.close();
+					}
+				});
+				server.start();
+				env.put(SimplerCommandRunner.HTTP_CACHE_DIR_VAR, new File(dir, "http-cache").getPath());
+				name = "http://127.0.0.1:"+server.getAddress().getPort()+"/content.txt";
+				// So that what's measured is reading from the cache
+				readAll(this);
+			} else {
+				throw new IllegalArgumentException("Unknown scheme: "+scheme);
+			}
+		}
+
+		@TearDown(Level.Trial) public void tearDown() {
+			if( server != null ) server.stop(0);
+			deleteRecursively(dir);
+		}
+	}
+
+	static long readAll(UriSource s) throws IOException {
+		InputStream is = SimplerCommandRunner.getInputStream(s.name, s.dir, s.env);
+		try {
+			long total = 0;
+			int z;
+			while( (z = is.read(s.buffer)) > 0 ) total += z;
+			return total;
+		} finally {
+			is.close();
+		}
+	}
+
+	/** Open and read 4kB via each kind of name */
+	@Benchmark public long getInputStream(UriSource s) throws IOException {
+		return readAll(s);
+	}
+
+	//// Piping
+
+	@State(Scope.Thread)
+	public static class PiperPayload {
+		@Param({"65536", "16777216"}) public int size;
+
+		byte[] data;
+
+		@Setup(Level.Trial) public void setUp() {
+			data = new byte[size];
+			new Random(size).nextBytes(data);
+		}
+	}
+
+	/** Copy size bytes between streams on a pump thread, and wait for it to finish */
+	@Benchmark public long piper(PiperPayload p) throws InterruptedException {
+		SimplerCommandRunner.Piper piper = SimplerCommandRunner.Piper.start(new ByteArrayInputStream(p.data), true, NULL_OUTPUT_STREAM, false);
+		piper.join();
+		return piper.getByteCount();
+	}
+}
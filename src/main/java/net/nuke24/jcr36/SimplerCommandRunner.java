@@ -1,28 +1,101 @@
 package net.nuke24.jcr36;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.ProcessBuilder.Redirect;
 import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 import java.util.Properties;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.codec.base64.Base64;
+import org.apache.commons.codec.base64.Base64InputStream;
 
 public class SimplerCommandRunner {
 	// Version number was bumped to 36.1.x for 'simpler' (single-class) branch
@@ -45,10 +118,19 @@ public class SimplerCommandRunner {
 	public static final String CMD_PRINTENV   = "http://ns.nuke24.net/JavaCommandRunner36/Action/PrintEnv";
 	public static final String CMD_EXIT  = "http://ns.nuke24.net/JavaCommandRunner36/Action/Exit";
 	public static final String CMD_PRINT = "http://ns.nuke24.net/JavaCommandRunner36/Action/Print";
+	public static final String CMD_BATCHARGS = "http://ns.nuke24.net/JavaCommandRunner36/Action/BatchArgs";
 	public static final String CMD_CAT   = "http://ns.nuke24.net/JavaCommandRunner36/Action/Cat";
 	public static final String CMD_FINDEXE = "http://ns.nuke24.net/JavaCommandRunner36/Action/FindExe";
 	public static final String CMD_RUNSYSPROC = "http://ns.nuke24.net/JavaCommandRunner36/Action/RunSysProc";
 	public static final String CMD_UNTIL = "http://ns.nuke24.net/JavaCommandRunner36/Action/Until";
+	public static final String CMD_HASH  = "http://ns.nuke24.net/JavaCommandRunner36/Action/Hash";
+	public static final String CMD_JAVAMAIN = "http://ns.nuke24.net/JavaCommandRunner36/Action/JavaMain";
+	public static final String CMD_FOREACH = "http://ns.nuke24.net/JavaCommandRunner36/Action/ForEach";
+	public static final String CMD_PARALLEL = "http://ns.nuke24.net/JavaCommandRunner36/Action/Parallel";
+	public static final String CMD_PIPE  = "http://ns.nuke24.net/JavaCommandRunner36/Action/Pipe";
+	public static final String CMD_SCRIPT = "http://ns.nuke24.net/JavaCommandRunner36/Action/Script";
+	public static final String CMD_SERVE = "http://ns.nuke24.net/JavaCommandRunner36/Action/Serve";
+	public static final String CMD_CLIENT = "http://ns.nuke24.net/JavaCommandRunner36/Action/Client";
 	
 	static final Charset UTF8 = Charset.forName("UTF-8");
 	
@@ -75,7 +157,7 @@ public class SimplerCommandRunner {
 	static char hexEncodeDigit(int value) {
 		if( value < 0 || value > 15 ) throw new IllegalArgumentException("Value out of range for single-digit hex encoding: "+value);
 		if( value < 10 ) return (char)('0' + value);
-		return (char)('a' + value);
+		return (char)('a' + value - 10);
 	}
 	
 	public static byte[] urlDecode(String s) {
@@ -112,7 +194,7 @@ public class SimplerCommandRunner {
 				escapeMe = false;
 				break;
 			default:
-				escapeMe = !((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '1' && c <= '9'));
+				escapeMe = !((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'));
 			}
 			if( escapeMe ) {
 				encoded.append('%').append(hexEncodeDigit((c >> 4)&0xF)).append(hexEncodeDigit(c & 0xF));
@@ -175,8 +257,8 @@ public class SimplerCommandRunner {
 	// recognized as NOT being URIs.
 	static final Pattern URI_MATCHER = Pattern.compile("^([a-z][a-z0-9+.-]+):(.*)", Pattern.CASE_INSENSITIVE);
 	static final Pattern WIN_PATH_MATCHER = Pattern.compile("^([a-z]):(.*)", Pattern.CASE_INSENSITIVE);
+	static final Pattern SLASH_WIN_PATH_MATCHER = Pattern.compile("^/[a-z]:/.*", Pattern.CASE_INSENSITIVE);
 	static final Pattern BITPRINT_URN_PATTERN = Pattern.compile("^urn:bitprint:([A-Z2-7]{32})\\.([A-Z2-7]{39})");
-	static final Pattern DATA_URI_PATTERN = Pattern.compile("^data:([^,;]*)(;base64)?,(.*)"); // TODO: support the rest of it!
 	static final Pattern ENV_URI_PATTERN = Pattern.compile("^x-jcr36-env:(.*)");
 	static final Pattern FILE_URI_MATCHER = Pattern.compile("file:(.*)", Pattern.CASE_INSENSITIVE);
 	// Resolves to the absolute path of the file named by the rest of the URI.
@@ -208,9 +290,15 @@ public class SimplerCommandRunner {
 	
 	public static List<String> resolveUri(String uri, File pwd, Map<String,String> env) {
 		Matcher m;
-		if( (m = BITPRINT_URN_PATTERN.matcher(uri)).matches() ) {
-			m.group(1);
-			throw new RuntimeException("Hash URN resolution not yet supported");
+		String sha1;
+		if( (sha1 = hashUrnSha1(uri)) != null ) {
+			File blob = findBlob(sha1, env);
+			if( blob == null ) return Collections.emptyList();
+			String path = resolveFilePath(pwd, blob.getAbsolutePath(), true);
+			return Collections.singletonList("file:"+urlEncodePath(path.getBytes(UTF8)));
+		} else if( isDataUri(uri) ) {
+			// Checked up-front so the (potentially huge) payload isn't run through regexes
+			return Collections.singletonList(uri);
 		} else if( (m = FILE_URI_MATCHER.matcher(uri)).matches() ) {
 			// Still need to resolve it, in case it's a relative path
 			String path = resolveFilePath(pwd, new String(urlDecode(m.group(1)), UTF8), true);
@@ -223,50 +311,912 @@ public class SimplerCommandRunner {
 		}
 	}
 	
-	static byte[] base64Decode(byte[] input) {
-		return Base64.decode(input);
+	/**
+	 * Translate the part of a file: URI after the "file:"
+	 * (as generated by resolveUri) to a File.
+	 */
+	static File fileUriPathToFile(String encodedPath) {
+		String path = new String(urlDecode(encodedPath), UTF8);
+		// "///C:/foo" or "///foo" -> "C:/foo" or "/foo"; UNC paths ("//host/share") are left as-is
+		if( path.startsWith("///") ) path = path.substring(2);
+		if( SLASH_WIN_PATH_MATCHER.matcher(path).matches() ) path = path.substring(1);
+		return new File(path);
+	}
+	
+	//// data: URIs
+	
+	static boolean isDataUri(String uri) {
+		return uri.regionMatches(true, 0, "data:", 0, 5);
+	}
+	
+	/**
+	 * The header of a data: URI (RFC 2397), scanned by hand
+	 * so that the payload, which may be huge, is never copied
+	 * or run through a regex.  Use {@link #openStream()}
+	 * to decode the payload lazily.
+	 */
+	static class DataUri {
+		public final String uri;
+		/** Media type, e.g. "text/plain"; "" if not specified */
+		public final String mediaType;
+		/** Parameters such as "charset", with values percent-decoded */
+		public final Map<String,String> parameters;
+		public final boolean isBase64;
+		/** Index of the first character of the payload */
+		public final int dataOffset;
+		
+		DataUri(String uri, String mediaType, Map<String,String> parameters, boolean isBase64, int dataOffset) {
+			this.uri = uri;
+			this.mediaType = mediaType;
+			this.parameters = parameters;
+			this.isBase64 = isBase64;
+			this.dataOffset = dataOffset;
+		}
+		
+		public static DataUri parse(String uri) {
+			if( !isDataUri(uri) ) throw new IllegalArgumentException("Not a data: URI: "+quote(uri));
+			int comma = uri.indexOf(',', 5);
+			if( comma == -1 ) throw new IllegalArgumentException("data: URI lacks a comma");
+			String mediaType = null;
+			Map<String,String> parameters = new LinkedHashMap<String,String>();
+			boolean isBase64 = false;
+			for( int start = 5; start <= comma; ) {
+				int end = uri.indexOf(';', start);
+				if( end == -1 || end > comma ) end = comma;
+				String segment = uri.substring(start, end);
+				if( mediaType == null ) {
+					mediaType = new String(urlDecode(segment), UTF8);
+				} else if( isBase64 ) {
+					throw new IllegalArgumentException("';base64' must come last in data: URI header");
+				} else if( "base64".equalsIgnoreCase(segment) ) {
+					isBase64 = true;
+				} else {
+					int eq = segment.indexOf('=');
+					if( eq < 1 ) throw new IllegalArgumentException("Malformed data: URI parameter: "+quote(segment));
+					parameters.put(
+						segment.substring(0, eq).toLowerCase(Locale.ROOT),
+						new String(urlDecode(segment.substring(eq+1)), UTF8));
+				}
+				start = end + 1;
+			}
+			return new DataUri(uri, mediaType, Collections.unmodifiableMap(parameters), isBase64, comma + 1);
+		}
+		
+		public InputStream openStream() {
+			InputStream in = new PercentDecodingInputStream(uri, dataOffset, uri.length());
+			return isBase64 ? new Base64InputStream(in, Base64.IGNORE_WHITESPACE) : in;
+		}
+	}
+	
+	/**
+	 * Percent-decodes a range of a string as it is read,
+	 * UTF-8-encoding any non-ASCII characters, same as urlDecode.
+	 */
+	static class PercentDecodingInputStream extends InputStream {
+		protected final String str;
+		protected int pos;
+		protected final int end;
+		// UTF-8 bytes of a non-ASCII character not yet returned
+		protected final byte[] pending = new byte[4];
+		protected int pendingPos = 0, pendingEnd = 0;
+		
+		public PercentDecodingInputStream(String str, int begin, int end) {
+			this.str = str;
+			this.pos = begin;
+			this.end = end;
+		}
+		
+		@Override public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+		}
+		
+		@Override public int read(byte[] buf, int off, int len) throws IOException {
+			if( len == 0 ) return 0;
+			int o = off, oEnd = off + len;
+			while( o < oEnd ) {
+				if( pendingPos < pendingEnd ) {
+					buf[o++] = pending[pendingPos++];
+					continue;
+				}
+				if( pos >= end ) break;
+				char c = str.charAt(pos);
+				if( c == '%' ) {
+					if( pos + 3 > end ) throw new IOException("Truncated percent sequence at index "+pos+" of data: URI");
+					try {
+						buf[o++] = (byte)((hexDecodeDigit(str.charAt(pos+1)) << 4) | hexDecodeDigit(str.charAt(pos+2)));
+					} catch( IllegalArgumentException e ) {
+						throw new IOException(e.getMessage()+" at index "+pos+" of data: URI", e);
+					}
+					pos += 3;
+				} else if( c < 0x80 ) {
+					buf[o++] = (byte)c;
+					++pos;
+				} else {
+					int cp = str.codePointAt(pos);
+					pos += Character.charCount(cp);
+					if( cp >= 0xD800 && cp <= 0xDFFF ) cp = '?'; // Unpaired surrogate, as String#getBytes would do
+					pendingPos = 0;
+					pendingEnd = 0;
+					if( cp < 0x80 ) {
+						pending[pendingEnd++] = (byte)cp;
+					} else if( cp < 0x800 ) {
+						pending[pendingEnd++] = (byte)(0xC0 | (cp >> 6));
+						pending[pendingEnd++] = (byte)(0x80 | (cp & 0x3F));
+					} else if( cp < 0x10000 ) {
+						pending[pendingEnd++] = (byte)(0xE0 | (cp >> 12));
+						pending[pendingEnd++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+						pending[pendingEnd++] = (byte)(0x80 | (cp & 0x3F));
+					} else {
+						pending[pendingEnd++] = (byte)(0xF0 | (cp >> 18));
+						pending[pendingEnd++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+						pending[pendingEnd++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+						pending[pendingEnd++] = (byte)(0x80 | (cp & 0x3F));
+					}
+				}
+			}
+			return o == off ? -1 : o - off;
+		}
+		
+		@Override public int available() {
+			return pendingEnd - pendingPos + (end - pos) / 3;
+		}
+	}
+	
+	//// Content-addressed blob repositories
+	
+	/** Path-separator-separated list of blob repository directories */
+	public static final String BLOB_REPOSITORIES_VAR = "JCR36_BLOB_REPOSITORIES";
+	/** Set to "true" to have blobs' hashes checked as they are read */
+	public static final String BLOB_VERIFY_VAR = "JCR36_BLOB_VERIFY";
+	static final Pattern SHA1_URN_PATTERN = Pattern.compile("^urn:sha1:([A-Z2-7]{32})$");
+	
+	static final char[] BASE32_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+	
+	/** RFC 4648 base32, without padding, as used in SHA-1 and bitprint URNs */
+	public static String base32Encode(byte[] data) {
+		StringBuilder sb = new StringBuilder((data.length * 8 + 4) / 5);
+		int buffer = 0, bits = 0;
+		for( byte b : data ) {
+			buffer = (buffer << 8) | (b & 0xFF);
+			bits += 8;
+			while( bits >= 5 ) {
+				bits -= 5;
+				sb.append(BASE32_ALPHABET[(buffer >> bits) & 0x1F]);
+			}
+		}
+		if( bits > 0 ) sb.append(BASE32_ALPHABET[(buffer << (5 - bits)) & 0x1F]);
+		return sb.toString();
+	}
+	
+	/** @return the base32 SHA-1 from a urn:sha1: or urn:bitprint: URN, or null if it's neither */
+	static String hashUrnSha1(String uri) {
+		Matcher m;
+		if( (m = BITPRINT_URN_PATTERN.matcher(uri)).matches() ) return m.group(1);
+		if( (m = SHA1_URN_PATTERN.matcher(uri)).matches() ) return m.group(1);
+		return null;
+	}
+	
+	/**
+	 * A directory of blobs named by the base32 SHA-1 of their content,
+	 * laid out like a ContentCouch repository: data/<sector>/<first 2 chars>/<SHA-1>.
+	 * An append-only index file remembers which sector each blob was found in,
+	 * so that a lookup usually takes a single stat rather than one per sector.
+	 */
+	static class BlobRepository {
+		static final String INDEX_FILE_NAME = "jcr36-blob-index.txt";
+		static final String INDEX_FILE_HEADER = "# JCR36 blob index v1";
+		
+		public final File dir;
+		protected final File indexFile;
+		protected final HashMap<String,String> sectors = new HashMap<String,String>();
+		/** How much of the index file has been read */
+		protected long indexLoadedLength = 0;
+		
+		public BlobRepository(File dir) {
+			this.dir = dir;
+			this.indexFile = new File(dir, INDEX_FILE_NAME);
+		}
+		
+		protected File blobFile(String sector, String sha1) {
+			return new File(dir, "data" + File.separator + sector + File.separator + sha1.substring(0,2) + File.separator + sha1);
+		}
+		
+		/** Read any entries appended to the index (by us or anyone else) since last time */
+		protected void loadIndex() {
+			long length = indexFile.length();
+			if( length == indexLoadedLength ) return;
+			if( length < indexLoadedLength ) {
+				// Rewritten; start over
+				sectors.clear();
+				indexLoadedLength = 0;
+			}
+			try {
+				RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+				try {
+					byte[] data = new byte[(int)(length - indexLoadedLength)];
+					raf.seek(indexLoadedLength);
+					raf.readFully(data);
+					// Only consume complete lines, in case someone's mid-append
+					int end = data.length;
+					while( end > 0 && data[end-1] != '\n' ) --end;
+					for( String line : new String(data, 0, end, UTF8).split("\n") ) {
+						int tab = line.indexOf('\t');
+						if( line.startsWith("#") || tab == -1 ) continue;
+						sectors.put(line.substring(0, tab), line.substring(tab+1));
+					}
+					indexLoadedLength += end;
+				} finally {
+					raf.close();
+				}
+			} catch( IOException e ) {
+				// A broken index is no worse than no index
+			}
+		}
+		
+		protected void addToIndex(String sha1, String sector) {
+			sectors.put(sha1, sector);
+			try {
+				boolean isNew = !indexFile.exists();
+				// Appended in a single write so that concurrent appenders don't interleave
+				FileOutputStream fos = new FileOutputStream(indexFile, true);
+				try {
+					fos.write(((isNew ? INDEX_FILE_HEADER+"\n" : "") + sha1 + "\t" + sector + "\n").getBytes(UTF8));
+				} finally {
+					fos.close();
+				}
+			} catch( IOException e ) {
+				// Maybe the repository is read-only; we'll just have to search next time
+			}
+		}
+		
+		/** @return the file containing the blob with the given base32 SHA-1, or null if not found */
+		public synchronized File find(String sha1) {
+			loadIndex();
+			String sector = sectors.get(sha1);
+			if( sector != null ) {
+				File file = blobFile(sector, sha1);
+				if( file.isFile() ) return file;
+			}
+			String[] sectorNames = new File(dir, "data").list();
+			if( sectorNames == null ) return null;
+			Arrays.sort(sectorNames);
+			for( String sectorName : sectorNames ) {
+				File file = blobFile(sectorName, sha1);
+				if( file.isFile() ) {
+					addToIndex(sha1, sectorName);
+					return file;
+				}
+			}
+			return null;
+		}
+	}
+	
+	static final ConcurrentHashMap<String,BlobRepository> BLOB_REPOSITORIES = new ConcurrentHashMap<String,BlobRepository>();
+	
+	static BlobRepository getBlobRepository(String dir) {
+		BlobRepository repo = BLOB_REPOSITORIES.get(dir);
+		if( repo == null ) {
+			BLOB_REPOSITORIES.putIfAbsent(dir, new BlobRepository(new File(dir)));
+			repo = BLOB_REPOSITORIES.get(dir);
+		}
+		return repo;
+	}
+	
+	/** @return the file containing the blob with the given base32 SHA-1, or null if not found */
+	static File findBlob(String sha1, Map<String,String> env) {
+		String reposStr = env.get(BLOB_REPOSITORIES_VAR);
+		if( reposStr == null ) return null;
+		for( String dir : splitPathList(reposStr, false) ) {
+			if( dir.length() == 0 ) continue;
+			File file = getBlobRepository(dir).find(sha1);
+			if( file != null ) return file;
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads a file through memory-mapped windows,
+	 * optionally checking its SHA-1 (and Tiger tree hash, for bitprints)
+	 * once the end is reached.
+	 */
+	static class MappedBlobInputStream extends InputStream {
+		static final long WINDOW_SIZE = 64L * 1024 * 1024;
+		
+		protected final String name;
+		protected final FileChannel channel;
+		protected final long size;
+		protected long windowEnd = 0;
+		protected MappedByteBuffer window;
+		protected final MessageDigest digest;
+		protected final String expectedSha1;
+		protected final TigerTreeDigest tthDigest;
+		protected final String expectedTth;
+		
+		/**
+		 * @param expectedSha1 base32 SHA-1 to verify against, or null to skip verification
+		 */
+		public MappedBlobInputStream(String name, File file, String expectedSha1) throws IOException {
+			this(name, file, expectedSha1, null);
+		}
+		
+		/**
+		 * @param expectedTth base32 Tiger tree hash to also verify against, or null to skip that
+		 */
+		public MappedBlobInputStream(String name, File file, String expectedSha1, String expectedTth) throws IOException {
+			this.name = name;
+			this.channel = new FileInputStream(file).getChannel();
+			this.size = channel.size();
+			this.expectedSha1 = expectedSha1;
+			this.expectedTth = expectedTth;
+			this.tthDigest = expectedTth == null ? null : new TigerTreeDigest();
+			try {
+				this.digest = expectedSha1 == null ? null : MessageDigest.getInstance("SHA-1");
+			} catch( NoSuchAlgorithmException e ) {
+				channel.close();
+				throw new IOException(e);
+			}
+		}
+		
+		/** @return false at end of file */
+		protected boolean ensureWindow() throws IOException {
+			if( window != null && window.hasRemaining() ) return true;
+			if( windowEnd >= size ) {
+				window = null;
+				verify();
+				return false;
+			}
+			long length = Math.min(WINDOW_SIZE, size - windowEnd);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowEnd, length);
+			windowEnd += length;
+			return true;
+		}
+		
+		protected void verify() throws IOException {
+			if( digest == null ) return;
+			String actualSha1 = base32Encode(digest.digest());
+			digest.reset();
+			if( !actualSha1.equals(expectedSha1) ) {
+				throw new IOException("Content of "+name+" doesn't match its hash; its SHA-1 is "+actualSha1);
+			}
+			if( tthDigest == null ) return;
+			String actualTth = base32Encode(tthDigest.digest());
+			if( !actualTth.equals(expectedTth) ) {
+				throw new IOException("Content of "+name+" doesn't match its hash; its Tiger tree hash is "+actualTth);
+			}
+		}
+		
+		@Override public int read() throws IOException {
+			if( !ensureWindow() ) return -1;
+			byte b = window.get();
+			if( digest != null ) digest.update(b);
+			if( tthDigest != null ) tthDigest.update(b);
+			return b & 0xFF;
+		}
+		
+		@Override public int read(byte[] buf, int off, int len) throws IOException {
+			if( len == 0 ) return 0;
+			if( !ensureWindow() ) return -1;
+			int n = Math.min(len, window.remaining());
+			window.get(buf, off, n);
+			if( digest != null ) digest.update(buf, off, n);
+			if( tthDigest != null ) tthDigest.update(buf, off, n);
+			return n;
+		}
+		
+		@Override public int available() {
+			return window == null ? 0 : window.remaining();
+		}
+		
+		@Override public void close() throws IOException {
+			window = null;
+			channel.close();
+		}
+	}
+	
+	static InputStream openBlob(String urn, String sha1, Map<String,String> env) throws IOException {
+		File file = findBlob(sha1, env);
+		if( file == null ) {
+			throw new FileNotFoundException(
+				env.get(BLOB_REPOSITORIES_VAR) == null ?
+					"Can't resolve "+urn+" because "+BLOB_REPOSITORIES_VAR+" isn't set" :
+					urn+" not found in any of "+BLOB_REPOSITORIES_VAR);
+		}
+		if( !"true".equals(env.get(BLOB_VERIFY_VAR)) ) return new MappedBlobInputStream(urn, file, null);
+		Matcher m = BITPRINT_URN_PATTERN.matcher(urn);
+		return new MappedBlobInputStream(urn, file, sha1, m.matches() ? m.group(2) : null);
+	}
+	
+	//// HTTP caching
+	
+	/** Directory in which to cache http: and https: responses; caching is disabled if unset */
+	public static final String HTTP_CACHE_DIR_VAR = "JCR36_HTTP_CACHE_DIR";
+	/** Maximum total size of cached response bodies, e.g. 500M; default 256M */
+	public static final String HTTP_CACHE_MAX_SIZE_VAR = "JCR36_HTTP_CACHE_MAX_SIZE";
+	static final long DEFAULT_HTTP_CACHE_MAX_SIZE = 256L * 1024 * 1024;
+	static final Pattern SIZE_PATTERN = Pattern.compile("^(\\d+)([kKmMgG]?)$");
+	static final Pattern HTTP_URI_PATTERN = Pattern.compile("^https?:.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	static final Pattern MAX_AGE_PATTERN = Pattern.compile("(?:^|,)\\s*max-age\\s*=\\s*\"?(\\d+)", Pattern.CASE_INSENSITIVE);
+	static final Pattern NO_CACHE_PATTERN = Pattern.compile("(?:^|,)\\s*no-(?:cache|store)\\b", Pattern.CASE_INSENSITIVE);
+	static final Pattern NO_STORE_PATTERN = Pattern.compile("(?:^|,)\\s*no-store\\b", Pattern.CASE_INSENSITIVE);
+	
+	/** Parse a byte count, optionally suffixed with K, M, or G (powers of 1024) */
+	static long parseSize(String text) {
+		Matcher m = SIZE_PATTERN.matcher(text.trim());
+		if( !m.matches() ) throw new IllegalArgumentException("Invalid size: "+quote(text));
+		long size = Long.parseLong(m.group(1));
+		String unit = m.group(2);
+		int shift = 0;
+		if( unit.length() > 0 ) {
+			char c = Character.toUpperCase(unit.charAt(0));
+			shift = c == 'K' ? 10 : c == 'M' ? 20 : 30;
+		}
+		if( size > (Long.MAX_VALUE >> shift) ) throw new IllegalArgumentException("Size too large: "+quote(text));
+		return size << shift;
+	}
+	
+	/**
+	 * On-disk cache of HTTP responses, shared between processes.
+	 * Each URL's body and metadata are stored in files named by the SHA-1 of the URL.
+	 * Responses are reused without asking the server until their max-age (or Expires)
+	 * is reached, after which they are revalidated using their ETag or Last-Modified.
+	 * Metadata files' mtimes record when they were last used,
+	 * and least recently used entries are evicted when the bodies' total size exceeds maxSize.
+	 * Concurrent requests for the same URL within this JVM share a single download.
+	 * Responses marked no-store are streamed to whoever asked for them and never written to disk.
+	 */
+	static class HttpCache {
+		public final File dir;
+		public final long maxSize;
+		/** Values are the body File, or, for no-store responses, an InputStream for the requester that started the fetch */
+		protected final ConcurrentHashMap<String,FutureTask<Object>> inFlight = new ConcurrentHashMap<String,FutureTask<Object>>();
+		
+		public HttpCache(File dir, long maxSize) {
+			this.dir = dir;
+			this.maxSize = maxSize;
+		}
+		
+		protected static String key(String url) {
+			try {
+				return base32Encode(MessageDigest.getInstance("SHA-1").digest(url.getBytes(UTF8)));
+			} catch( NoSuchAlgorithmException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		/** @return the (fresh or revalidated) response body */
+		public InputStream open(final String url) throws IOException {
+			FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+				@Override public Object call() throws IOException {
+					return fetch(url);
+				}
+			});
+			FutureTask<Object> existing = inFlight.putIfAbsent(url, task);
+			if( existing != null ) {
+				task = existing;
+			} else {
+				try {
+					task.run();
+				} finally {
+					inFlight.remove(url, task);
+				}
+			}
+			Object result;
+			try {
+				result = task.get();
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for "+url);
+			} catch( ExecutionException e ) {
+				if( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+				throw new IOException("Failed to fetch "+url, e.getCause());
+			}
+			if( result instanceof File ) return new FileInputStream((File)result);
+			// A no-store response can only be read once, so anyone else waiting on it fetches their own
+			return existing == null ? (InputStream)result : new URL(url).openConnection().getInputStream();
+		}
+		
+		protected static Properties loadMeta(File metaFile) {
+			try {
+				InputStream in = new FileInputStream(metaFile);
+				try {
+					Properties meta = new Properties();
+					meta.load(in);
+					return meta;
+				} finally {
+					in.close();
+				}
+			} catch( IOException e ) {
+				return null;
+			}
+		}
+		
+		/** A new, uniquely-named file to write to before renaming into place, even if other processes share the directory */
+		protected File tempFile(String key) throws IOException {
+			return File.createTempFile(key+".", ".tmp", dir);
+		}
+		
+		protected static void replace(File tempFile, File file) throws IOException {
+			if( !tempFile.renameTo(file) ) {
+				// Windows won't rename over an existing file
+				file.delete();
+				if( !tempFile.renameTo(file) ) {
+					tempFile.delete();
+					throw new IOException("Failed to rename "+tempFile+" to "+file);
+				}
+			}
+		}
+		
+		protected void saveMeta(Properties meta, String key, File metaFile) throws IOException {
+			File tempFile = tempFile(key);
+			try {
+				OutputStream os = new FileOutputStream(tempFile);
+				try {
+					meta.store(os, null);
+				} finally {
+					os.close();
+				}
+			} catch( IOException e ) {
+				tempFile.delete();
+				throw e;
+			}
+			replace(tempFile, metaFile);
+		}
+		
+		/** Record how long the response may be used without revalidation */
+		protected static void updateFreshness(Properties meta, HttpURLConnection conn, long now) {
+			String cacheControl = conn.getHeaderField("Cache-Control");
+			long expiresAt = 0;
+			Matcher m;
+			if( cacheControl != null && NO_CACHE_PATTERN.matcher(cacheControl).find() ) {
+				expiresAt = 0;
+			} else if( cacheControl != null && (m = MAX_AGE_PATTERN.matcher(cacheControl)).find() ) {
+				expiresAt = now + Long.parseLong(m.group(1)) * 1000;
+			} else {
+				long expires = conn.getHeaderFieldDate("Expires", 0);
+				long date = conn.getHeaderFieldDate("Date", now);
+				// Relative to the server's clock, in case ours disagrees
+				if( expires > date ) expiresAt = now + (expires - date);
+			}
+			meta.setProperty("expires-at", Long.toString(expiresAt));
+			String etag = conn.getHeaderField("ETag");
+			if( etag != null ) meta.setProperty("etag", etag);
+			String lastModified = conn.getHeaderField("Last-Modified");
+			if( lastModified != null ) meta.setProperty("last-modified", lastModified);
+		}
+		
+		/** @return the file containing the response body, or, if it mustn't be stored, a stream of it */
+		protected Object fetch(String url) throws IOException {
+			dir.mkdirs();
+			String key = key(url);
+			File bodyFile = new File(dir, key+".body");
+			File metaFile = new File(dir, key+".meta");
+			Properties meta = bodyFile.exists() ? loadMeta(metaFile) : null;
+			if( meta != null && !url.equals(meta.getProperty("url")) ) meta = null;
+			long now = System.currentTimeMillis();
+			if( meta != null && now < Long.parseLong(meta.getProperty("expires-at", "0")) ) {
+				metaFile.setLastModified(now);
+				return bodyFile;
+			}
+			
+			final HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+			boolean streaming = false;
+			try {
+				if( meta != null ) {
+					if( meta.getProperty("etag") != null ) conn.setRequestProperty("If-None-Match", meta.getProperty("etag"));
+					if( meta.getProperty("last-modified") != null ) conn.setRequestProperty("If-Modified-Since", meta.getProperty("last-modified"));
+				}
+				int status = conn.getResponseCode();
+				if( status == HttpURLConnection.HTTP_NOT_MODIFIED && meta != null ) {
+					updateFreshness(meta, conn, now);
+					saveMeta(meta, key, metaFile);
+					return bodyFile;
+				}
+				if( status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE ) {
+					throw new FileNotFoundException(url);
+				}
+				if( status != HttpURLConnection.HTTP_OK ) {
+					throw new IOException("Server returned HTTP "+status+" for "+url);
+				}
+				String cacheControl = conn.getHeaderField("Cache-Control");
+				if( cacheControl != null && NO_STORE_PATTERN.matcher(cacheControl).find() ) {
+					// Forget anything stored for it previously, too
+					metaFile.delete();
+					bodyFile.delete();
+					streaming = true;
+					return new FilterInputStream(conn.getInputStream()) {
+						@Override public void close() throws IOException {
+							try {
+								super.close();
+							} finally {
+								conn.disconnect();
+							}
+						}
+					};
+				}
+				File tempFile = tempFile(key);
+				InputStream in = conn.getInputStream();
+				try {
+					OutputStream out = new FileOutputStream(tempFile);
+					try {
+						byte[] buf = new byte[COPY_BUFFER_SIZE];
+						int n;
+						while( (n = in.read(buf)) > 0 ) out.write(buf, 0, n);
+					} finally {
+						out.close();
+					}
+				} catch( IOException e ) {
+					tempFile.delete();
+					throw e;
+				} finally {
+					in.close();
+				}
+				meta = new Properties();
+				meta.setProperty("url", url);
+				updateFreshness(meta, conn, now);
+				replace(tempFile, bodyFile);
+				saveMeta(meta, key, metaFile);
+				evict(key);
+				return bodyFile;
+			} finally {
+				if( !streaming ) conn.disconnect();
+			}
+		}
+		
+		/** Delete least recently used entries, other than keep's, until under maxSize */
+		protected void evict(String keep) {
+			File[] metaFiles = dir.listFiles();
+			if( metaFiles == null ) return;
+			ArrayList<File> candidates = new ArrayList<File>();
+			long total = 0;
+			for( File f : metaFiles ) {
+				String name = f.getName();
+				if( !name.endsWith(".meta") ) continue;
+				total += new File(dir, name.substring(0, name.length()-5)+".body").length();
+				if( !name.equals(keep+".meta") ) candidates.add(f);
+			}
+			if( total <= maxSize ) return;
+			final HashMap<File,Long> mtimes = new HashMap<File,Long>();
+			for( File f : candidates ) mtimes.put(f, f.lastModified());
+			Collections.sort(candidates, new Comparator<File>() {
+				@Override public int compare(File a, File b) {
+					return Long.compare(mtimes.get(a), mtimes.get(b));
+				}
+			});
+			for( File metaFile : candidates ) {
+				if( total <= maxSize ) break;
+				String name = metaFile.getName();
+				File bodyFile = new File(dir, name.substring(0, name.length()-5)+".body");
+				total -= bodyFile.length();
+				metaFile.delete();
+				bodyFile.delete();
+			}
+		}
+	}
+	
+	static final ConcurrentHashMap<String,HttpCache> HTTP_CACHES = new ConcurrentHashMap<String,HttpCache>();
+	
+	/** @return the HTTP cache configured by env, or null if there isn't one */
+	static HttpCache getHttpCache(Map<String,String> env) {
+		String dir = env.get(HTTP_CACHE_DIR_VAR);
+		if( dir == null || dir.length() == 0 ) return null;
+		String maxSizeStr = env.get(HTTP_CACHE_MAX_SIZE_VAR);
+		long maxSize = maxSizeStr == null ? DEFAULT_HTTP_CACHE_MAX_SIZE : parseSize(maxSizeStr);
+		String key = maxSize + ":" + dir;
+		HttpCache cache = HTTP_CACHES.get(key);
+		if( cache == null ) {
+			HTTP_CACHES.putIfAbsent(key, new HttpCache(new File(dir), maxSize));
+			cache = HTTP_CACHES.get(key);
+		}
+		return cache;
 	}
 	
 	public static InputStream getInputStream(String name, File pwd, Map<String,String> env) throws IOException {
+		String sha1 = hashUrnSha1(name);
+		if( sha1 != null ) return openBlob(name, sha1, env);
 		List<String> candidates = resolveUri(name, pwd, env);
 		for( String uri : candidates ) {
 			Matcher m;
-			if( (m = DATA_URI_PATTERN.matcher(uri)).matches() ) {
-				boolean isBase64 = m.group(2) != null;
-				byte[] data = urlDecode(m.group(3));
-				data = isBase64 ? base64Decode(data) : data;
-				return new ByteArrayInputStream(data);
+			if( isDataUri(uri) ) {
+				try {
+					return DataUri.parse(uri).openStream();
+				} catch( IllegalArgumentException e ) {
+					throw new IOException("Malformed data: URI: "+e.getMessage(), e);
+				}
 			} else if( (m = ENV_URI_PATTERN.matcher(uri)).matches() ) {
 				String envValue = env.get(m.group(1));
 				if( envValue == null ) envValue = "";
 				return new ByteArrayInputStream(envValue.getBytes(UTF8));
 			} else if( (m = ABSOLUTE_PATH_URI_PATTERN.matcher(uri)).matches() ) {
 				return new ByteArrayInputStream(resolveFilePath(pwd, m.group(1), false).getBytes(UTF8));
+			} else if( (m = FILE_URI_MATCHER.matcher(uri)).matches() ) {
+				// Opened directly rather than via URL#openConnection,
+				// which can choke on escape sequences, and so that
+				// callers can get at the FileChannel.
+				return new FileInputStream(fileUriPathToFile(m.group(1)));
 			} else {
-				// But note that Java's URL.getConnection might choke when the
-				// path contains escape sequences, so we may need to do
-				// our own translation, either 'fixing' the URL or translating
-				// to a plain old FileInputStream.
-				return new URL(uri).openConnection().getInputStream();
+				HttpCache cache = HTTP_URI_PATTERN.matcher(uri).matches() ? getHttpCache(env) : null;
+				return cache != null ? cache.open(uri) : new URL(uri).openConnection().getInputStream();
 			}
 		}
 		throw new FileNotFoundException("Couldn't resolve '"+name+"' to a readable resource"); 
 	}
 	
-	protected static List<String> resolvePrograms(String name, Map<String,String> env, PrintStream debugStream) {
-		String pathSepRegex = Pattern.quote(File.pathSeparator);
+	//// PATH resolution
+	
+	static final Pattern PATH_SEPARATOR_PATTERN = Pattern.compile(Pattern.quote(File.pathSeparator));
+	static final boolean CASE_INSENSITIVE_FILENAMES =
+		File.separatorChar == '\\' || System.getProperty("os.name", "").startsWith("Mac");
+	public static final String PATH_INDEX_FILE_VAR = "JCR36_PATH_INDEX_FILE";
+	
+	static final ConcurrentHashMap<String,String[]> PATH_LIST_CACHE = new ConcurrentHashMap<String,String[]>();
+	
+	/** Split PATH or PATHEXT; results are cached, so don't modify them! */
+	static String[] splitPathList(String str, boolean includeEmpty) {
+		String key = (includeEmpty ? "+" : "-") + str;
+		String[] parts = PATH_LIST_CACHE.get(key);
+		if( parts == null ) {
+			parts = str.length() == 0 ? new String[0] : PATH_SEPARATOR_PATTERN.split(str);
+			if( includeEmpty ) parts = cons("", parts);
+			// Don't let a process that sees lots of different PATHs eat all the memory
+			if( PATH_LIST_CACHE.size() > 256 ) PATH_LIST_CACHE.clear();
+			PATH_LIST_CACHE.put(key, parts);
+		}
+		return parts;
+	}
+	
+	/**
+	 * Caches the names of entries in PATH directories, keyed by directory modification time,
+	 * so that resolving a program takes one stat per PATH directory, rather than
+	 * one per directory per PATHEXT, and lookups of names that aren't there
+	 * don't touch the filesystem at all beyond that.
+	 * 
+	 * Optionally loaded from and saved to the file named by $JCR36_PATH_INDEX_FILE.
+	 */
+	static class PathIndex {
+		// Listings of directories modified more recently than this
+		// might not reflect changes made within the same mtime 'tick',
+		// so they will be re-read next time.
+		static final long MTIME_GRANULARITY_MS = 2000;
+		static final String FILE_HEADER = "# JCR36 PATH index v1";
 		
+		static class DirEntry {
+			final long mtime;
+			final Set<String> names;
+			final boolean settled;
+			DirEntry(long mtime, Set<String> names, boolean settled) {
+				this.mtime = mtime;
+				this.names = names;
+				this.settled = settled;
+			}
+		}
+		
+		protected final ConcurrentHashMap<String,DirEntry> dirs = new ConcurrentHashMap<String,DirEntry>();
+		protected final Set<String> loadedFiles = Collections.synchronizedSet(new HashSet<String>());
+		protected volatile boolean dirty = false;
+		
+		static String normalizeName(String name) {
+			return CASE_INSENSITIVE_FILENAMES ? name.toLowerCase(Locale.ROOT) : name;
+		}
+		
+		/**
+		 * @param stats if non-null, stats[0] is incremented for cache hits,
+		 *   stats[1] for directories that had to be (re-)listed
+		 */
+		public Set<String> getNames(String dir, int[] stats) {
+			File dirFile = new File(dir);
+			long mtime = dirFile.lastModified();
+			DirEntry entry = dirs.get(dir);
+			if( entry != null && entry.settled && entry.mtime == mtime ) {
+				if( stats != null ) ++stats[0];
+				return entry.names;
+			}
+			if( stats != null ) ++stats[1];
+			String[] list = mtime == 0 ? null : dirFile.list();
+			Set<String> names;
+			if( list == null ) {
+				names = Collections.emptySet();
+			} else {
+				names = new HashSet<String>(list.length*2);
+				for( String name : list ) names.add(normalizeName(name));
+			}
+			boolean settled = System.currentTimeMillis() - mtime > MTIME_GRANULARITY_MS;
+			dirs.put(dir, new DirEntry(mtime, names, settled));
+			if( settled ) dirty = true;
+			return names;
+		}
+		
+		public boolean exists(String dir, String name, int[] stats) {
+			if( name.indexOf('/') != -1 || name.indexOf(File.separatorChar) != -1 ) {
+				// Not a simple name; the index can't help with that.
+				return new File(dir + File.separator + name).exists();
+			}
+			return getNames(dir, stats).contains(normalizeName(name));
+		}
+		
+		public void load(File file) {
+			if( !loadedFiles.add(file.getPath()) || !file.exists() ) return;
+			try {
+				BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+				try {
+					String line = r.readLine();
+					if( !FILE_HEADER.equals(line) ) return;
+					String dir = null;
+					long mtime = 0;
+					HashSet<String> names = null;
+					while( (line = r.readLine()) != null ) {
+						if( line.startsWith("\t") ) {
+							if( names != null ) names.add(line.substring(1));
+							continue;
+						}
+						if( dir != null && !dirs.containsKey(dir) ) dirs.put(dir, new DirEntry(mtime, names, true));
+						String[] parts = line.split("\t", 3);
+						if( parts.length != 3 || !"D".equals(parts[0]) ) throw new IOException("Malformed line: "+quote(line));
+						mtime = Long.parseLong(parts[1]);
+						dir = parts[2];
+						names = new HashSet<String>();
+					}
+					if( dir != null && !dirs.containsKey(dir) ) dirs.put(dir, new DirEntry(mtime, names, true));
+				} finally {
+					r.close();
+				}
+			} catch( Exception e ) {
+				// A broken index is no worse than no index
+			}
+		}
+		
+		public void save(File file) throws IOException {
+			if( !dirty ) return;
+			dirty = false;
+			// Unique across processes, which may all be saving at once
+			File tempFile = File.createTempFile(file.getName()+".tmp-", null, file.getAbsoluteFile().getParentFile());
+			Writer w = new OutputStreamWriter(new FileOutputStream(tempFile), UTF8);
+			boolean written = false;
+			try {
+				w.write(FILE_HEADER+"\n");
+				entries: for( Map.Entry<String,DirEntry> e : dirs.entrySet() ) {
+					DirEntry entry = e.getValue();
+					if( !entry.settled || e.getKey().indexOf('\n') != -1 ) continue;
+					for( String name : entry.names ) {
+						if( name.indexOf('\n') != -1 ) continue entries;
+					}
+					w.write("D\t"+entry.mtime+"\t"+e.getKey()+"\n");
+					for( String name : entry.names ) w.write("\t"+name+"\n");
+				}
+				w.close();
+				written = true;
+			} finally {
+				if( !written ) {
+					w.close();
+					tempFile.delete();
+				}
+			}
+			if( !tempFile.renameTo(file) ) {
+				// Windows won't rename over an existing file
+				file.delete();
+				if( !tempFile.renameTo(file) ) {
+					tempFile.delete();
+					throw new IOException("Failed to rename "+tempFile+" to "+file);
+				}
+			}
+		}
+	}
+	
+	static final PathIndex PATH_INDEX = new PathIndex();
+	
+	protected static List<String> resolvePrograms(String name, Map<String,String> env, PrintStream debugStream) {
 		String pathsStr = env.get("PATH");
 		if( pathsStr == null ) pathsStr = env.get("Path"); // For Windows compatibility
 		if( pathsStr == null ) pathsStr = "";
-		String[] pathParts = pathsStr.length() == 0 ? new String[0] : pathsStr.split(pathSepRegex);
+		String[] pathParts = splitPathList(pathsStr, false);
 		String pathExtStr = env.get("PATHEXT");
-		String[] pathExts = pathExtStr == null || pathExtStr.length() == 0 ? new String[] {} : pathExtStr.split(pathSepRegex);
-		pathExts = cons("", pathExts);
+		String[] pathExts = splitPathList(pathExtStr == null ? "" : pathExtStr, true);
+		String indexFileName = env.get(PATH_INDEX_FILE_VAR);
+		File indexFile = indexFileName == null || indexFileName.length() == 0 ? null : new File(indexFileName);
+		if( indexFile != null ) PATH_INDEX.load(indexFile);
 		if( debugStream != null ) {
 			debugStream.println("PATH: "+pathsStr);
 			debugStream.println("Path separator: "+File.pathSeparator);
-			debugStream.println("Path separator regex: "+pathSepRegex);
 			debugStream.print("PATH items: ");
 			String sep = "";
 			for( String path : pathParts ) {
@@ -282,21 +1232,33 @@ public class SimplerCommandRunner {
 				sep = ", ";
 			}
 			debugStream.println();
+			debugStream.println("PATH index file: "+(indexFile == null ? "(none; set "+PATH_INDEX_FILE_VAR+" to persist)" : indexFile.getPath()));
 		}
 		
 		List<String> results = new ArrayList<String>();
+		int[] stats = new int[2];
 		
 		for( String path : pathParts ) {
 			for( String pathExt : pathExts ) {
-				File candidate = new File(path + File.separator + name + pathExt);
-				if( debugStream != null ) debugStream.println("Checking for "+candidate.getPath()+"...");
-				if( candidate.exists() ) {
-					if( debugStream != null ) debugStream.println("Found "+candidate.getPath());
-					results.add(candidate.getPath());
+				String candidate = path + File.separator + name + pathExt;
+				if( debugStream != null ) debugStream.println("Checking for "+candidate+"...");
+				if( PATH_INDEX.exists(path, name + pathExt, stats) ) {
+					if( debugStream != null ) debugStream.println("Found "+candidate);
+					results.add(candidate);
 				}
 			}
 		}
 		
+		if( debugStream != null ) {
+			debugStream.println("PATH index: "+stats[0]+" cache hits, "+stats[1]+" misses");
+		}
+		
+		if( indexFile != null ) try {
+			PATH_INDEX.save(indexFile);
+		} catch( IOException e ) {
+			if( debugStream != null ) debugStream.println("Failed to save PATH index: "+e);
+		}
+		
 		return results;
 	}
 	
@@ -336,6 +1298,59 @@ public class SimplerCommandRunner {
 	
 	static final Pattern OFS_PAT = Pattern.compile("^--ofs=(.*)$");
 	
+	// Capture this before anyone gets a chance to System.setOut(...)
+	static final PrintStream ORIGINAL_STDOUT = System.out;
+	static FileChannel stdoutChannel;
+	
+	static synchronized FileChannel getStdoutChannel() {
+		// Never closed, since that would close stdout!
+		if( stdoutChannel == null ) stdoutChannel = new FileOutputStream(FileDescriptor.out).getChannel();
+		return stdoutChannel;
+	}
+	
+	/**
+	 * Returns a channel that writes to the same place as os,
+	 * or null if there is no such channel.
+	 */
+	static WritableByteChannel toWritableChannel(Object os) {
+		if( os == ORIGINAL_STDOUT ) return getStdoutChannel();
+		if( os instanceof FileOutputStream ) return ((FileOutputStream)os).getChannel();
+		return null;
+	}
+	
+	static final int COPY_BUFFER_SIZE = 256*1024;
+	
+	/**
+	 * Copy everything from in to out (which should write to the same place as dest),
+	 * using FileChannel#transferTo (which may use sendfile or similar)
+	 * if in is a file and dest has a channel.
+	 */
+	static long copy(InputStream in, Object dest, OutputStream out, byte[] buf) throws IOException {
+		long total = 0;
+		WritableByteChannel destChannel;
+		if( in instanceof FileInputStream && (destChannel = toWritableChannel(dest)) != null ) {
+			FileChannel src = ((FileInputStream)in).getChannel();
+			out.flush();
+			long pos = src.position();
+			long size = src.size();
+			while( pos < size ) {
+				long z = src.transferTo(pos, size - pos, destChannel);
+				if( z <= 0 ) break;
+				pos += z;
+				total += z;
+			}
+			src.position(pos);
+			// Anything else (e.g. from special files that report size=0,
+			// or from files that grew) will be copied the old-fashioned way.
+		}
+		int z;
+		while( (z = in.read(buf)) > 0 ) {
+			out.write(buf, 0, z);
+			total += z;
+		}
+		return total;
+	}
+	
 	public static int doJcrCat(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
 		String ofs = ""; // Output file separator, to be symmetric with print --ofs=whatever
 		Matcher m;
@@ -354,18 +1369,28 @@ public class SimplerCommandRunner {
 		PrintStream out = toPrintStream(io[1]);
 		if( out == null ) return 0;
 		String _sep = "";
+		byte[] buf = null;
 		for( ; i<args.length; ++i ) {
 			out.print(_sep);
 			try {
-				new Piper(getInputStream(args[i], pwd, env), true, out, false).run();
+				InputStream in = getInputStream(args[i], pwd, env);
+				try {
+					if( buf == null ) buf = new byte[COPY_BUFFER_SIZE];
+					copy(in, io[1], out, buf);
+				} finally {
+					in.close();
+				}
 			} catch (IOException e) {
-				PrintStream err = toPrintStream(io[2]); 
-				err.print("Failed to open "+args[i]+": ");
-				e.printStackTrace(err);
+				PrintStream err = toPrintStream(io[2]);
+				if( err != null ) {
+					err.print("Failed to read "+args[i]+": ");
+					e.printStackTrace(err);
+				}
 				return 1;
 			}
 			_sep = ofs;
 		}
+		out.flush();
 		return 0;
 	}
 	
@@ -421,59 +1446,202 @@ public class SimplerCommandRunner {
 		return 0;
 	}
 	
-	static final Pattern DELAY_OPTPAT = Pattern.compile("^--delay=(\\d+(?:\\.\\d+)?)(s|ms)?$");
+	static final Pattern DURATION_PATTERN = Pattern.compile("^(\\d+(?:\\.\\d+)?)(ms|s|m|h)?$");
+	
+	/** Parse a duration like '250ms', '1.5s', '2m', or '1h'; default unit is seconds */
+	static long parseDurationMs(String text) {
+		Matcher m = DURATION_PATTERN.matcher(text);
+		if( !m.matches() ) throw new IllegalArgumentException("Invalid duration: "+quote(text));
+		String unitName = m.group(2);
+		long unitValue =
+			"ms".equals(unitName) ? 1 :
+			"m".equals(unitName) ? 60000 :
+			"h".equals(unitName) ? 3600000 :
+			1000;
+		return (long)(Double.parseDouble(m.group(1)) * unitValue);
+	}
+	
+	static final Pattern DELAY_OPTPAT = Pattern.compile("^--delay=(.*)$");
+	static final Pattern MAX_DELAY_OPTPAT = Pattern.compile("^--max-delay=(.*)$");
+	static final Pattern BACKOFF_OPTPAT = Pattern.compile("^--backoff=(constant|exponential)$");
+	static final Pattern JITTER_OPTPAT = Pattern.compile("^--jitter(?:=(\\d+(?:\\.\\d+)?))?$");
+	static final Pattern TIMEOUT_OPTPAT = Pattern.compile("^--timeout=(.*)$");
+	static final Pattern MAX_ATTEMPTS_OPTPAT = Pattern.compile("^--max-attempts=(\\d+)$");
+	static final Pattern EXPECT_CODE_OPTPAT = Pattern.compile("^--expect-code=(-?\\d+)$");
+	/** Initial delay for exponential backoff when none is given */
+	static final long DEFAULT_BACKOFF_DELAY_MS = 100;
 	
 	public static int doUntil(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
-		long delayMs = 0;
+		long delayMs = -1;
+		long maxDelayMs = Long.MAX_VALUE;
+		boolean exponential = false;
+		double jitter = 0;
+		long timeoutMs = -1;
+		int maxAttempts = 0;
 		int requiredCode = 0;
-		while( i<args.length ) {
-			Matcher m;
-			if( (m = DELAY_OPTPAT.matcher(args[i])).matches() ) {
-				String unitName = m.group(2);
-				if( unitName == null ) unitName = "s";
-				double rawValue = Double.parseDouble(m.group(1));
-				int unitValue = "s".equals(unitName) ? 1000 : 1;
-				delayMs = (long)(rawValue * unitValue);
-			} else if( "--".equals(args[i]) ) {
-				++i;
-				break;
-			} else {
-				// Anything we don't recognize, let doJcrDoCmd handle it
-				break;
+		boolean verbose = false;
+		try {
+			while( i<args.length ) {
+				Matcher m;
+				if( (m = DELAY_OPTPAT.matcher(args[i])).matches() ) {
+					delayMs = parseDurationMs(m.group(1));
+				} else if( (m = MAX_DELAY_OPTPAT.matcher(args[i])).matches() ) {
+					maxDelayMs = parseDurationMs(m.group(1));
+				} else if( (m = BACKOFF_OPTPAT.matcher(args[i])).matches() ) {
+					exponential = "exponential".equals(m.group(1));
+				} else if( (m = JITTER_OPTPAT.matcher(args[i])).matches() ) {
+					jitter = m.group(1) == null ? 1 : Math.min(1, Double.parseDouble(m.group(1)));
+				} else if( (m = TIMEOUT_OPTPAT.matcher(args[i])).matches() ) {
+					timeoutMs = parseDurationMs(m.group(1));
+				} else if( (m = MAX_ATTEMPTS_OPTPAT.matcher(args[i])).matches() ) {
+					maxAttempts = Integer.parseInt(m.group(1));
+				} else if( (m = EXPECT_CODE_OPTPAT.matcher(args[i])).matches() ) {
+					requiredCode = Integer.parseInt(m.group(1));
+				} else if( "-v".equals(args[i]) || "--verbose".equals(args[i]) ) {
+					verbose = true;
+				} else if( "--".equals(args[i]) ) {
+					++i;
+					break;
+				} else {
+					// Anything we don't recognize, let JCRCommand.parse handle it
+					break;
+				}
+				++i;
 			}
-			++i;
+		} catch( IllegalArgumentException e ) {
+			printError(io[2], "jcr:until: "+e.getMessage());
+			return EXIT_CODE_USAGE_ERROR;
 		}
+		if( delayMs < 0 ) delayMs = exponential ? DEFAULT_BACKOFF_DELAY_MS : 0;
+		long deadline = timeoutMs < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMs;
+		Random random = jitter > 0 ? new Random() : null;
 		
-		while( doJcrDoCmd(args, i, pwd, env, io) != requiredCode ) {
+		// Parse and bind the command once, and re-run it
+		JCRAction action = JCRCommand.parse(args, i).bind(pwd, env, io);
+		CommandMetrics metrics = CURRENT_METRICS.get();
+		Trace trace = getTrace(env);
+		for( int attempt=1; ; ++attempt ) {
+			if( metrics != null ) metrics.attempts = attempt;
+			long attemptStartNs = System.nanoTime();
+			long traceStartUs = trace == null ? 0 : Trace.nowUs();
+			int exitCode = action.run();
+			if( trace != null ) trace.span("until", "attempt "+attempt, traceStartUs, "{\"exitCode\":"+exitCode+"}");
+			long attemptMs = (System.nanoTime() - attemptStartNs) / 1000000;
+			
+			if( exitCode == requiredCode ) {
+				if( verbose ) printError(io[2], "jcr:until: Attempt "+attempt+" exited with code "+exitCode+" after "+attemptMs+"ms; done");
+				return 0;
+			}
+			if( Thread.currentThread().isInterrupted() ) return EXIT_CODE_INTERRUPTED;
+			
+			long sleepMs = Math.min(delayMs, maxDelayMs);
+			if( random != null ) sleepMs -= (long)(sleepMs * jitter * random.nextDouble());
+			String giveUpReason =
+				maxAttempts > 0 && attempt >= maxAttempts ? "giving up after "+attempt+" attempts" :
+				System.currentTimeMillis() + sleepMs >= deadline ? "giving up after "+timeoutMs+"ms timeout" :
+				null;
+			if( giveUpReason != null ) {
+				if( verbose ) printError(io[2], "jcr:until: Attempt "+attempt+" exited with code "+exitCode+" after "+attemptMs+"ms; "+giveUpReason);
+				// Don't let giving up look like success
+				return exitCode == 0 ? 1 : exitCode;
+			}
+			if( verbose ) printError(io[2], "jcr:until: Attempt "+attempt+" exited with code "+exitCode+" after "+attemptMs+"ms; retrying in "+sleepMs+"ms");
+			
 			try {
-				Thread.sleep(delayMs);
+				Thread.sleep(sleepMs);
 			} catch (InterruptedException e) {
 				Thread.currentThread().interrupt();
 				return EXIT_CODE_INTERRUPTED;
 			}
+			if( exponential ) delayMs = delayMs > maxDelayMs / 2 ? maxDelayMs : delayMs * 2;
 		}
-		
-		return requiredCode;
 	}
 	
-	static class Piper extends Thread {
-		protected InputStream in;
-		protected OutputStream out;
-		protected boolean ownIn, ownOut;
+	//// Piping
+	
+	static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+		@Override public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	};
+	
+	static final int PUMP_BUFFER_SIZE = 16384;
+	static final int MAX_POOLED_PUMP_BUFFERS = 64;
+	static final int MAX_POOLED_PUMP_THREADS = 64;
+	
+	static final ConcurrentLinkedQueue<byte[]> PUMP_BUFFER_POOL = new ConcurrentLinkedQueue<byte[]>();
+	static final AtomicInteger PUMP_BUFFER_POOL_SIZE = new AtomicInteger();
+	
+	static byte[] takePumpBuffer() {
+		byte[] buf = PUMP_BUFFER_POOL.poll();
+		if( buf == null ) return new byte[PUMP_BUFFER_SIZE];
+		PUMP_BUFFER_POOL_SIZE.decrementAndGet();
+		return buf;
+	}
+	
+	static void returnPumpBuffer(byte[] buf) {
+		if( PUMP_BUFFER_POOL_SIZE.incrementAndGet() > MAX_POOLED_PUMP_BUFFERS ) {
+			PUMP_BUFFER_POOL_SIZE.decrementAndGet();
+			return;
+		}
+		PUMP_BUFFER_POOL.offer(buf);
+	}
+	
+	/**
+	 * Threads for running Pipers.  Idle threads are kept around for reuse,
+	 * up to MAX_POOLED_PUMP_THREADS of them.
+	 * Pipers are never queued, since a queued Piper may be the one
+	 * that some process (and therefore the Pipers ahead of it) is waiting on;
+	 * instead, when the pool is exhausted, the Piper gets a thread of its own.
+	 */
+	static final ThreadPoolExecutor PUMP_EXECUTOR = new ThreadPoolExecutor(
+		0, MAX_POOLED_PUMP_THREADS, 30, TimeUnit.SECONDS,
+		new SynchronousQueue<Runnable>(), DAEMON_THREAD_FACTORY,
+		new RejectedExecutionHandler() {
+			@Override public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				DAEMON_THREAD_FACTORY.newThread(r).start();
+			}
+		}
+	);
+	
+	static class Piper implements Runnable {
+		protected final InputStream in;
+		protected final OutputStream out;
+		protected final boolean ownIn, ownOut;
+		protected final CountDownLatch done = new CountDownLatch(1);
+		protected volatile long byteCount = 0;
+		/** If non-null, a span named traceName is recorded there for the copying */
+		Trace trace;
+		String traceName;
+		/** True for a Piper feeding a process's stdin, which is cancelled rather than joined once the process exits */
+		boolean feedsProcess;
+		protected volatile boolean cancelled = false;
+		// Only modified by the pumping thread; read them after join()ing
 		public ArrayList<Throwable> errors = new ArrayList<Throwable>();
 		public Piper(InputStream in, boolean ownIn, OutputStream out, boolean ownOut) {
 			this.in = in; this.out = out;
+			this.ownIn = ownIn; this.ownOut = ownOut;
 		}
 		@Override public void run() {
+			long traceStartUs = trace == null ? 0 : Trace.nowUs();
+			byte[] buf = takePumpBuffer();
 			try {
-				byte[] buf = new byte[16384];
 				int z;
-				while( (z = in.read(buf)) > 0 ) {
+				long count = 0;
+				while( !cancelled && (z = in.read(buf)) > 0 ) {
+					if( cancelled ) break;
 					if( out != null ) out.write(buf, 0, z);
+					byteCount = (count += z);
 				}
+				if( out != null && !ownOut ) out.flush();
 			} catch( Exception e ) {
-				this.errors.add(e);
+				// Failing to write to a closed output after cancellation is expected
+				if( !cancelled ) this.errors.add(e);
 			} finally {
+				returnPumpBuffer(buf);
+				
 				if( this.ownIn ) try {
 					in.close();
 				} catch (IOException e) {
@@ -485,12 +1653,44 @@ public class SimplerCommandRunner {
 				} catch( Exception e ) {
 					this.errors.add(e);
 				}
+				
+				if( trace != null ) trace.span("pipe", traceName, traceStartUs, "{\"bytes\":"+byteCount+"}");
+				done.countDown();
 			}
 		}
+		/**
+		 * Stop copying: no further reads are started, and out, if owned, is closed,
+		 * which unblocks any write in progress.  A read that's already blocked can't be
+		 * interrupted, so the data it returns (at most one read's worth) is dropped.
+		 * Used so that a stdin Piper doesn't go on consuming a shared input stream
+		 * after its process has exited.
+		 */
+		public void cancel() {
+			cancelled = true;
+			if( ownOut && out != null ) try {
+				out.close();
+			} catch( IOException e ) { }
+		}
+		/** Number of bytes copied so far */
+		public long getByteCount() {
+			return byteCount;
+		}
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+		public void join() throws InterruptedException {
+			done.await();
+		}
+		/** @return true if done within timeoutMs */
+		public boolean join(long timeoutMs) throws InterruptedException {
+			return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+		public Piper start() {
+			PUMP_EXECUTOR.execute(this);
+			return this;
+		}
 		public static Piper start(InputStream in, boolean ownIn, OutputStream out, boolean ownOut) {
-			Piper p = new Piper(in, ownIn, out, ownOut);
-			p.start();
-			return p;
+			return new Piper(in, ownIn, out, ownOut).start();
 		}
 	}
 	
@@ -523,172 +1723,4421 @@ public class SimplerCommandRunner {
 		throw new RuntimeException("Don't know how to make PrintStream from "+os);
 	}
 	
-	public static int doSysProc(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+	//// Redirects
+	
+	// Besides streams, IO slots may contain ProcessBuilder.Redirects,
+	// which system processes can be hooked up to directly,
+	// so that the JVM doesn't have to copy anything.
+	
+	static final File NULL_DEVICE = new File(File.separatorChar == '\\' ? "NUL" : "/dev/null");
+	static final boolean NULL_DEVICE_AVAILABLE = File.separatorChar == '\\' || NULL_DEVICE.exists();
+	
+	/** Translate a path or file: URI to a File, or return null if it's some other kind of URI */
+	static File toLocalFile(String name, File pwd, Map<String,String> env) {
+		for( String uri : resolveUri(name, pwd, env) ) {
+			Matcher m = FILE_URI_MATCHER.matcher(uri);
+			if( m.matches() ) return fileUriPathToFile(m.group(1));
+		}
+		return null;
+	}
+	
+	/** Stdin to be read from a non-file URI, opened anew each time a command is run */
+	static class UriInput {
+		public final String name;
+		public final File pwd;
+		public final Map<String,String> env;
+		public UriInput(String name, File pwd, Map<String,String> env) {
+			this.name = name;
+			this.pwd = pwd;
+			this.env = env;
+		}
+		public InputStream open() {
+			try {
+				return getInputStream(name, pwd, env);
+			} catch( IOException e ) {
+				throw new RuntimeException("Failed to open "+quote(name)+" for reading", e);
+			}
+		}
+	}
+	
+	static Object inputRedirect(String name, File pwd, Map<String,String> env) {
+		// Blobs that are to be verified have to be read through openBlob
+		if( hashUrnSha1(name) != null && "true".equals(env.get(BLOB_VERIFY_VAR)) ) {
+			return new UriInput(name, pwd, env);
+		}
+		File file = toLocalFile(name, pwd, env);
+		return file != null ? Redirect.from(file) : new UriInput(name, pwd, env);
+	}
+	
+	/** Replace a UriInput in io[0] with a stream, which will be added to toClose */
+	static Object[] openUriInput(Object[] io, List<Closeable> toClose) {
+		if( !(io[0] instanceof UriInput) ) return io;
+		io = io.clone();
+		InputStream is = ((UriInput)io[0]).open();
+		toClose.add(is);
+		io[0] = is;
+		return io;
+	}
+	
+	static Redirect outputRedirect(String name, File pwd, boolean append) {
+		File file = toLocalFile(name, pwd, Collections.<String,String>emptyMap());
+		if( file == null ) throw new RuntimeException("Can't redirect output to "+quote(name)+"; only local files are supported");
+		if( !append ) {
+			// Truncate now and append from then on, so that output from
+			// several processes (e.g. of a jcr:until loop) all ends up in the file,
+			// as if it were only opened once.
+			try {
+				new FileOutputStream(file).close();
+			} catch( IOException e ) {
+				throw new RuntimeException("Failed to open "+quote(name)+" for writing", e);
+			}
+		}
+		return Redirect.appendTo(file);
+	}
+	
+	/**
+	 * Return a copy of io with any Redirects replaced by streams,
+	 * which will be added to toClose.
+	 * Where two slots contain the same Redirect, they will get the same stream.
+	 */
+	static Object[] openRedirects(Object[] io, List<Closeable> toClose) {
+		Object[] opened = io;
+		for( int i=0; i<io.length; ++i ) {
+			if( !(io[i] instanceof Redirect) ) continue;
+			if( opened == io ) opened = io.clone();
+			Redirect r = (Redirect)io[i];
+			for( int j=0; j<i; ++j ) if( io[j] == r ) opened[i] = opened[j];
+			if( opened[i] != r ) continue;
+			try {
+				Closeable stream;
+				if( r.type() == Redirect.Type.READ ) {
+					stream = new FileInputStream(r.file());
+				} else if( r.type() == Redirect.Type.APPEND || r.type() == Redirect.Type.WRITE ) {
+					stream = new FileOutputStream(r.file(), r.type() == Redirect.Type.APPEND);
+				} else {
+					throw new RuntimeException("Don't know how to open "+r);
+				}
+				toClose.add(stream);
+				opened[i] = stream;
+			} catch( IOException e ) {
+				throw new RuntimeException("Failed to open "+r.file(), e);
+			}
+		}
+		return opened;
+	}
+	
+	/** Print a line to err, which may be null, a stream, or a Redirect */
+	static void printError(Object err, String message) {
+		if( err == null ) return;
+		ArrayList<Closeable> toClose = new ArrayList<Closeable>();
+		try {
+			PrintStream ps = toPrintStream(openRedirects(new Object[] { err }, toClose)[0]);
+			ps.print(message+"\n");
+			ps.flush();
+		} finally {
+			closeAll(toClose);
+		}
+	}
+	
+	static void closeAll(List<Closeable> toClose) {
+		for( int i=toClose.size()-1; i>=0; --i ) {
+			Closeable c = toClose.get(i);
+			try {
+				if( c instanceof Flushable ) ((Flushable)c).flush();
+				c.close();
+			} catch( IOException e ) {
+				// Nothing much we can do about it
+			}
+		}
+		toClose.clear();
+	}
+	
+	static Redirect toRedirect(Object io, boolean isInput) {
+		if( io == null && NULL_DEVICE_AVAILABLE ) {
+			return isInput ? Redirect.from(NULL_DEVICE) : Redirect.to(NULL_DEVICE);
+		} else if( io instanceof Redirect ) {
+			return (Redirect)io;
+		}
+		return Redirect.PIPE;
+	}
+	
+	static String[] resolveSysProcArgs(String[] args, int i, Map<String,String> env) {
 		String[] resolvedArgs = new String[args.length-i];
 		resolvedArgs[0] = resolveProgram(args[i++], env);
 		for( int j=1; i<args.length; ++i, ++j ) resolvedArgs[j] = args[i];
+		return resolvedArgs;
+	}
+	
+	/**
+	 * IO slots containing Redirect.PIPE will be left for the caller to hook up;
+	 * any other streams will be connected by startPipers.
+	 */
+	static ProcessBuilder makeProcessBuilder(String[] resolvedArgs, File pwd, Map<String,String> env, Object[] io) {
 		ProcessBuilder pb = new ProcessBuilder(resolvedArgs);
 		pb.environment().clear();
 		pb.environment().putAll(env);
 		pb.directory(pwd);
-		pb.redirectInput(io[0] == System.in ? Redirect.INHERIT : Redirect.PIPE);
-		pb.redirectOutput(io[1] == System.out ? Redirect.INHERIT : Redirect.PIPE);
-		pb.redirectError( io[2] == System.err ? Redirect.INHERIT : Redirect.PIPE);
-		Process proc;
+		pb.redirectInput(isSystemStream(io[0], System.in) ? Redirect.INHERIT : toRedirect(io[0], true));
+		pb.redirectOutput(isSystemStream(io[1], System.out) ? Redirect.INHERIT : toRedirect(io[1], false));
+		if( io[2] == io[1] && io[1] != null ) {
+			pb.redirectErrorStream(true);
+		} else {
+			pb.redirectError( isSystemStream(io[2], System.err) ? Redirect.INHERIT : toRedirect(io[2], false));
+		}
+		return pb;
+	}
+	
+	static Piper startPiper(InputStream in, boolean ownIn, OutputStream out, boolean ownOut, Trace trace, String traceName) {
+		Piper p = new Piper(in, ownIn, out, ownOut);
+		p.trace = trace;
+		p.traceName = traceName;
+		return p.start();
+	}
+	
+	/**
+	 * Start Pipers for any of proc's standard streams that need to be copied to/from io.
+	 * @param metrics if non-null, Pipers are recorded here so that their byte counts can be reported
+	 * @param trace if non-null, spans are recorded here for each Piper
+	 * @return the Pipers, to be passed to waitForSysProc, which joins the output ones
+	 *   and cancels the input one after the process exits
+	 */
+	static List<Piper> startPipers(Process proc, ProcessBuilder pb, Object[] io, CommandMetrics metrics, Trace trace) throws IOException {
+		ArrayList<Piper> pipers = new ArrayList<Piper>();
+		if( pb.redirectInput() == Redirect.PIPE && !(io[0] instanceof Redirect) ) {
+			if( io[0] == null ) {
+				proc.getOutputStream().close();
+			} else {
+				Piper p = new Piper(toInputStream(io[0]), false, proc.getOutputStream(), true);
+				p.feedsProcess = true;
+				p.trace = trace;
+				p.traceName = "stdin";
+				p.start();
+				if( metrics != null ) metrics.stdinPiper = p;
+				pipers.add(p);
+			}
+		}
+		if( pb.redirectOutput() == Redirect.PIPE && !(io[1] instanceof Redirect) ) {
+			Piper p = startPiper(proc.getInputStream(), true, totOutputStream(io[1]), false, trace, "stdout");
+			if( metrics != null ) metrics.stdoutPiper = p;
+			pipers.add(p);
+		}
+		if( pb.redirectError() == Redirect.PIPE && !pb.redirectErrorStream() && !(io[2] instanceof Redirect) ) {
+			Piper p = startPiper(proc.getErrorStream(), true, totOutputStream(io[2]), false, trace, "stderr");
+			if( metrics != null ) metrics.stderrPiper = p;
+			pipers.add(p);
+		}
+		return pipers;
+	}
+	
+	static List<Piper> startPipers(Process proc, ProcessBuilder pb, Object[] io) throws IOException {
+		return startPipers(proc, pb, io, null, null);
+	}
+	
+	//// Process termination
+	
+	/** How long terminated processes get to exit before being killed, if not specified */
+	static final long DEFAULT_KILL_AFTER_MS = 10000;
+	/**
+	 * The --kill-after of the innermost enclosing command that has a --timeout,
+	 * so that commands run within it (including on other threads, e.g. by jcr:pipe)
+	 * are stopped as promptly as it would be.
+	 */
+	static final InheritableThreadLocal<Long> INHERITED_KILL_AFTER_MS = new InheritableThreadLocal<Long>();
+	
+	static long getDefaultKillAfterMs() {
+		Long killAfterMs = INHERITED_KILL_AFTER_MS.get();
+		return killAfterMs == null ? DEFAULT_KILL_AFTER_MS : killAfterMs;
+	}
+	/** How long to wait for a terminated process's output to finish being copied */
+	static final long TERMINATED_DRAIN_TIMEOUT_MS = 2000;
+	
+	static Method lookUpMethod(String className, String methodName, Class<?>... paramTypes) {
+		try {
+			return Class.forName(className).getMethod(methodName, paramTypes);
+		} catch( ClassNotFoundException e ) {
+			return null;
+		} catch( NoSuchMethodException e ) {
+			return null;
+		}
+	}
+	
+	// Java 8+
+	static final Method PROCESS_WAITFOR_TIMEOUT_METHOD = lookUpMethod("java.lang.Process", "waitFor", long.class, TimeUnit.class);
+	static final Method PROCESS_DESTROY_FORCIBLY_METHOD = lookUpMethod("java.lang.Process", "destroyForcibly");
+	static final Method STREAM_TOARRAY_METHOD = lookUpMethod("java.util.stream.Stream", "toArray");
+	// Java 9+
+	static final Method PROCESS_DESCENDANTS_METHOD = lookUpMethod("java.lang.Process", "descendants");
+	static final Method PROCESSHANDLE_DESTROY_METHOD = lookUpMethod("java.lang.ProcessHandle", "destroy");
+	static final Method PROCESSHANDLE_DESTROY_FORCIBLY_METHOD = lookUpMethod("java.lang.ProcessHandle", "destroyForcibly");
+	static final Method PROCESSHANDLE_ISALIVE_METHOD = lookUpMethod("java.lang.ProcessHandle", "isAlive");
+	
+	static Object invokeOrThrow(Method m, Object target, Object... args) throws InterruptedException {
+		try {
+			return m.invoke(target, args);
+		} catch( InvocationTargetException e ) {
+			if( e.getCause() instanceof InterruptedException ) throw (InterruptedException)e.getCause();
+			if( e.getCause() instanceof RuntimeException ) throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch( IllegalAccessException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static Object invokeUninterruptibly(Method m, Object target, Object... args) {
+		try {
+			return invokeOrThrow(m, target, args);
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	static boolean isAlive(Process proc) {
+		try {
+			proc.exitValue();
+			return false;
+		} catch( IllegalThreadStateException e ) {
+			return true;
+		}
+	}
+	
+	/** @return true if the process exited within timeoutMs */
+	static boolean waitForExit(Process proc, long timeoutMs) throws InterruptedException {
+		if( PROCESS_WAITFOR_TIMEOUT_METHOD != null ) {
+			return (Boolean)invokeOrThrow(PROCESS_WAITFOR_TIMEOUT_METHOD, proc, timeoutMs, TimeUnit.MILLISECONDS);
+		}
+		long deadline = System.currentTimeMillis() + Math.min(timeoutMs, Long.MAX_VALUE/2);
+		while( isAlive(proc) ) {
+			long remaining = deadline - System.currentTimeMillis();
+			if( remaining <= 0 ) return false;
+			Thread.sleep(Math.min(remaining, 50));
+		}
+		return true;
+	}
+	
+	/** @return ProcessHandles of the process's descendants, if the JVM can tell us */
+	static List<Object> getDescendants(Process proc) {
+		if( PROCESS_DESCENDANTS_METHOD == null || STREAM_TOARRAY_METHOD == null ) return Collections.emptyList();
+		Object stream = invokeUninterruptibly(PROCESS_DESCENDANTS_METHOD, proc);
+		Object[] handles = (Object[])invokeUninterruptibly(STREAM_TOARRAY_METHOD, stream);
+		return handles == null ? Collections.emptyList() : Arrays.asList(handles);
+	}
+	
+	static boolean isHandleAlive(Object handle) {
+		return Boolean.TRUE.equals(invokeUninterruptibly(PROCESSHANDLE_ISALIVE_METHOD, handle));
+	}
+	
+	/**
+	 * Ask the processes and all their descendants to terminate,
+	 * and forcibly kill any that haven't exited after killAfterMs.
+	 * Descendants are included because, besides being part of whatever
+	 * the process was doing, they may be holding its output pipes open.
+	 * @return true if anything had to be forcibly killed
+	 */
+	static boolean terminateProcessTrees(Collection<Process> procs, long killAfterMs) {
+		// Find descendants first, since once their parents are gone they won't be findable
+		List<Object> descendants = new ArrayList<Object>();
+		for( Process proc : procs ) descendants.addAll(getDescendants(proc));
 		
-		PrintStream stdErr = toPrintStream(io[2]);
+		for( Object handle : descendants ) invokeUninterruptibly(PROCESSHANDLE_DESTROY_METHOD, handle);
+		for( Process proc : procs ) proc.destroy();
 		
+		boolean interrupted = false;
 		try {
-			proc = pb.start();
-			ArrayList<Piper> pipers = new ArrayList<Piper>();
-			if( pb.redirectInput() == Redirect.PIPE ) pipers.add(Piper.start(toInputStream(io[0]), false, proc.getOutputStream(), true));
-			if( pb.redirectOutput() == Redirect.PIPE ) pipers.add(Piper.start(proc.getInputStream(), true, totOutputStream(io[1]), false));
-			if( pb.redirectError() == Redirect.PIPE ) pipers.add(Piper.start(proc.getErrorStream(), true, totOutputStream(io[2]), false));
-			int exitCode = proc.waitFor();
-			
-			for( Piper p : pipers ) {
-				p.join();
-				if( !p.errors.isEmpty() && exitCode == 0 ) exitCode = EXIT_CODE_PIPING_ERROR; 
+			long deadline = System.currentTimeMillis() + killAfterMs;
+			for( Process proc : procs ) {
+				waitForExit(proc, Math.max(0, deadline - System.currentTimeMillis()));
 			}
-			if( stdErr != null ) for( Piper p : pipers ) for( Throwable e : p.errors ) {
-				stdErr.print("Piping error: "+e+"\n");
+			for( Object handle : descendants ) {
+				while( isHandleAlive(handle) && System.currentTimeMillis() < deadline ) Thread.sleep(20);
 			}
-			
-			return exitCode;
-		} catch (IOException e) {
-			if( stdErr != null ) stdErr.println("Failed to run process "+debug(resolvedArgs)+" (pwd="+pwd+"); exception: "+e.getMessage());
-			return EXIT_CODE_COMMAND_NOT_FOUND;
-		} catch (InterruptedException e) {
-			if( stdErr != null ) stdErr.println("Interrupted while running process "+debug(resolvedArgs)+" (pwd="+pwd+")");
-			return EXIT_CODE_INTERRUPTED;
+		} catch( InterruptedException e ) {
+			// Then don't wait any longer
+			interrupted = true;
 		}
+		
+		boolean killed = false;
+		for( Process proc : procs ) {
+			if( isAlive(proc) ) {
+				if( PROCESS_DESTROY_FORCIBLY_METHOD != null ) {
+					invokeUninterruptibly(PROCESS_DESTROY_FORCIBLY_METHOD, proc);
+				} else {
+					proc.destroy();
+				}
+				killed = true;
+			}
+		}
+		for( Object handle : descendants ) {
+			if( isHandleAlive(handle) ) {
+				invokeUninterruptibly(PROCESSHANDLE_DESTROY_FORCIBLY_METHOD, handle);
+				killed = true;
+			}
+		}
+		if( interrupted ) Thread.currentThread().interrupt();
+		return killed;
 	}
 	
-	public static String envMangleAlias(String name) {
-		return "JCR_ALIAS_"+name.replace(":", "_").toUpperCase();
+	/**
+	 * Wait for a process to exit and for its output to be copied.
+	 * If interrupted, or if it runs for longer than timeoutMs (when that is >= 0),
+	 * the process and its descendants are terminated, and killed
+	 * if they haven't exited after killAfterMs.
+	 */
+	static int waitForSysProc(Process proc, List<Piper> pipers, String[] resolvedArgs, File pwd, Object stdErr, long timeoutMs, long killAfterMs, CommandMetrics metrics) {
+		int exitCode;
+		boolean terminated = false;
+		boolean interrupted = false;
+		try {
+			if( timeoutMs < 0 || waitForExit(proc, timeoutMs) ) {
+				exitCode = proc.waitFor();
+			} else {
+				terminated = true;
+				exitCode = terminateProcessTrees(Collections.singletonList(proc), killAfterMs) ? EXIT_CODE_SIGKILLED : EXIT_CODE_SIGTERMED;
+			}
+		} catch (InterruptedException e) {
+			terminated = interrupted = true;
+			boolean killed = terminateProcessTrees(Collections.singletonList(proc), killAfterMs);
+			printError(stdErr, "Interrupted while running process "+debug(resolvedArgs)+" (pwd="+pwd+")");
+			exitCode = killed ? EXIT_CODE_SIGKILLED : EXIT_CODE_INTERRUPTED;
+		}
+		long exitedNs = metrics == null ? 0 : System.nanoTime();
+		if( metrics != null ) metrics.runNs = exitedNs - metrics.processStartedNs;
+		
+		// The stdin Piper isn't waited for, since it might be blocked reading
+		// input that the process didn't care about, but it's cancelled so that
+		// it doesn't go on to consume input meant for whatever runs next;
+		// if it fails to write to the process after it has exited, that's not an error, either.
+		// After terminating a process, don't wait forever for output from
+		// any descendants that escaped.
+		for( Piper p : pipers ) {
+			if( p.feedsProcess ) p.cancel();
+		}
+		try {
+			for( Piper p : pipers ) {
+				if( p.feedsProcess ) continue;
+				if( terminated ) {
+					if( !p.join(TERMINATED_DRAIN_TIMEOUT_MS) ) {
+						printError(stdErr, "Output of terminated process "+debug(resolvedArgs)+" still open; not waiting for it");
+					}
+				} else {
+					p.join();
+				}
+				if( !p.errors.isEmpty() && exitCode == 0 ) exitCode = EXIT_CODE_PIPING_ERROR; 
+			}
+		} catch (InterruptedException e) {
+			interrupted = true;
+			if( !terminated ) {
+				terminateProcessTrees(Collections.singletonList(proc), killAfterMs);
+				exitCode = EXIT_CODE_INTERRUPTED;
+			}
+		}
+		for( Piper p : pipers ) if( !p.feedsProcess ) for( Throwable e : p.errors ) {
+			printError(stdErr, "Piping error: "+e);
+		}
+		if( metrics != null ) metrics.drainNs = System.nanoTime() - exitedNs;
+		
+		if( interrupted ) Thread.currentThread().interrupt();
+		return exitCode;
 	}
 	
-	public static String dealiasCommand(String name, Map<String,String> env) {
-		String resolved = env.get(envMangleAlias(name));
-		return resolved == null ? name : resolved;
+	static int waitForSysProc(Process proc, List<Piper> pipers, String[] resolvedArgs, File pwd, Object stdErr, long timeoutMs, long killAfterMs) {
+		return waitForSysProc(proc, pipers, resolvedArgs, pwd, stdErr, timeoutMs, killAfterMs, null);
 	}
 	
-	public static Map<String,String> STANDARD_ALIASES = new HashMap<String,String>();
-	static {
-		STANDARD_ALIASES.put("jcr:cat"     , CMD_CAT       );
-		STANDARD_ALIASES.put("jcr:docmd"   , CMD_DOCMD     );
-		STANDARD_ALIASES.put("jcr:printenv", CMD_PRINTENV  );
-		STANDARD_ALIASES.put("jcr:exit"    , CMD_EXIT      );
-		STANDARD_ALIASES.put("jcr:print"   , CMD_PRINT     );
-		STANDARD_ALIASES.put("jcr:runsys"  , CMD_RUNSYSPROC);
-		STANDARD_ALIASES.put("jcr:until"   , CMD_UNTIL     );
+	static int waitForSysProc(Process proc, List<Piper> pipers, String[] resolvedArgs, File pwd, Object stdErr) {
+		return waitForSysProc(proc, pipers, resolvedArgs, pwd, stdErr, -1, getDefaultKillAfterMs());
 	}
 	
-	static Map<String,String> loadEnvFromPropertiesFile(String name, File pwd, Map<String,String> env) throws IOException {
-		@SuppressWarnings("resource")
-		InputStream is = getInputStream(name, pwd, env);
+	public static int doSysProc(String[] args, int i, File pwd, Map<String,String> env, Object[] io, long timeoutMs, long killAfterMs) {
+		int selfArgsIndex = timeoutMs < 0 ? getSelfInvocationArgsIndex(args, i, pwd, env) : -1;
+		if( selfArgsIndex >= 0 ) {
+			return doJcrDoCmdMain(args, selfArgsIndex, pwd == null ? new File("").getAbsoluteFile() : pwd, env, io);
+		}
+		JavaMain javaMain = timeoutMs < 0 ? getInProcessJavaMain(args, i, pwd, env) : null;
+		if( javaMain != null ) {
+			List<Closeable> toClose = new ArrayList<Closeable>();
+			try {
+				return runJavaMain(javaMain, openRedirects(io, toClose));
+			} finally {
+				closeAll(toClose);
+			}
+		}
+		
+		CommandMetrics metrics = CURRENT_METRICS.get();
+		Trace trace = getTrace(env);
+		long traceStartUs = trace == null ? 0 : Trace.nowUs();
+		long startNs = metrics == null ? 0 : System.nanoTime();
+		String[] resolvedArgs = resolveSysProcArgs(args, i, env);
+		if( metrics != null ) {
+			long now = System.nanoTime();
+			metrics.pathSearchNs = now - startNs;
+			metrics.program = resolvedArgs[0];
+			startNs = now;
+		}
+		ProcessBuilder pb = makeProcessBuilder(resolvedArgs, pwd, env, io);
+		Process proc;
+		
 		try {
-			Properties props = new Properties();
-			props.load(is);
-			HashMap<String,String> newEnv = new HashMap<String,String>(env);
-			for( Map.Entry<Object,Object> entry : props.entrySet() ) newEnv.put(entry.getKey().toString(), entry.getValue().toString());
-			return newEnv;
-		} finally {
-			is.close();
+			long spawnStartUs = trace == null ? 0 : Trace.nowUs();
+			proc = pb.start();
+			if( metrics != null ) {
+				metrics.processStartedNs = System.nanoTime();
+				metrics.spawnNs = metrics.processStartedNs - startNs;
+			}
+			if( trace != null ) trace.span("process", "spawn", spawnStartUs, null);
+		} catch (IOException e) {
+			printError(io[2], "Failed to run process "+debug(resolvedArgs)+" (pwd="+pwd+"); exception: "+e.getMessage());
+			return EXIT_CODE_COMMAND_NOT_FOUND;
+		}
+		List<Piper> pipers;
+		try {
+			pipers = startPipers(proc, pb, io, metrics, trace);
+		} catch( IOException e ) {
+			proc.destroy();
+			printError(io[2], "Failed to connect to process "+debug(resolvedArgs)+": "+e);
+			return EXIT_CODE_PIPING_ERROR;
+		}
+		int exitCode = waitForSysProc(proc, pipers, resolvedArgs, pwd, io[2], timeoutMs, killAfterMs, metrics);
+		if( trace != null ) {
+			trace.span("process", new File(resolvedArgs[0]).getName(), traceStartUs, "{\"argv\":"+jsonStringArray(resolvedArgs)+",\"exitCode\":"+exitCode+"}");
 		}
+		return exitCode;
 	}
 	
-	protected static String HELP_TEXT =
-		"Usage: jcr36 [jcr:docmd] [<opts>] [<k>=<v> ...] [--] <command> [<arg> ...]\n"+
-		"\n"+
-		"Options:\n"+
-		"  --cd=<dir>  ; use <dir> as the pwd for the following command\n"+
-		"  --clear-env ; do not inherit environment variables\n"+
-		"  --load-env-from-properties-file=<file|uri>\n"+
-		"\n"+
-		"Commands:\n"+
-		"  # Set environment variables and run the specified sub-command:\n"+
-		"  jcr:docmd [<k>=<v> ...] <command> [<arg> ...]\n"+
-		"  \n"+
-		"  # print words, separated by <separator> (defauls: one space);\n"+
-		"  # -n to omit otherwise-implicit trailing newline:\n"+
-		"  jcr:print [-n] [--ofs=<separator>] [--] [<word> ...]\n"+
-		"  \n"+
-		"  # Re-run a command until it exits with code 0:\n" +
-		"  jcr:until [--delay=<n>[s|ms]] <command> ...\n" +
-		"  \n"+
-		"  # Exit with status code:\n"+
-		"  jrc:exit [<code>]";
+	public static int doSysProc(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+		return doSysProc(args, i, pwd, env, io, -1, getDefaultKillAfterMs());
+	}
 	
-	static final Pattern LOAD_ENV_FROM_PROPERTIES_FILE_PATTERN = Pattern.compile("--load-env-from-properties-file=(.*)");
-	static final Pattern CD_PATTERN = Pattern.compile("--cd=(.*)");
+	//// Pipelines
 	
-	public static int doJcrDoCmd(String[] args, int i, File pwd, Map<String,String> parentEnv, Object[] io)
-	{
-		Map<String,String> env = parentEnv;
-		boolean allowOpts = true;
-		Matcher m;
-		for( ; i<args.length; ++i ) {
-			if( allowOpts ) {
-				int eqidx = args[i].indexOf('=');
-				if( "--clear-env".equals(args[i]) ) {
-					// That's right; it even clears the standard aliases!
-					env = parentEnv = Collections.emptyMap();
-					continue;
-				} else if( "--".equals(args[i]) ) {
-					allowOpts = false;
-					continue;
-				} else if( "--version".equals(args[i]) ) {
-					return doJcrPrint(new String[] { VERSION }, 0, toPrintStream(io[1]));
-				} else if( "--help".equals(args[i]) ) {
-					return doJcrPrint(new String[] { VERSION, "\n", "\n", HELP_TEXT }, 0, toPrintStream(io[1]));
-				} else if( (m = LOAD_ENV_FROM_PROPERTIES_FILE_PATTERN.matcher(args[i])).matches() ) {
-					try {
-						env = parentEnv = loadEnvFromPropertiesFile(m.group(1), pwd, env);
-					} catch( IOException e ) {
-						throw new RuntimeException("Error reading from properties file '"+m.group(1)+"'", e);
+	/**
+	 * An in-memory pipe with a fixed-size buffer,
+	 * for connecting commands that run within the JVM.
+	 * Writes block while the buffer is full;
+	 * once the input end is closed, writes fail, like a broken OS pipe.
+	 */
+	static class BoundedPipe {
+		protected final byte[] buffer;
+		protected int readPos = 0, count = 0;
+		protected boolean inputClosed = false, outputClosed = false;
+		
+		public BoundedPipe(int size) {
+			buffer = new byte[size];
+		}
+		
+		public final InputStream inputStream = new InputStream() {
+			@Override public int read() throws IOException {
+				byte[] buf = new byte[1];
+				return read(buf, 0, 1) <= 0 ? -1 : buf[0]&0xFF;
+			}
+			@Override public int read(byte[] buf, int off, int len) throws IOException {
+				if( len == 0 ) return 0;
+				synchronized( BoundedPipe.this ) {
+					while( count == 0 ) {
+						if( outputClosed ) return -1;
+						if( inputClosed ) throw new IOException("Pipe closed");
+						waitForChange();
 					}
-					continue;
-				} else if( (m = CD_PATTERN.matcher(args[i])).matches() ) {
-					pwd = new File(resolveFilePath(pwd, m.group(1), false));
-					continue;
-				} else if( args[i].startsWith("-") ) {
-					System.err.println("Unrecognized option: "+quote(args[i]));
-					return 1;
-				} else if( eqidx >= 1 ) {
-					if( env == parentEnv ) env = new HashMap<String,String>(parentEnv);
-					env.put(args[i].substring(0,eqidx), args[i].substring(eqidx+1));
-					continue;
+					int z = Math.min(len, Math.min(count, buffer.length - readPos));
+					System.arraycopy(buffer, readPos, buf, off, z);
+					readPos = (readPos + z) % buffer.length;
+					count -= z;
+					BoundedPipe.this.notifyAll();
+					return z;
 				}
 			}
-			
-			String cmd = dealiasCommand(args[i], env);
-			if( CMD_CAT.equals(cmd) ) {
-				return doJcrCat(args, i+1, pwd, env, io);
-			} else if( CMD_DOCMD.equals(cmd) ) {
-				allowOpts = true;
-			} else if( CMD_EXIT.equals(cmd) ) {
-				return doJcrExit(args, i+1);
-			} else if( CMD_FINDEXE.equals(cmd) ) {
-				return doFindExe(args, i+1, env, toPrintStream(io[1]), toPrintStream(io[2]));
-			} else if( CMD_PRINT.equals(cmd) ) {
-				return doJcrPrint(args, i+1, toPrintStream(io[1]));
-			} else if( CMD_PRINTENV.equals(cmd) ) {
-				return doJcrPrintEnv(args, i+1, env, io);
-			} else if( CMD_RUNSYSPROC.equals(cmd) ) {
-				return doSysProc(args, i+1, pwd, env, io);
-			} else if( CMD_UNTIL.equals(cmd) ) {
-				return doUntil(args, i+1, pwd, env, io);
-			} else {
-				return doSysProc(args, i, pwd, env, io);
+			@Override public void close() {
+				synchronized( BoundedPipe.this ) {
+					inputClosed = true;
+					BoundedPipe.this.notifyAll();
+				}
 			}
-		}
-		return 0;
+		};
+		
+		public final OutputStream outputStream = new OutputStream() {
+			@Override public void write(int b) throws IOException {
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+			@Override public void write(byte[] buf, int off, int len) throws IOException {
+				synchronized( BoundedPipe.this ) {
+					while( len > 0 ) {
+						while( count == buffer.length && !inputClosed ) waitForChange();
+						if( inputClosed ) throw new IOException("Broken pipe");
+						if( outputClosed ) throw new IOException("Pipe closed");
+						int writePos = (readPos + count) % buffer.length;
+						int z = Math.min(len, Math.min(buffer.length - count, buffer.length - writePos));
+						System.arraycopy(buf, off, buffer, writePos, z);
+						count += z;
+						off += z;
+						len -= z;
+						BoundedPipe.this.notifyAll();
+					}
+				}
+			}
+			@Override public void close() {
+				synchronized( BoundedPipe.this ) {
+					outputClosed = true;
+					BoundedPipe.this.notifyAll();
+				}
+			}
+		};
+		
+		protected void waitForChange() throws InterruptedIOException {
+			try {
+				wait();
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+	
+	static Method startPipelineMethod;
+	static boolean startPipelineMethodLookedUp = false;
+	
+	static synchronized Method getStartPipelineMethod() {
+		if( !startPipelineMethodLookedUp ) {
+			try {
+				// Java 9+
+				startPipelineMethod = ProcessBuilder.class.getMethod("startPipeline", List.class);
+			} catch( NoSuchMethodException e ) {
+				startPipelineMethod = null;
+			}
+			startPipelineMethodLookedUp = true;
+		}
+		return startPipelineMethod;
+	}
+	
+	/**
+	 * Start processes with each one's stdout connected to the next one's stdin.
+	 * Where the JVM supports it, these are OS-level pipes;
+	 * otherwise Pipers will copy between them.
+	 */
+	static List<Process> startPipeline(List<ProcessBuilder> pbs) throws IOException {
+		Method m = pbs.size() > 1 ? getStartPipelineMethod() : null;
+		if( m != null ) {
+			try {
+				@SuppressWarnings("unchecked")
+				List<Process> procs = (List<Process>)m.invoke(null, pbs);
+				return procs;
+			} catch( InvocationTargetException e ) {
+				if( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+				if( e.getCause() instanceof RuntimeException ) throw (RuntimeException)e.getCause();
+				throw new RuntimeException(e.getCause());
+			} catch( IllegalAccessException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		ArrayList<Process> procs = new ArrayList<Process>();
+		try {
+			for( ProcessBuilder pb : pbs ) procs.add(pb.start());
+		} catch( IOException e ) {
+			for( Process proc : procs ) proc.destroy();
+			throw e;
+		}
+		for( int k=0; k+1<procs.size(); ++k ) {
+			Piper.start(procs.get(k).getInputStream(), true, procs.get(k+1).getOutputStream(), true);
+		}
+		return procs;
+	}
+	
+	static List<String[]> splitSubCommands(String[] args, int i, String separator) {
+		ArrayList<String[]> commands = new ArrayList<String[]>();
+		int start = i;
+		for( ; i<=args.length; ++i ) {
+			if( i == args.length || separator.equals(args[i]) ) {
+				commands.add(Arrays.copyOfRange(args, start, i));
+				start = i+1;
+			}
+		}
+		return commands;
+	}
+	
+	static final Pattern PIPEFAIL_OPTPAT = Pattern.compile("^--pipefail(?:=(off|rightmost|leftmost))?$");
+	static final Pattern SEPARATOR_OPTPAT = Pattern.compile("^--separator=(.+)$");
+	static final int IN_PROCESS_PIPE_BUFFER_SIZE = 65536;
+	
+	static void closeQuietly(Object stream) {
+		if( stream instanceof Closeable ) try {
+			((Closeable)stream).close();
+		} catch( IOException e ) { }
+	}
+	
+	/**
+	 * Run each stage of a pipeline, connecting each stage's stdout to the next one's stdin.
+	 * Consecutive system processes are connected by OS pipes (when supported);
+	 * commands that run in the JVM read/write directly from/to neighboring processes,
+	 * or through a BoundedPipe when their neighbor is also in-process.
+	 * 
+	 * Each stage's IO should be the pipeline's IO, except that the connections
+	 * between stages are represented by Redirect.PIPE.  Stages may have overridden
+	 * those (e.g. with --stdout=<file>), in which case that connection is
+	 * not made, and the downstream stage gets empty input.
+	 * 
+	 * @return each stage's exit code
+	 */
+	static int[] runPipeline(final JCRAction[] stages, Object stdErr) {
+		final int n = stages.length;
+		final int[] exitCodes = new int[n];
+		boolean[] connected = new boolean[n];
+		for( int k=0; k+1<n; ++k ) {
+			connected[k] = stages[k].io[1] == Redirect.PIPE && stages[k+1].io[0] == Redirect.PIPE;
+		}
+		
+		Object[][] stageIo = new Object[n][];
+		for( int k=0; k<n; ++k ) stageIo[k] = stages[k].io.clone();
+		
+		String[][] resolvedArgs = new String[n][];
+		ProcessBuilder[] pbs = new ProcessBuilder[n];
+		Process[] procs = new Process[n];
+		long startTime = System.currentTimeMillis();
+		
+		try {
+			for( int k=0; k<n; ) {
+				if( !stages[k].isSysProc() ) {
+					++k;
+					continue;
+				}
+				// Find consecutive system processes that can be hooked up directly
+				ArrayList<ProcessBuilder> group = new ArrayList<ProcessBuilder>();
+				int j = k;
+				while( true ) {
+					resolvedArgs[j] = resolveSysProcArgs(stages[j].args, stages[j].sysProcIndex(), stages[j].env);
+					pbs[j] = makeProcessBuilder(resolvedArgs[j], stages[j].pwd, stages[j].env, stages[j].io);
+					group.add(pbs[j]);
+					if( j+1 < n && connected[j] && stages[j+1].isSysProc() ) {
+						++j;
+					} else {
+						break;
+					}
+				}
+				try {
+					List<Process> started = startPipeline(group);
+					for( int g=0; g<started.size(); ++g ) procs[k+g] = started.get(g);
+				} catch( IOException e ) {
+					printError(stdErr, "Failed to run pipeline stage(s) "+debug(resolvedArgs[k])+"... : "+e.getMessage());
+					for( Process proc : procs ) if( proc != null ) proc.destroy();
+					Arrays.fill(exitCodes, EXIT_CODE_COMMAND_NOT_FOUND);
+					return exitCodes;
+				}
+				k = j+1;
+			}
+			
+			// Hook up connections that don't go directly between processes
+			for( int k=0; k<n; ++k ) {
+				boolean connectedIn = k > 0 && connected[k-1];
+				boolean connectedOut = k+1 < n && connected[k];
+				if( stageIo[k][0] == Redirect.PIPE ) {
+					if( !connectedIn ) {
+						stageIo[k][0] = null;
+					} else if( procs[k] == null && procs[k-1] != null ) {
+						stageIo[k][0] = procs[k-1].getInputStream();
+					}
+				}
+				if( stageIo[k][1] == Redirect.PIPE ) {
+					if( !connectedOut ) {
+						stageIo[k][1] = null;
+					} else if( procs[k] == null ) {
+						if( procs[k+1] != null ) {
+							stageIo[k][1] = procs[k+1].getOutputStream();
+						} else {
+							BoundedPipe pipe = new BoundedPipe(IN_PROCESS_PIPE_BUFFER_SIZE);
+							stageIo[k][1] = pipe.outputStream;
+							stageIo[k+1][0] = pipe.inputStream;
+						}
+					}
+				}
+				// Merged stdout+stderr for an in-process stage
+				if( procs[k] == null && stages[k].io[2] == stages[k].io[1] ) stageIo[k][2] = stageIo[k][1];
+			}
+			
+			List<List<Piper>> pipers = new ArrayList<List<Piper>>(n);
+			for( int k=0; k<n; ++k ) {
+				pipers.add(procs[k] != null ? startPipers(procs[k], pbs[k], stageIo[k]) : null);
+			}
+			
+			CountDownLatch inProcessDone = new CountDownLatch(n);
+			final Thread[] inProcessThreads = new Thread[n];
+			for( int k=0; k<n; ++k ) {
+				if( procs[k] != null ) {
+					inProcessDone.countDown();
+					continue;
+				}
+				final int stageIndex = k;
+				final JCRAction stage = stages[k].withIo(stageIo[k]);
+				final CountDownLatch done = inProcessDone;
+				final Object err = stdErr;
+				// Not queued, for the same reasons that Pipers aren't
+				PUMP_EXECUTOR.execute(new Runnable() {
+					@Override public void run() {
+						inProcessThreads[stageIndex] = Thread.currentThread();
+						ArrayList<Closeable> toClose = new ArrayList<Closeable>();
+						try {
+							exitCodes[stageIndex] = runAction(stage, toClose);
+						} catch( Exception e ) {
+							printError(err, "Error in pipeline stage "+stageIndex+": "+e);
+							exitCodes[stageIndex] = 1;
+						} finally {
+							closeAll(toClose);
+							// Let the neighbors know that we're done
+							if( stage.io[0] != stages[stageIndex].io[0] ) closeQuietly(stage.io[0]);
+							if( stage.io[1] != stages[stageIndex].io[1] ) closeQuietly(stage.io[1]);
+							inProcessThreads[stageIndex] = null;
+							done.countDown();
+						}
+					}
+				});
+			}
+			
+			try {
+				for( int k=0; k<n; ++k ) {
+					if( procs[k] != null ) {
+						long timeoutMs = stages[k].timeoutMs < 0 ? -1 :
+							Math.max(0, stages[k].timeoutMs - (System.currentTimeMillis() - startTime));
+						exitCodes[k] = waitForSysProc(procs[k], pipers.get(k), resolvedArgs[k], stages[k].pwd, stdErr, timeoutMs, stages[k].killAfterMs);
+						if( Thread.currentThread().isInterrupted() ) throw new InterruptedException();
+					}
+				}
+				inProcessDone.await();
+			} catch( InterruptedException e ) {
+				ArrayList<Process> running = new ArrayList<Process>();
+				for( Process proc : procs ) if( proc != null ) running.add(proc);
+				for( Thread t : inProcessThreads ) if( t != null ) t.interrupt();
+				boolean killed = terminateProcessTrees(running, getDefaultKillAfterMs());
+				// Including any that were killed before we got here
+				for( int code : exitCodes ) if( code == EXIT_CODE_SIGKILLED ) killed = true;
+				Thread.currentThread().interrupt();
+				Arrays.fill(exitCodes, killed ? EXIT_CODE_SIGKILLED : EXIT_CODE_INTERRUPTED);
+			}
+			return exitCodes;
+		} catch( IOException e ) {
+			for( Process proc : procs ) if( proc != null ) proc.destroy();
+			printError(stdErr, "Failed to connect pipeline stages: "+e);
+			Arrays.fill(exitCodes, EXIT_CODE_PIPING_ERROR);
+			return exitCodes;
+		}
+	}
+	
+	public static int doPipe(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+		String pipefail = "off";
+		String separator = "|";
+		Matcher m;
+		for( ; i<args.length; ++i ) {
+			if( (m = PIPEFAIL_OPTPAT.matcher(args[i])).matches() ) {
+				pipefail = m.group(1) == null ? "rightmost" : m.group(1);
+			} else if( (m = SEPARATOR_OPTPAT.matcher(args[i])).matches() ) {
+				separator = m.group(1);
+			} else if( "--".equals(args[i]) ) {
+				++i;
+				break;
+			} else {
+				// Anything we don't recognize, let the first stage's doJcrDoCmd handle it
+				break;
+			}
+		}
+		
+		List<String[]> stageArgs = splitSubCommands(args, i, separator);
+		int n = stageArgs.size();
+		for( String[] sa : stageArgs ) {
+			if( sa.length == 0 ) {
+				printError(io[2], "jcr:pipe: Empty pipeline stage");
+				return EXIT_CODE_USAGE_ERROR;
+			}
+		}
+		
+		ArrayList<Closeable> toClose = new ArrayList<Closeable>();
+		try {
+			JCRAction[] stages = new JCRAction[n];
+			for( int k=0; k<n; ++k ) {
+				Object[] stageIo = new Object[] {
+					k == 0   ? io[0] : Redirect.PIPE,
+					k == n-1 ? io[1] : Redirect.PIPE,
+					io[2]
+				};
+				stages[k] = JCRCommand.parse(stageArgs.get(k), 0).bind(pwd, env, stageIo);
+				stages[k] = stages[k].withIo(openUriInput(stages[k].io, toClose));
+			}
+			int[] exitCodes = runPipeline(stages, io[2]);
+			if( "rightmost".equals(pipefail) ) {
+				for( int k=n-1; k>=0; --k ) if( exitCodes[k] != 0 ) return exitCodes[k];
+				return 0;
+			} else if( "leftmost".equals(pipefail) ) {
+				for( int k=0; k<n; ++k ) if( exitCodes[k] != 0 ) return exitCodes[k];
+				return 0;
+			} else {
+				return exitCodes[n-1];
+			}
+		} finally {
+			closeAll(toClose);
+		}
+	}
+	
+	//// Parallel execution
+	
+	/** How much of a job's output is kept in memory before being moved to a temporary file */
+	static final int JOB_OUTPUT_MEMORY_LIMIT = 1024*1024;
+	static final int MAX_JOBS = 1024;
+	
+	/**
+	 * Collects output in memory, moving it to a temporary file once there's
+	 * more than memoryLimit bytes of it, so that a chatty job can't exhaust the heap.
+	 * Call dispose() when done with it to delete the file.
+	 */
+	static class SpillBuffer extends OutputStream {
+		protected final int memoryLimit;
+		protected ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		protected File file;
+		protected OutputStream fileOut;
+		protected long size = 0;
+		
+		public SpillBuffer(int memoryLimit) {
+			this.memoryLimit = memoryLimit;
+		}
+		
+		@Override public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		// Synchronized since a process's stdout and stderr may both be written here
+		@Override public synchronized void write(byte[] buf, int off, int len) throws IOException {
+			if( fileOut == null && memory.size() + (long)len > memoryLimit ) {
+				file = File.createTempFile("jcr36-job-", ".out");
+				fileOut = new BufferedOutputStream(new FileOutputStream(file));
+				memory.writeTo(fileOut);
+				memory = null;
+			}
+			if( fileOut != null ) {
+				fileOut.write(buf, off, len);
+			} else {
+				memory.write(buf, off, len);
+			}
+			size += len;
+		}
+		
+		public synchronized long size() {
+			return size;
+		}
+		
+		/** Copy everything written so far to out, which writes to the same place as dest */
+		public synchronized void writeTo(Object dest, OutputStream out) throws IOException {
+			if( fileOut == null ) {
+				memory.writeTo(out);
+				return;
+			}
+			fileOut.flush();
+			InputStream in = new FileInputStream(file);
+			try {
+				copy(in, dest, out, new byte[COPY_BUFFER_SIZE]);
+			} finally {
+				in.close();
+			}
+		}
+		
+		public synchronized void dispose() {
+			if( fileOut != null ) {
+				closeQuietly(fileOut);
+				file.delete();
+				fileOut = null;
+			}
+			memory = null;
+		}
+	}
+	
+	/** @return the number of jobs given as a string of digits, or MAX_JOBS+1 if there are too many to count */
+	static int parseJobCount(String digits) {
+		return digits.length() > 9 ? MAX_JOBS + 1 : Integer.parseInt(digits);
+	}
+	
+	/**
+	 * Runs jobs (each a jcr:docmd command) on a fixed number of threads.
+	 * When there's more than one thread, each job's output is buffered (in a SpillBuffer)
+	 * and written to the real stdout/stderr all at once when the job finishes,
+	 * so that outputs of concurrent jobs don't get mixed up.
+	 */
+	static class JobRunner {
+		protected final ExecutorService executor;
+		protected final Semaphore slots;
+		protected final boolean failFast;
+		protected final boolean buffered;
+		protected final Object[] io;
+		protected final Set<Future<?>> running = Collections.synchronizedSet(new HashSet<Future<?>>());
+		protected volatile boolean failed = false;
+		// Guarded by this:
+		protected int failedJobIndex = Integer.MAX_VALUE;
+		protected int failedExitCode = 0;
+		
+		/**
+		 * @param io stdout and stderr should be streams (or null), not Redirects
+		 */
+		public JobRunner(int jobs, boolean failFast, Object[] io) {
+			this.executor = Executors.newFixedThreadPool(jobs, DAEMON_THREAD_FACTORY);
+			this.slots = new Semaphore(jobs);
+			this.failFast = failFast;
+			this.buffered = jobs > 1;
+			this.io = io;
+		}
+		
+		public boolean isFailed() {
+			return failed;
+		}
+		
+		/**
+		 * Wait for a free slot and then start the job.
+		 * @return false if the job wasn't started because an earlier one
+		 *   failed and we're in fail-fast mode.
+		 */
+		public boolean submit(final int index, final String[] args, final File pwd, final Map<String,String> env) throws InterruptedException {
+			if( failFast && failed ) return false;
+			slots.acquire();
+			if( failFast && failed ) {
+				slots.release();
+				return false;
+			}
+			final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+				@Override public void run() {
+					runJob(index, args, pwd, env);
+				}
+			}, null);
+			running.add(task);
+			executor.execute(new Runnable() {
+				@Override public void run() {
+					try {
+						task.run();
+					} finally {
+						running.remove(task);
+						slots.release();
+						jobFinished(index);
+					}
+				}
+			});
+			return true;
+		}
+		
+		protected void runJob(int index, String[] args, File pwd, Map<String,String> env) {
+			// One job at a time can't get mixed up with any other, so needn't be buffered
+			SpillBuffer outBuf = io[1] == null || !buffered ? null : new SpillBuffer(JOB_OUTPUT_MEMORY_LIMIT);
+			SpillBuffer errBuf = io[2] == null || !buffered ? null : io[2] == io[1] ? outBuf : new SpillBuffer(JOB_OUTPUT_MEMORY_LIMIT);
+			Object out = buffered ? outBuf : io[1];
+			Object err = buffered ? errBuf : io[2];
+			int exitCode;
+			try {
+				exitCode = doJcrDoCmd(args, 0, pwd, env, new Object[] { null, out, err });
+			} catch( Exception e ) {
+				if( err != null ) {
+					PrintStream ps = toPrintStream(err);
+					e.printStackTrace(ps);
+					ps.flush();
+				}
+				exitCode = 1;
+			}
+			boolean cancelled = Thread.interrupted();
+			
+			try {
+				synchronized( io ) {
+					if( outBuf != null && outBuf.size() > 0 ) {
+						OutputStream os = totOutputStream(io[1]);
+						outBuf.writeTo(io[1], os);
+						os.flush();
+					}
+					if( errBuf != null && errBuf != outBuf && errBuf.size() > 0 ) {
+						OutputStream os = totOutputStream(io[2]);
+						errBuf.writeTo(io[2], os);
+						os.flush();
+					}
+				}
+			} catch( IOException e ) {
+				if( exitCode == 0 ) exitCode = EXIT_CODE_PIPING_ERROR;
+			} finally {
+				if( outBuf != null ) outBuf.dispose();
+				if( errBuf != null ) errBuf.dispose();
+			}
+			
+			if( exitCode == 0 && !cancelled ) {
+				try {
+					jobSucceeded(index);
+				} catch( IOException e ) {
+					synchronized( io ) {
+						printError(io[2], "Error recording completion of job "+index+": "+e.getMessage());
+					}
+					exitCode = 1;
+				}
+			}
+			
+			if( exitCode != 0 && !cancelled ) {
+				synchronized( this ) {
+					if( index < failedJobIndex ) {
+						failedJobIndex = index;
+						failedExitCode = exitCode;
+					}
+				}
+				if( !failed ) {
+					failed = true;
+					if( failFast ) cancel();
+				}
+			}
+		}
+		
+		/** Called after a job completes successfully and its output has been written */
+		protected void jobSucceeded(int index) throws IOException { }
+		
+		/** Called once a submitted job is done with, whether it succeeded, failed, or was cancelled */
+		protected void jobFinished(int index) { }
+		
+		/** Interrupt all running jobs */
+		public void cancel() {
+			synchronized( running ) {
+				for( Future<?> f : running ) f.cancel(true);
+			}
+		}
+		
+		/**
+		 * Wait for all submitted jobs to finish.
+		 * @return 0 if all jobs succeeded, otherwise the exit code of the
+		 *   lowest-numbered job that failed (not counting those cancelled by fail-fast)
+		 */
+		public int finish() {
+			executor.shutdown();
+			try {
+				while( !executor.awaitTermination(1, TimeUnit.DAYS) );
+			} catch( InterruptedException e ) {
+				cancel();
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				return EXIT_CODE_INTERRUPTED;
+			}
+			synchronized( this ) {
+				return failedExitCode;
+			}
+		}
+	}
+	
+	static final Pattern JOBS_OPTPAT = Pattern.compile("^--jobs=(\\d+)$");
+	
+	public static int doParallel(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+		int jobs = Runtime.getRuntime().availableProcessors();
+		boolean failFast = false;
+		String separator = ";";
+		Matcher m;
+		for( ; i<args.length; ++i ) {
+			if( (m = JOBS_OPTPAT.matcher(args[i])).matches() ) {
+				jobs = parseJobCount(m.group(1));
+			} else if( "--fail-fast".equals(args[i]) ) {
+				failFast = true;
+			} else if( (m = SEPARATOR_OPTPAT.matcher(args[i])).matches() ) {
+				separator = m.group(1);
+			} else if( "--".equals(args[i]) ) {
+				++i;
+				break;
+			} else {
+				// Anything we don't recognize, let the first job's doJcrDoCmd handle it
+				break;
+			}
+		}
+		if( jobs < 1 || jobs > MAX_JOBS ) {
+			printError(io[2], "jcr:parallel: --jobs must be between 1 and "+MAX_JOBS);
+			return EXIT_CODE_USAGE_ERROR;
+		}
+		if( i == args.length ) return 0;
+		
+		List<String[]> commands = splitSubCommands(args, i, separator);
+		for( String[] command : commands ) {
+			if( command.length == 0 ) {
+				printError(io[2], "jcr:parallel: Empty command");
+				return EXIT_CODE_USAGE_ERROR;
+			}
+		}
+		
+		JobRunner runner = new JobRunner(Math.min(jobs, commands.size()), failFast, io);
+		try {
+			for( int k=0; k<commands.size(); ++k ) {
+				if( !runner.submit(k, commands.get(k), pwd, env) ) break;
+			}
+		} catch( InterruptedException e ) {
+			runner.cancel();
+			Thread.currentThread().interrupt();
+		}
+		return runner.finish();
+	}
+	
+	/** Reads delimiter-separated records, skipping empty ones */
+	static class RecordReader {
+		protected final InputStream in;
+		protected final int delimiter;
+		protected final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		
+		public RecordReader(InputStream in, int delimiter) {
+			this.in = new BufferedInputStream(in);
+			this.delimiter = delimiter;
+		}
+		
+		/** @return the next record, or null at end of input */
+		public String next() throws IOException {
+			int c;
+			while( (c = in.read()) != -1 ) {
+				if( c != delimiter ) {
+					buf.write(c);
+				} else if( buf.size() > 0 ) {
+					return take();
+				}
+			}
+			return buf.size() > 0 ? take() : null;
+		}
+		
+		protected String take() {
+			String record = new String(buf.toByteArray(), UTF8);
+			buf.reset();
+			return record;
+		}
+	}
+	
+	static final Pattern INTEGER_PATTERN = Pattern.compile("^\\d+$");
+	
+	/**
+	 * Journal lines are "<record number> <SHA-1 of record>".  Records are matched
+	 * by their hash, so a rerun skips the right ones even if the input has been
+	 * reordered, filtered, or added to; the number is only for the benefit of humans.
+	 */
+	static final Pattern JOURNAL_LINE_PATTERN = Pattern.compile("^\\d+ ([A-Z2-7]{32})$");
+	
+	static String journalHash(String record) {
+		try {
+			return base32Encode(MessageDigest.getInstance("SHA-1").digest(record.getBytes(UTF8)));
+		} catch( NoSuchAlgorithmException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Load the hashes of records that a previous run recorded as done,
+	 * each mapped to the number of times it was done (records may be repeated)
+	 */
+	static Map<String,Integer> loadJournal(File file) throws IOException {
+		Map<String,Integer> done = new HashMap<String,Integer>();
+		if( !file.exists() ) return done;
+		BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			String line;
+			Matcher m;
+			while( (line = r.readLine()) != null ) {
+				// Ignore anything unparseable, e.g. a line cut off by a crash
+				if( (m = JOURNAL_LINE_PATTERN.matcher(line.trim())).matches() ) {
+					Integer count = done.get(m.group(1));
+					done.put(m.group(1), count == null ? 1 : count + 1);
+				}
+			}
+		} finally {
+			r.close();
+		}
+		return done;
+	}
+	
+	/**
+	 * Replace occurrences of placeholder in the template with the record,
+	 * or append the record as a final argument if there are none.
+	 */
+	static String[] substituteRecord(String[] template, String placeholder, String record) {
+		String[] result = new String[template.length];
+		boolean replaced = false;
+		for( int k=0; k<template.length; ++k ) {
+			if( template[k].contains(placeholder) ) {
+				result[k] = template[k].replace(placeholder, record);
+				replaced = true;
+			} else {
+				result[k] = template[k];
+			}
+		}
+		if( !replaced ) {
+			result = Arrays.copyOf(template, template.length+1);
+			result[template.length] = record;
+		}
+		return result;
+	}
+	
+	static final Pattern INPUT_OPTPAT = Pattern.compile("^--input=(.*)$");
+	static final Pattern REPLACE_OPTPAT = Pattern.compile("^--replace=(.+)$");
+	static final Pattern JOURNAL_OPTPAT = Pattern.compile("^--journal=(.+)$");
+	static final Pattern SHORT_JOBS_OPTPAT = Pattern.compile("^-P(\\d+)$");
+	
+	public static int doForeach(String[] args, int i, File pwd, Map<String,String> env, final Object[] io) {
+		int jobs = 1;
+		boolean failFast = false;
+		int delimiter = '\n';
+		String inputName = null;
+		String placeholder = "{}";
+		String journalName = null;
+		Matcher m;
+		for( ; i<args.length; ++i ) {
+			if( "-0".equals(args[i]) || "--null".equals(args[i]) ) {
+				delimiter = 0;
+			} else if( "-P".equals(args[i]) && i+1 < args.length && INTEGER_PATTERN.matcher(args[i+1]).matches() ) {
+				jobs = parseJobCount(args[++i]);
+			} else if( (m = SHORT_JOBS_OPTPAT.matcher(args[i])).matches() || (m = JOBS_OPTPAT.matcher(args[i])).matches() ) {
+				jobs = parseJobCount(m.group(1));
+			} else if( "--fail-fast".equals(args[i]) ) {
+				failFast = true;
+			} else if( (m = INPUT_OPTPAT.matcher(args[i])).matches() ) {
+				inputName = m.group(1);
+			} else if( (m = REPLACE_OPTPAT.matcher(args[i])).matches() ) {
+				placeholder = m.group(1);
+			} else if( (m = JOURNAL_OPTPAT.matcher(args[i])).matches() ) {
+				journalName = m.group(1);
+			} else if( "--".equals(args[i]) ) {
+				++i;
+				break;
+			} else {
+				// Anything we don't recognize, let each job's doJcrDoCmd handle it
+				break;
+			}
+		}
+		if( jobs < 1 || jobs > MAX_JOBS ) {
+			printError(io[2], "jcr:foreach: Number of jobs must be between 1 and "+MAX_JOBS);
+			return EXIT_CODE_USAGE_ERROR;
+		}
+		if( i == args.length ) {
+			printError(io[2], "jcr:foreach: No command given");
+			return EXIT_CODE_USAGE_ERROR;
+		}
+		String[] template = Arrays.copyOfRange(args, i, args.length);
+		
+		InputStream in = null;
+		FileOutputStream journalOut = null;
+		try {
+			in = inputName == null ? toInputStream(io[0]) : getInputStream(inputName, pwd, env);
+			Map<String,Integer> done = new HashMap<String,Integer>();
+			if( journalName != null ) {
+				File journalFile = new File(resolveFilePath(pwd, journalName, false));
+				done = loadJournal(journalFile);
+				journalOut = new FileOutputStream(journalFile, true);
+			}
+			final FileOutputStream journal = journalOut;
+			final ConcurrentHashMap<Integer,String> runningHashes = new ConcurrentHashMap<Integer,String>();
+			JobRunner runner = new JobRunner(jobs, failFast, io) {
+				@Override protected void jobSucceeded(int index) throws IOException {
+					String hash = runningHashes.get(index);
+					if( journal == null ) return;
+					byte[] line = (index+" "+hash+"\n").getBytes(UTF8);
+					// One write per line, so that a crash can't interleave partial lines
+					synchronized( journal ) {
+						journal.write(line);
+					}
+				}
+				@Override protected void jobFinished(int index) {
+					runningHashes.remove(index);
+				}
+			};
+			
+			RecordReader records = new RecordReader(in, delimiter);
+			String record;
+			try {
+				for( int index=0; (record = records.next()) != null; ++index ) {
+					if( journal != null ) {
+						String hash = journalHash(record);
+						Integer doneCount = done.get(hash);
+						if( doneCount != null ) {
+							if( doneCount == 1 ) done.remove(hash); else done.put(hash, doneCount - 1);
+							continue;
+						}
+						runningHashes.put(index, hash);
+					}
+					if( !runner.submit(index, substituteRecord(template, placeholder, record), pwd, env) ) {
+						runningHashes.remove(index);
+						break;
+					}
+				}
+			} catch( InterruptedException e ) {
+				runner.cancel();
+				Thread.currentThread().interrupt();
+			} catch( IOException e ) {
+				runner.cancel();
+				runner.finish();
+				printError(io[2], "jcr:foreach: Error reading input: "+e.getMessage());
+				return 1;
+			}
+			return runner.finish();
+		} catch( IOException e ) {
+			printError(io[2], "jcr:foreach: "+e.getMessage());
+			return 1;
+		} finally {
+			if( inputName != null ) closeQuietly(in);
+			closeQuietly(journalOut);
+		}
+	}
+	
+	//// Argument batching
+	
+	static final boolean IS_WINDOWS = File.separatorChar == '\\';
+	static final boolean IS_MAC = System.getProperty("os.name", "").startsWith("Mac");
+	/** Space reserved for things we don't count, like the resolved program path */
+	static final long ARG_SPACE_HEADROOM = 2048;
+	
+	/**
+	 * How much of the OS's argument space an argument (or environment entry)
+	 * takes up.  On Windows that's characters of the command line, including
+	 * quotes and escapes.  Elsewhere it's bytes of the string plus
+	 * its terminating NUL and the pointer to it.
+	 */
+	static long argSize(String arg) {
+		if( IS_WINDOWS ) {
+			long size = arg.length() + 3;
+			for( int k=0; k<arg.length(); ++k ) {
+				char c = arg.charAt(k);
+				if( c == '"' || c == '\\' ) ++size;
+			}
+			return size;
+		} else {
+			return arg.getBytes(UTF8).length + 1 + 8;
+		}
+	}
+	
+	/**
+	 * Estimate the space available for a new process's arguments
+	 * when it is given the specified environment.
+	 */
+	static long getArgSpaceLimit(Map<String,String> env) {
+		if( IS_WINDOWS ) {
+			// CreateProcess's command line limit; the environment block doesn't count
+			return 32767 - ARG_SPACE_HEADROOM;
+		}
+		long limit = IS_MAC ? 262144 : 2097152;
+		for( Map.Entry<String,String> e : env.entrySet() ) {
+			limit -= argSize(e.getKey()+"="+e.getValue());
+		}
+		return limit - ARG_SPACE_HEADROOM;
+	}
+	
+	static final Pattern MAX_CHARS_OPTPAT = Pattern.compile("^--max-chars=(\\d+)$");
+	
+	public static int doBatchArgs(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+		int jobs = 1;
+		boolean failFast = false;
+		int delimiter = '\n';
+		String inputName = null;
+		long limit = -1;
+		Matcher m;
+		for( ; i<args.length; ++i ) {
+			if( "-0".equals(args[i]) || "--null".equals(args[i]) ) {
+				delimiter = 0;
+			} else if( "-P".equals(args[i]) && i+1 < args.length && INTEGER_PATTERN.matcher(args[i+1]).matches() ) {
+				jobs = parseJobCount(args[++i]);
+			} else if( (m = SHORT_JOBS_OPTPAT.matcher(args[i])).matches() || (m = JOBS_OPTPAT.matcher(args[i])).matches() ) {
+				jobs = parseJobCount(m.group(1));
+			} else if( "--fail-fast".equals(args[i]) ) {
+				failFast = true;
+			} else if( (m = INPUT_OPTPAT.matcher(args[i])).matches() ) {
+				inputName = m.group(1);
+			} else if( (m = MAX_CHARS_OPTPAT.matcher(args[i])).matches() ) {
+				limit = Long.parseLong(m.group(1));
+			} else if( "--".equals(args[i]) ) {
+				++i;
+				break;
+			} else {
+				// Anything we don't recognize, let each batch's doJcrDoCmd handle it
+				break;
+			}
+		}
+		if( jobs < 1 || jobs > MAX_JOBS ) {
+			printError(io[2], "jcr:batch-args: Number of jobs must be between 1 and "+MAX_JOBS);
+			return EXIT_CODE_USAGE_ERROR;
+		}
+		if( i == args.length ) {
+			printError(io[2], "jcr:batch-args: No command given");
+			return EXIT_CODE_USAGE_ERROR;
+		}
+		List<String> template = Arrays.asList(args).subList(i, args.length);
+		if( limit < 0 ) limit = getArgSpaceLimit(env);
+		long templateSize = 0;
+		for( String arg : template ) templateSize += argSize(arg);
+		
+		InputStream in = null;
+		try {
+			in = inputName == null ? toInputStream(io[0]) : getInputStream(inputName, pwd, env);
+			JobRunner runner = new JobRunner(jobs, failFast, io);
+			RecordReader records = new RecordReader(in, delimiter);
+			ArrayList<String> batch = new ArrayList<String>(template);
+			long batchSize = templateSize;
+			int batchIndex = 0;
+			String record;
+			try {
+				while( (record = records.next()) != null ) {
+					long size = argSize(record);
+					if( batch.size() > template.size() && batchSize + size > limit ) {
+						// An item too big to fit even by itself still gets a batch of its own,
+						// and whatever complaint the command makes about it.
+						if( !runner.submit(batchIndex++, batch.toArray(new String[batch.size()]), pwd, env) ) {
+							batch = null;
+							break;
+						}
+						batch = new ArrayList<String>(template);
+						batchSize = templateSize;
+					}
+					batch.add(record);
+					batchSize += size;
+				}
+				if( batch != null && batch.size() > template.size() ) {
+					runner.submit(batchIndex++, batch.toArray(new String[batch.size()]), pwd, env);
+				}
+			} catch( InterruptedException e ) {
+				runner.cancel();
+				Thread.currentThread().interrupt();
+			} catch( IOException e ) {
+				runner.cancel();
+				runner.finish();
+				printError(io[2], "jcr:batch-args: Error reading input: "+e.getMessage());
+				return 1;
+			}
+			return runner.finish();
+		} catch( IOException e ) {
+			printError(io[2], "jcr:batch-args: "+e.getMessage());
+			return 1;
+		} finally {
+			if( inputName != null ) closeQuietly(in);
+		}
+	}
+	
+	//// Hashing
+	
+	/**
+	 * The Tiger hash function (the original, with 0x01 padding,
+	 * as used by Tiger tree hashes and bitprints).
+	 * See https://www.cs.technion.ac.il/~biham/Reports/Tiger/
+	 */
+	static class Tiger {
+		static final int DIGEST_LENGTH = 24;
+		
+		static final long[] T1 = new long[256], T2 = new long[256], T3 = new long[256], T4 = new long[256];
+		static {
+			// Rather than listing 8kB of constants, generate the S-boxes
+			// the same way the designers did, which uses the compression
+			// function itself on the (partially generated) tables.
+			long[][] sboxes = { T1, T2, T3, T4 };
+			byte[] seedBytes = "Tiger - A Fast New Hash Function, by Ross Anderson and Eli Biham".getBytes(UTF8);
+			long[] seed = new long[8];
+			for( int i=0; i<8; ++i ) seed[i] = getLongLE(seedBytes, i*8);
+			for( long[] sbox : sboxes ) {
+				for( int i=0; i<256; ++i ) sbox[i] = i * 0x0101010101010101L;
+			}
+			long[] state = { 0x0123456789ABCDEFL, 0xFEDCBA9876543210L, 0xF096A5B4C3B2E187L };
+			int abc = 2;
+			for( int pass=0; pass<5; ++pass ) {
+				for( int i=0; i<256; ++i ) {
+					for( long[] sbox : sboxes ) {
+						if( ++abc == 3 ) {
+							abc = 0;
+							compress(seed, state);
+						}
+						// Swap column 'col' of entry i with that of entry <byte col of state[abc]>
+						for( int col=0; col<8; ++col ) {
+							int shift = col*8;
+							int j = (int)(state[abc] >>> shift) & 0xFF;
+							long mask = 0xFFL << shift;
+							long a = sbox[i], b = sbox[j];
+							sbox[i] = (a & ~mask) | (b & mask);
+							sbox[j] = (b & ~mask) | (a & mask);
+						}
+					}
+				}
+			}
+		}
+		
+		static long getLongLE(byte[] b, int off) {
+			return
+				(b[off  ] & 0xFFL)       | (b[off+1] & 0xFFL) <<  8 |
+				(b[off+2] & 0xFFL) << 16 | (b[off+3] & 0xFFL) << 24 |
+				(b[off+4] & 0xFFL) << 32 | (b[off+5] & 0xFFL) << 40 |
+				(b[off+6] & 0xFFL) << 48 | (b[off+7] & 0xFFL) << 56;
+		}
+		
+		static long even(long c) {
+			return T1[(int)c & 0xFF] ^ T2[(int)(c >>> 16) & 0xFF] ^ T3[(int)(c >>> 32) & 0xFF] ^ T4[(int)(c >>> 48) & 0xFF];
+		}
+		static long odd(long c) {
+			return T4[(int)(c >>> 8) & 0xFF] ^ T3[(int)(c >>> 24) & 0xFF] ^ T2[(int)(c >>> 40) & 0xFF] ^ T1[(int)(c >>> 56) & 0xFF];
+		}
+		
+		static void compress(long[] x, long[] state) {
+			long a = state[0], b = state[1], c = state[2];
+			long x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3], x4 = x[4], x5 = x[5], x6 = x[6], x7 = x[7];
+			for( int pass=0; pass<3; ++pass ) {
+				if( pass > 0 ) {
+					// Key schedule
+					x0 -= x7 ^ 0xA5A5A5A5A5A5A5A5L; x1 ^= x0; x2 += x1; x3 -= x2 ^ (~x1 << 19);
+					x4 ^= x3; x5 += x4; x6 -= x5 ^ (~x4 >>> 23); x7 ^= x6;
+					x0 += x7; x1 -= x0 ^ (~x7 << 19); x2 ^= x1; x3 += x2;
+					x4 -= x3 ^ (~x2 >>> 23); x5 ^= x4; x6 += x5; x7 -= x6 ^ 0x0123456789ABCDEFL;
+				}
+				long mul = 5 + 2*pass;
+				c ^= x0; a -= even(c); b += odd(c); b *= mul;
+				a ^= x1; b -= even(a); c += odd(a); c *= mul;
+				b ^= x2; c -= even(b); a += odd(b); a *= mul;
+				c ^= x3; a -= even(c); b += odd(c); b *= mul;
+				a ^= x4; b -= even(a); c += odd(a); c *= mul;
+				b ^= x5; c -= even(b); a += odd(b); a *= mul;
+				c ^= x6; a -= even(c); b += odd(c); b *= mul;
+				a ^= x7; b -= even(a); c += odd(a); c *= mul;
+				// Each pass starts with the registers rotated one place
+				long t = a; a = c; c = b; b = t;
+			}
+			state[0] ^= a;
+			state[1] = b - state[1];
+			state[2] += c;
+		}
+		
+		protected final long[] state = new long[3];
+		protected final long[] block = new long[8];
+		protected final byte[] buffer = new byte[64];
+		protected int bufferLength;
+		protected long length;
+		
+		public Tiger() {
+			reset();
+		}
+		
+		public void reset() {
+			state[0] = 0x0123456789ABCDEFL;
+			state[1] = 0xFEDCBA9876543210L;
+			state[2] = 0xF096A5B4C3B2E187L;
+			bufferLength = 0;
+			length = 0;
+		}
+		
+		protected void processBlock(byte[] data, int off) {
+			for( int i=0; i<8; ++i ) block[i] = getLongLE(data, off + i*8);
+			compress(block, state);
+		}
+		
+		public void update(byte b) {
+			buffer[bufferLength++] = b;
+			++length;
+			if( bufferLength == 64 ) {
+				processBlock(buffer, 0);
+				bufferLength = 0;
+			}
+		}
+		
+		public void update(byte[] data, int off, int len) {
+			length += len;
+			if( bufferLength > 0 ) {
+				int n = Math.min(len, 64 - bufferLength);
+				System.arraycopy(data, off, buffer, bufferLength, n);
+				bufferLength += n;
+				off += n;
+				len -= n;
+				if( bufferLength < 64 ) return;
+				processBlock(buffer, 0);
+				bufferLength = 0;
+			}
+			for( ; len >= 64; off += 64, len -= 64 ) processBlock(data, off);
+			System.arraycopy(data, off, buffer, 0, len);
+			bufferLength = len;
+		}
+		
+		/** Finish the hash, write it to out, and reset */
+		public void digest(byte[] out, int outOff) {
+			long bitLength = length << 3;
+			buffer[bufferLength++] = 0x01;
+			if( bufferLength > 56 ) {
+				Arrays.fill(buffer, bufferLength, 64, (byte)0);
+				processBlock(buffer, 0);
+				bufferLength = 0;
+			}
+			Arrays.fill(buffer, bufferLength, 56, (byte)0);
+			for( int i=0; i<8; ++i ) buffer[56+i] = (byte)(bitLength >>> (i*8));
+			processBlock(buffer, 0);
+			for( int w=0; w<3; ++w ) {
+				for( int i=0; i<8; ++i ) out[outOff + w*8 + i] = (byte)(state[w] >>> (i*8));
+			}
+			reset();
+		}
+		
+		public byte[] digest() {
+			byte[] out = new byte[DIGEST_LENGTH];
+			digest(out, 0);
+			return out;
+		}
+	}
+	
+	/** Size of the leaf blocks of Tiger tree hashes */
+	static final int TTH_LEAF_SIZE = 1024;
+	
+	/**
+	 * Tiger tree hash (as described by the THEX spec) of a chunk of data;
+	 * leaves are hashed with a 0x00 prefix, and interior nodes
+	 * with a 0x01 prefix, with unpaired nodes promoted to the next level.
+	 * Since a chunk of 2^n leaves forms a complete subtree of any tree
+	 * it is part of, this can also be used to calculate the roots
+	 * of subtrees that will be combined using {@link #tthCombine(List, Tiger)}.
+	 */
+	static byte[] tthSubtree(ByteBuffer data, Tiger tiger) {
+		byte[] leafBuf = new byte[1 + TTH_LEAF_SIZE];
+		ArrayList<byte[]> nodes = new ArrayList<byte[]>(data.remaining() / TTH_LEAF_SIZE + 1);
+		do {
+			int n = Math.min(TTH_LEAF_SIZE, data.remaining());
+			leafBuf[0] = 0x00;
+			data.get(leafBuf, 1, n);
+			tiger.update(leafBuf, 0, 1 + n);
+			nodes.add(tiger.digest());
+		} while( data.hasRemaining() );
+		return tthCombine(nodes, tiger);
+	}
+	
+	/** Reduce a row of tree nodes to a single root, level by level */
+	static byte[] tthCombine(List<byte[]> nodes, Tiger tiger) {
+		nodes = new ArrayList<byte[]>(nodes);
+		while( nodes.size() > 1 ) {
+			int j = 0;
+			for( int k=0; k<nodes.size(); k += 2 ) {
+				if( k+1 == nodes.size() ) {
+					nodes.set(j++, nodes.get(k));
+				} else {
+					tiger.update((byte)0x01);
+					tiger.update(nodes.get(k), 0, Tiger.DIGEST_LENGTH);
+					tiger.update(nodes.get(k+1), 0, Tiger.DIGEST_LENGTH);
+					nodes.set(j++, tiger.digest());
+				}
+			}
+			nodes.subList(j, nodes.size()).clear();
+		}
+		return nodes.get(0);
+	}
+	
+	/**
+	 * Tiger tree hash of a stream, calculated as it's read.
+	 * Complete subtrees are combined as soon as they're found,
+	 * so only one root per level is kept.
+	 */
+	static class TigerTreeDigest {
+		protected final Tiger tiger = new Tiger();
+		protected final byte[] leafBuf = new byte[1 + TTH_LEAF_SIZE];
+		protected int leafLength = 0;
+		protected long leafCount = 0;
+		/** Roots of complete subtrees, largest first, along with their heights */
+		protected final ArrayList<byte[]> roots = new ArrayList<byte[]>();
+		protected final ArrayList<Integer> heights = new ArrayList<Integer>();
+		
+		public void update(byte b) {
+			if( leafLength == TTH_LEAF_SIZE ) finishLeaf();
+			leafBuf[1 + leafLength++] = b;
+		}
+		
+		public void update(byte[] data, int off, int len) {
+			while( len > 0 ) {
+				if( leafLength == TTH_LEAF_SIZE ) finishLeaf();
+				int n = Math.min(len, TTH_LEAF_SIZE - leafLength);
+				System.arraycopy(data, off, leafBuf, 1 + leafLength, n);
+				leafLength += n;
+				off += n;
+				len -= n;
+			}
+		}
+		
+		protected void finishLeaf() {
+			leafBuf[0] = 0x00;
+			tiger.update(leafBuf, 0, 1 + leafLength);
+			byte[] node = tiger.digest();
+			int height = 0;
+			int last;
+			while( (last = roots.size() - 1) >= 0 && heights.get(last) == height ) {
+				node = combine(roots.remove(last), node);
+				heights.remove(last);
+				++height;
+			}
+			roots.add(node);
+			heights.add(height);
+			leafLength = 0;
+			++leafCount;
+		}
+		
+		protected byte[] combine(byte[] left, byte[] right) {
+			tiger.update((byte)0x01);
+			tiger.update(left, 0, Tiger.DIGEST_LENGTH);
+			tiger.update(right, 0, Tiger.DIGEST_LENGTH);
+			return tiger.digest();
+		}
+		
+		/**
+		 * Finish the hash and reset.
+		 * Leftover subtrees are combined smallest first,
+		 * which is equivalent to promoting unpaired nodes level by level.
+		 */
+		public byte[] digest() {
+			// Empty input still has one (empty) leaf
+			if( leafLength > 0 || leafCount == 0 ) finishLeaf();
+			byte[] node = roots.remove(roots.size() - 1);
+			while( !roots.isEmpty() ) node = combine(roots.remove(roots.size() - 1), node);
+			heights.clear();
+			leafCount = 0;
+			return node;
+		}
+	}
+	
+	public static final String HASH_BITPRINT = "bitprint";
+	public static final String HASH_SHA1 = "sha1";
+	public static final String HASH_SHA256 = "sha256";
+	public static final String HASH_TTH = "tree:tiger";
+	static final List<String> HASH_ALGORITHMS = Arrays.asList(HASH_BITPRINT, HASH_SHA1, HASH_SHA256, HASH_TTH);
+	static final Pattern HASH_URN_PATTERN = Pattern.compile("^urn:(bitprint|sha1|sha256|tree:tiger):([A-Za-z2-7.]+)$");
+	
+	/**
+	 * Chunks are hashed in parallel for the Tiger tree;
+	 * must be a power-of-two number of leaves.
+	 */
+	static final int HASH_CHUNK_SIZE = 1024 * TTH_LEAF_SIZE;
+	static final int HASH_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+	static final ExecutorService HASH_EXECUTOR = Executors.newFixedThreadPool(HASH_THREAD_COUNT, DAEMON_THREAD_FACTORY);
+	static final ThreadLocal<Tiger> THREAD_TIGER = new ThreadLocal<Tiger>() {
+		@Override protected Tiger initialValue() {
+			return new Tiger();
+		}
+	};
+	
+	/**
+	 * Calculate the requested kinds of hash URNs for a stream.
+	 * Files (including blobs) are read via memory-mapped chunks;
+	 * SHA-1 and SHA-256 are calculated in a single pass
+	 * while the Tiger tree's subtrees are hashed on HASH_EXECUTOR.
+	 * @return a URN for each of algorithms, in the same order
+	 */
+	static List<String> hashUrns(InputStream in, List<String> algorithms) throws IOException {
+		boolean wantTth = algorithms.contains(HASH_BITPRINT) || algorithms.contains(HASH_TTH);
+		MessageDigest sha1, sha256;
+		try {
+			sha1 = algorithms.contains(HASH_BITPRINT) || algorithms.contains(HASH_SHA1) ? MessageDigest.getInstance("SHA-1") : null;
+			sha256 = algorithms.contains(HASH_SHA256) ? MessageDigest.getInstance("SHA-256") : null;
+		} catch( NoSuchAlgorithmException e ) {
+			throw new IOException(e);
+		}
+		
+		FileChannel channel =
+			in instanceof MappedBlobInputStream ? ((MappedBlobInputStream)in).channel :
+			in instanceof FileInputStream ? ((FileInputStream)in).getChannel() :
+			null;
+		long position = channel == null ? 0 : channel.position();
+		long size = channel == null ? 0 : channel.size();
+		MappedByteBuffer window = null;
+		
+		// Bounds the number of chunks read but not yet hashed
+		final Semaphore permits = new Semaphore(HASH_THREAD_COUNT * 2);
+		ArrayList<Future<byte[]>> subtrees = new ArrayList<Future<byte[]>>();
+		try {
+			while( true ) {
+				final ByteBuffer chunk;
+				if( channel != null ) {
+					if( window == null || !window.hasRemaining() ) {
+						if( position >= size ) break;
+						long length = Math.min(MappedBlobInputStream.WINDOW_SIZE, size - position);
+						window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+						position += length;
+					}
+					chunk = window.slice();
+					chunk.limit(Math.min(HASH_CHUNK_SIZE, chunk.remaining()));
+					window.position(window.position() + chunk.limit());
+				} else {
+					byte[] buf = new byte[HASH_CHUNK_SIZE];
+					int n = 0, z;
+					while( n < buf.length && (z = in.read(buf, n, buf.length - n)) > 0 ) n += z;
+					if( n == 0 ) break;
+					chunk = ByteBuffer.wrap(buf, 0, n);
+				}
+				if( wantTth ) {
+					permits.acquire();
+					final ByteBuffer tthChunk = chunk.duplicate();
+					subtrees.add(HASH_EXECUTOR.submit(new Callable<byte[]>() {
+						@Override public byte[] call() {
+							try {
+								return tthSubtree(tthChunk, THREAD_TIGER.get());
+							} finally {
+								permits.release();
+							}
+						}
+					}));
+				}
+				if( sha1 != null ) sha1.update(chunk.duplicate());
+				if( sha256 != null ) sha256.update(chunk.duplicate());
+			}
+			
+			String tth = null;
+			if( wantTth ) {
+				ArrayList<byte[]> roots = new ArrayList<byte[]>(subtrees.size());
+				for( Future<byte[]> subtree : subtrees ) roots.add(subtree.get());
+				tth = base32Encode(roots.isEmpty() ?
+					tthSubtree(ByteBuffer.allocate(0), new Tiger()) :
+					tthCombine(roots, new Tiger()));
+			}
+			String sha1Str = sha1 == null ? null : base32Encode(sha1.digest());
+			ArrayList<String> urns = new ArrayList<String>(algorithms.size());
+			for( String algo : algorithms ) {
+				if( HASH_BITPRINT.equals(algo) ) {
+					urns.add("urn:bitprint:"+sha1Str+"."+tth);
+				} else if( HASH_SHA1.equals(algo) ) {
+					urns.add("urn:sha1:"+sha1Str);
+				} else if( HASH_SHA256.equals(algo) ) {
+					urns.add("urn:sha256:"+base32Encode(sha256.digest()));
+				} else if( HASH_TTH.equals(algo) ) {
+					urns.add("urn:tree:tiger:"+tth);
+				} else {
+					throw new IllegalArgumentException("Unsupported hash algorithm: "+algo);
+				}
+			}
+			return urns;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while hashing");
+		} catch( ExecutionException e ) {
+			throw new IOException("Tiger tree hashing failed", e.getCause());
+		} finally {
+			for( Future<byte[]> subtree : subtrees ) subtree.cancel(false);
+		}
+	}
+	
+	/** @return null if the URN matches the content, otherwise a description of the problem */
+	static String checkHashUrn(String urn, String name, File pwd, Map<String,String> env) {
+		Matcher m = HASH_URN_PATTERN.matcher(urn);
+		if( !m.matches() ) return "not a recognized hash URN";
+		try {
+			InputStream in = getInputStream(name, pwd, env);
+			try {
+				String actual = hashUrns(in, Collections.singletonList(m.group(1))).get(0);
+				return actual.equalsIgnoreCase(urn) ? null : "content hashes to "+actual;
+			} finally {
+				in.close();
+			}
+		} catch( IOException e ) {
+			return e.getMessage();
+		}
+	}
+	
+	static final Pattern ALGORITHM_OPTPAT = Pattern.compile("^--algorithm=(.+)$");
+	
+	public static int doHash(String[] args, int i, final File pwd, final Map<String,String> env, Object[] io) {
+		List<String> algorithms = Collections.singletonList(HASH_BITPRINT);
+		boolean check = false;
+		int jobs = HASH_THREAD_COUNT;
+		Matcher m;
+		for( ; i<args.length; ++i ) {
+			if( (m = ALGORITHM_OPTPAT.matcher(args[i])).matches() ) {
+				algorithms = Arrays.asList(m.group(1).split(","));
+				for( String algo : algorithms ) {
+					if( !HASH_ALGORITHMS.contains(algo) ) {
+						printError(io[2], "jcr:hash: Unsupported algorithm: "+quote(algo)+"; supported: "+HASH_ALGORITHMS);
+						return EXIT_CODE_USAGE_ERROR;
+					}
+				}
+			} else if( "--check".equals(args[i]) ) {
+				check = true;
+			} else if( (m = JOBS_OPTPAT.matcher(args[i])).matches() ) {
+				jobs = parseJobCount(m.group(1));
+			} else if( "--".equals(args[i]) ) {
+				++i;
+				break;
+			} else if( args[i].startsWith("-") && args[i].length() > 1 ) {
+				printError(io[2], "jcr:hash: Unrecognized option: "+quote(args[i]));
+				return EXIT_CODE_USAGE_ERROR;
+			} else {
+				break;
+			}
+		}
+		if( jobs < 1 || jobs > MAX_JOBS ) {
+			printError(io[2], "jcr:hash: Number of jobs must be between 1 and "+MAX_JOBS);
+			return EXIT_CODE_USAGE_ERROR;
+		}
+		List<String> inputs = Arrays.asList(args).subList(i, args.length);
+		PrintStream out = toPrintStream(io[1]);
+		return check ?
+			checkHashes(inputs, jobs, pwd, env, out, io) :
+			printHashes(inputs, algorithms, pwd, env, out, io);
+	}
+	
+	static int printHashes(List<String> inputs, List<String> algorithms, File pwd, Map<String,String> env, PrintStream out, Object[] io) {
+		int exitCode = 0;
+		boolean showNames = inputs.size() > 1;
+		for( String name : (inputs.isEmpty() ? Collections.<String>singletonList(null) : inputs) ) {
+			List<String> urns;
+			try {
+				InputStream in = name == null ? toInputStream(io[0]) : getInputStream(name, pwd, env);
+				try {
+					urns = hashUrns(in, algorithms);
+				} finally {
+					if( name != null ) in.close();
+				}
+			} catch( IOException e ) {
+				printError(io[2], "jcr:hash: Failed to read "+(name == null ? "stdin" : name)+": "+e.getMessage());
+				exitCode = 1;
+				continue;
+			}
+			if( out == null ) continue;
+			for( String urn : urns ) out.print(urn + (showNames ? "\t"+name : "") + "\n");
+		}
+		if( out != null ) out.flush();
+		return exitCode;
+	}
+	
+	/** How many checks per job may be queued or finished but not yet reported */
+	static final int HASH_CHECKS_IN_FLIGHT_PER_JOB = 4;
+	
+	/**
+	 * Read lines of "<urn>" or "<urn>\t<file|uri>" from each input (or stdin),
+	 * and check that the content matches.  A URN by itself is looked up
+	 * as-is, i.e. in the blob repositories.
+	 * Results are printed in order as they become available,
+	 * with a bounded number of checks in flight, so lists can be arbitrarily long.
+	 */
+	static int checkHashes(List<String> inputs, int jobs, final File pwd, final Map<String,String> env, PrintStream out, Object[] io) {
+		ExecutorService executor = Executors.newFixedThreadPool(jobs, DAEMON_THREAD_FACTORY);
+		int maxInFlight = jobs * HASH_CHECKS_IN_FLIGHT_PER_JOB;
+		ArrayDeque<String> names = new ArrayDeque<String>();
+		ArrayDeque<Future<String>> results = new ArrayDeque<Future<String>>();
+		int checked = 0, failures = 0;
+		try {
+			for( String listName : (inputs.isEmpty() ? Collections.<String>singletonList(null) : inputs) ) {
+				InputStream in = listName == null ? toInputStream(io[0]) : getInputStream(listName, pwd, env);
+				try {
+					BufferedReader r = new BufferedReader(new InputStreamReader(in, UTF8));
+					String line;
+					while( (line = r.readLine()) != null ) {
+						if( line.trim().length() == 0 || line.startsWith("#") ) continue;
+						int tab = line.indexOf('\t');
+						final String urn = (tab == -1 ? line : line.substring(0, tab)).trim();
+						final String name = tab == -1 ? urn : line.substring(tab+1);
+						names.add(name);
+						results.add(executor.submit(new Callable<String>() {
+							@Override public String call() {
+								return checkHashUrn(urn, name, pwd, env);
+							}
+						}));
+						// Report whatever's done, waiting if too many are outstanding
+						boolean printed = false;
+						while( !results.isEmpty() && (results.size() >= maxInFlight || results.peek().isDone()) ) {
+							++checked;
+							if( !printHashCheck(names.poll(), results.poll().get(), out) ) ++failures;
+							printed = true;
+						}
+						if( printed && out != null ) out.flush();
+					}
+				} finally {
+					if( listName != null ) in.close();
+				}
+			}
+			while( !results.isEmpty() ) {
+				++checked;
+				if( !printHashCheck(names.poll(), results.poll().get(), out) ) ++failures;
+			}
+			if( out != null ) out.flush();
+			if( failures > 0 ) printError(io[2], "jcr:hash: "+failures+" of "+checked+" failed verification");
+			return failures == 0 ? 0 : 1;
+		} catch( IOException e ) {
+			printError(io[2], "jcr:hash: Failed to read list of URNs: "+e.getMessage());
+			return 1;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return EXIT_CODE_INTERRUPTED;
+		} catch( ExecutionException e ) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * @param problem what checkHashUrn said was wrong, or null if nothing
+	 * @return true if the check passed
+	 */
+	static boolean printHashCheck(String name, String problem, PrintStream out) {
+		if( out != null ) out.print(name+": "+(problem == null ? "OK" : "FAILED ("+problem+")")+"\n");
+		return problem == null;
+	}
+	
+	//// Scripts
+	
+	/**
+	 * Splits lines of a script into words.
+	 * Words are separated by spaces or tabs.
+	 * Within a word:
+	 * - '...' quotes everything up to the next single quote literally
+	 * - "..." quotes everything up to the next unescaped double quote,
+	 *   where \" \\ \n \r and \t are escapes and any other backslash is literal
+	 * - \ quotes the following character, or at the end of a line,
+	 *   joins the next line onto this one
+	 * A '#' at the start of a word comments out the rest of the line.
+	 */
+	static class ScriptTokenizer {
+		protected final ArrayList<String> words = new ArrayList<String>();
+		protected StringBuilder word = null;
+		
+		protected StringBuilder word() {
+			if( word == null ) word = new StringBuilder();
+			return word;
+		}
+		
+		protected void endWord() {
+			if( word != null ) words.add(word.toString());
+			word = null;
+		}
+		
+		/** Is a line-continuation pending? */
+		public boolean isContinued() {
+			return word != null || !words.isEmpty();
+		}
+		
+		/**
+		 * @return true if the line completes a command,
+		 *   false if it is continued on the next line
+		 * @throws IllegalArgumentException if the line can't be parsed
+		 */
+		public boolean feed(String line) {
+			int len = line.length();
+			for( int k=0; k<len; ) {
+				char c = line.charAt(k);
+				if( c == ' ' || c == '\t' ) {
+					endWord();
+					++k;
+				} else if( c == '#' && word == null ) {
+					break;
+				} else if( c == '\'' ) {
+					int end = line.indexOf('\'', k+1);
+					if( end < 0 ) throw new IllegalArgumentException("Unterminated single-quoted string");
+					word().append(line, k+1, end);
+					k = end+1;
+				} else if( c == '"' ) {
+					StringBuilder w = word();
+					for( ++k; ; ) {
+						if( k >= len ) throw new IllegalArgumentException("Unterminated double-quoted string");
+						c = line.charAt(k++);
+						if( c == '"' ) break;
+						if( c == '\\' && k < len ) {
+							char e = line.charAt(k++);
+							switch( e ) {
+							case '"': case '\\': w.append(e); break;
+							case 'n': w.append('\n'); break;
+							case 'r': w.append('\r'); break;
+							case 't': w.append('\t'); break;
+							default: w.append('\\').append(e);
+							}
+						} else {
+							w.append(c);
+						}
+					}
+				} else if( c == '\\' ) {
+					if( k+1 == len ) return false;
+					word().append(line.charAt(k+1));
+					k += 2;
+				} else {
+					word().append(c);
+					++k;
+				}
+			}
+			endWord();
+			return true;
+		}
+		
+		/** Return the words of the command completed by the last feed() and start a new one */
+		public String[] take() {
+			String[] result = words.toArray(new String[words.size()]);
+			words.clear();
+			return result;
+		}
+	}
+	
+	/**
+	 * Run each command in a script, reading it a line at a time.
+	 * Lines that don't name a command (only variable assignments and options like --cd)
+	 * update the environment, pwd, and stdio for the rest of the script.
+	 * Stops at the first command that fails unless keepGoing is true.
+	 */
+	public static int doScript(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+		boolean keepGoing = false;
+		for( ; i<args.length; ++i ) {
+			if( "--keep-going".equals(args[i]) ) {
+				keepGoing = true;
+			} else if( "--".equals(args[i]) ) {
+				++i;
+				break;
+			} else {
+				break;
+			}
+		}
+		if( i >= args.length ) {
+			printError(io[2], "jcr:script: No script specified");
+			return EXIT_CODE_USAGE_ERROR;
+		}
+		if( i+1 < args.length ) {
+			printError(io[2], "jcr:script: Unexpected arguments after script name: "+debug(Arrays.copyOfRange(args, i+1, args.length)));
+			return EXIT_CODE_USAGE_ERROR;
+		}
+		String scriptName = args[i];
+		
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new InputStreamReader(getInputStream(scriptName, pwd, env), UTF8));
+		} catch( IOException e ) {
+			printError(io[2], "jcr:script: Failed to open "+scriptName+": "+e.getMessage());
+			return EXIT_CODE_COMMAND_NOT_FOUND;
+		}
+		
+		int result = 0;
+		try {
+			ScriptTokenizer tokenizer = new ScriptTokenizer();
+			String line;
+			int lineNumber = 0, commandLineNumber = 0;
+			while( (line = reader.readLine()) != null ) {
+				++lineNumber;
+				if( !tokenizer.isContinued() ) commandLineNumber = lineNumber;
+				try {
+					if( !tokenizer.feed(line) ) continue;
+				} catch( IllegalArgumentException e ) {
+					printError(io[2], scriptName+":"+lineNumber+": "+e.getMessage());
+					return EXIT_CODE_USAGE_ERROR;
+				}
+				String[] words = tokenizer.take();
+				if( words.length == 0 ) continue;
+				
+				int exitCode;
+				try {
+					JCRAction action = JCRCommand.parse(words, 0).bind(pwd, env, io);
+					if( action.cmd == null ) {
+						// Nothing to run; settings carry over to the rest of the script
+						pwd = action.pwd;
+						env = action.env;
+						io = action.io;
+						continue;
+					}
+					exitCode = action.run();
+				} catch( RuntimeException e ) {
+					printError(io[2], scriptName+":"+commandLineNumber+": "+e.getMessage());
+					exitCode = 1;
+				}
+				
+				if( Thread.currentThread().isInterrupted() ) return exitCode == 0 ? EXIT_CODE_INTERRUPTED : exitCode;
+				if( exitCode != 0 ) {
+					if( !keepGoing ) return exitCode;
+					if( result == 0 ) result = exitCode;
+				}
+			}
+			if( tokenizer.isContinued() ) {
+				printError(io[2], scriptName+":"+lineNumber+": Line continuation at end of script");
+				return EXIT_CODE_USAGE_ERROR;
+			}
+			return result;
+		} catch( IOException e ) {
+			printError(io[2], "jcr:script: Error reading "+scriptName+": "+e.getMessage());
+			return 1;
+		} finally {
+			closeQuietly(reader);
+		}
+	}
+	
+	//// Server mode
+	
+	// Protocol, as described in README.md:
+	// The client connects and sends a request header (version, secret, pwd, argv, env),
+	// followed by any number of stdin frames and an empty stdin frame to indicate EOF.
+	// The server responds with stdout/stderr frames and finally an exit code frame.
+	// Each frame is <channel:u8> <length:u32> <data>, all integers big-endian.
+	// Strings are <length:u32> <UTF-8 bytes>.
+	
+	public static final int DEFAULT_SERVER_PORT = 36036;
+	public static final String SERVER_SECRET_VAR = "JCR36_SERVER_SECRET";
+	/**
+	 * Where jcr:serve writes the secret it generates when JCR36_SERVER_SECRET isn't set,
+	 * and where jcr:client looks for it; default ~/.jcr36/server-<port>.secret
+	 */
+	public static final String SERVER_SECRET_FILE_VAR = "JCR36_SERVER_SECRET_FILE";
+	static final int DEFAULT_MAX_SERVER_CONNECTIONS = 64;
+	static final int SERVER_PROTOCOL_VERSION = 1;
+	static final int FRAME_STDIN  = 0;
+	static final int FRAME_STDOUT = 1;
+	static final int FRAME_STDERR = 2;
+	static final int FRAME_EXIT   = 3;
+	static final int MAX_SERVER_STRING_LENGTH = 16*1024*1024;
+	/** Limit on the total size of a request's pwd, args, and env */
+	static final int MAX_SERVER_HEADER_SIZE = 64*1024*1024;
+	/** The secret is read before anything else, so is allowed to be much less */
+	static final int MAX_SERVER_SECRET_LENGTH = 1024;
+	/** How long a client has to send the secret */
+	static final int SERVER_HEADER_TIMEOUT_MS = 10000;
+	static final int CLIENT_HANGUP_TIMEOUT_MS = 30000;
+	
+	static void writeString(DataOutputStream dos, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+	
+	static String readString(DataInputStream dis) throws IOException {
+		return readString(dis, MAX_SERVER_STRING_LENGTH);
+	}
+	
+	static String readString(DataInputStream dis, int maxLength) throws IOException {
+		int len = dis.readInt();
+		if( len < 0 || len > maxLength ) throw new IOException("Bad string length: "+len);
+		byte[] bytes = new byte[len];
+		dis.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	static class FrameOutputStream extends OutputStream {
+		protected final DataOutputStream dos;
+		protected final int channel;
+		public FrameOutputStream(DataOutputStream dos, int channel) {
+			this.dos = dos;
+			this.channel = channel;
+		}
+		@Override public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		@Override public void write(byte[] buf, int off, int len) throws IOException {
+			if( len == 0 ) return;
+			// stdout and stderr frames share one socket
+			synchronized( dos ) {
+				dos.writeByte(channel);
+				dos.writeInt(len);
+				dos.write(buf, off, len);
+				dos.flush();
+			}
+		}
+		/** Writes an empty frame, which indicates EOF to the other side. */
+		@Override public void close() throws IOException {
+			synchronized( dos ) {
+				dos.writeByte(channel);
+				dos.writeInt(0);
+				dos.flush();
+			}
+		}
+	}
+	
+	static class FrameInputStream extends InputStream {
+		protected final DataInputStream dis;
+		protected final int channel;
+		protected int remaining = 0;
+		protected boolean eof = false;
+		public FrameInputStream(DataInputStream dis, int channel) {
+			this.dis = dis;
+			this.channel = channel;
+		}
+		@Override public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int z = read(buf, 0, 1);
+			return z <= 0 ? -1 : buf[0]&0xFF;
+		}
+		@Override public int read(byte[] buf, int off, int len) throws IOException {
+			if( len == 0 ) return 0;
+			while( remaining == 0 ) {
+				if( eof ) return -1;
+				int ch = dis.read();
+				if( ch == -1 ) {
+					eof = true;
+					return -1;
+				}
+				if( ch != channel ) throw new IOException("Unexpected frame on channel "+ch+"; expected "+channel);
+				remaining = dis.readInt();
+				if( remaining < 0 ) throw new IOException("Bad frame length: "+remaining);
+				if( remaining == 0 ) eof = true;
+			}
+			int z = dis.read(buf, off, Math.min(len, remaining));
+			if( z < 0 ) throw new EOFException("Connection closed in the middle of a frame");
+			remaining -= z;
+			return z;
+		}
+	}
+	
+	static class ServerConnectionHandler implements Runnable {
+		protected final Socket sock;
+		protected final String secret;
+		protected final PrintStream log;
+		public ServerConnectionHandler(Socket sock, String secret, PrintStream log) {
+			this.sock = sock;
+			this.secret = secret;
+			this.log = log;
+		}
+		/** Bytes of pwd, args, and env that may still be read */
+		protected int headerBytesLeft = MAX_SERVER_HEADER_SIZE;
+		
+		protected String readHeaderString(DataInputStream dis) throws IOException {
+			int len = dis.readInt();
+			if( len < 0 || len > MAX_SERVER_STRING_LENGTH || len > headerBytesLeft - 4 ) throw new IOException("Bad string length: "+len);
+			headerBytesLeft -= 4 + len;
+			byte[] bytes = new byte[len];
+			dis.readFully(bytes);
+			return new String(bytes, UTF8);
+		}
+		
+		/** Read a count of things each at least minSize bytes long, which must fit in what's left of the header */
+		protected int readHeaderCount(DataInputStream dis, int minSize) throws IOException {
+			int count = dis.readInt();
+			headerBytesLeft -= 4;
+			if( count < 0 || count > headerBytesLeft / minSize ) throw new IOException("Bad count: "+count);
+			return count;
+		}
+		
+		protected void handle() throws IOException {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+			PrintStream out = toPrintStream(new FrameOutputStream(dos, FRAME_STDOUT));
+			PrintStream err = toPrintStream(new FrameOutputStream(dos, FRAME_STDERR));
+			int exitCode;
+			// Nothing more is read (or allocated) for a client until it's shown that it knows the secret,
+			// which it has to do promptly, so that idle connections can't tie up the pool
+			sock.setSoTimeout(SERVER_HEADER_TIMEOUT_MS);
+			int version = dis.readInt();
+			if( version != SERVER_PROTOCOL_VERSION ) throw new IOException("Unsupported protocol version: "+version);
+			String clientSecret = readString(dis, MAX_SERVER_SECRET_LENGTH);
+			if( !MessageDigest.isEqual(secret.getBytes(UTF8), clientSecret.getBytes(UTF8)) ) {
+				err.print("Bad "+SERVER_SECRET_VAR+"\n");
+				exitCode = EXIT_CODE_USAGE_ERROR;
+			} else {
+				sock.setSoTimeout(0);
+				File pwd = new File(readHeaderString(dis));
+				String[] args = new String[readHeaderCount(dis, 4)];
+				for( int i=0; i<args.length; ++i ) args[i] = readHeaderString(dis);
+				int envCount = readHeaderCount(dis, 8);
+				// Each request gets its own env and pwd; nothing is shared with the server's
+				Map<String,String> env = new HashMap<String,String>();
+				for( int i=0; i<envCount; ++i ) {
+					String k = readHeaderString(dis);
+					env.put(k, readHeaderString(dis));
+				}
+				try {
+					exitCode = doJcrDoCmdMain(args, 0, pwd, env, new Object[] { new FrameInputStream(dis, FRAME_STDIN), out, err });
+				} catch( Exception e ) {
+					e.printStackTrace(err);
+					exitCode = 1;
+				}
+			}
+			out.flush();
+			err.flush();
+			synchronized( dos ) {
+				dos.writeByte(FRAME_EXIT);
+				dos.writeInt(4);
+				dos.writeInt(exitCode);
+				dos.flush();
+			}
+			// Closing with unread stdin data would reset the connection,
+			// possibly before the client has read everything, so wait
+			// for the client to hang up first.
+			sock.shutdownOutput();
+			sock.setSoTimeout(CLIENT_HANGUP_TIMEOUT_MS);
+			try {
+				while( dis.skip(65536) > 0 || dis.read() != -1 );
+			} catch( SocketTimeoutException e ) { }
+		}
+		@Override public void run() {
+			try {
+				handle();
+			} catch( IOException e ) {
+				if( log != null ) log.print("jcr:serve: Error handling connection from "+sock.getRemoteSocketAddress()+": "+e+"\n");
+			} finally {
+				try {
+					sock.close();
+				} catch( IOException e ) { }
+			}
+		}
+	}
+	
+	/**
+	 * Accepts connections forever, handling each one on its own (pooled) thread.
+	 * Connections beyond maxConnections are closed without being read.
+	 */
+	public static void serve(ServerSocket serverSocket, String secret, int maxConnections, PrintStream log) throws IOException {
+		if( secret == null || secret.length() == 0 ) throw new IllegalArgumentException("Refusing to serve without a secret");
+		ExecutorService executor = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), DAEMON_THREAD_FACTORY);
+		try {
+			while( true ) {
+				Socket sock = serverSocket.accept();
+				try {
+					sock.setTcpNoDelay(true);
+					executor.execute(new ServerConnectionHandler(sock, secret, log));
+				} catch( RejectedExecutionException e ) {
+					if( log != null ) log.print("jcr:serve: Too many connections; dropping one from "+sock.getRemoteSocketAddress()+"\n");
+					sock.close();
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	static File getServerSecretFile(Map<String,String> env, int port) {
+		String path = env.get(SERVER_SECRET_FILE_VAR);
+		if( path != null && path.length() > 0 ) return new File(path);
+		return new File(new File(System.getProperty("user.home"), ".jcr36"), "server-"+port+".secret");
+	}
+	
+	/** Make f readable and writable (and, if a directory, listable) only by its owner */
+	static boolean restrictToOwner(File f) {
+		return f.setReadable(false, false) && f.setReadable(true, true) &&
+			f.setWritable(false, false) && f.setWritable(true, true) &&
+			f.setExecutable(false, false) && (!f.isDirectory() || f.setExecutable(true, true));
+	}
+	
+	/**
+	 * Write a newly generated secret to a file that only the current user can read.
+	 * The file is written under a temporary name and renamed into place,
+	 * and its directory, if created here (or the default ~/.jcr36), is also made private,
+	 * so that nobody else can open the file while its permissions are being set.
+	 */
+	static String generateServerSecret(File file) throws IOException {
+		byte[] random = new byte[20];
+		new SecureRandom().nextBytes(random);
+		String secret = base32Encode(random);
+		File dir = file.getAbsoluteFile().getParentFile();
+		boolean created = dir.mkdirs();
+		if( created || ".jcr36".equals(dir.getName()) && dir.getParentFile().equals(new File(System.getProperty("user.home")).getAbsoluteFile()) ) {
+			restrictToOwner(dir);
+		}
+		File tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			if( !restrictToOwner(tempFile) ) throw new IOException("Failed to restrict permissions on "+tempFile);
+			OutputStream os = new FileOutputStream(tempFile);
+			try {
+				os.write(secret.getBytes(UTF8));
+			} finally {
+				os.close();
+			}
+			if( !tempFile.renameTo(file) ) {
+				file.delete();
+				if( !tempFile.renameTo(file) ) throw new IOException("Failed to rename "+tempFile+" to "+file);
+			}
+		} finally {
+			tempFile.delete();
+		}
+		return secret;
+	}
+	
+	static final Pattern PORT_OPTPAT = Pattern.compile("^--port=(\\d{1,5})$");
+	static final Pattern BIND_OPTPAT = Pattern.compile("^--bind=(.*)$");
+	static final Pattern HOST_OPTPAT = Pattern.compile("^--host=(.*)$");
+	static final Pattern MAX_CONNECTIONS_OPTPAT = Pattern.compile("^--max-connections=(\\d{1,6})$");
+	
+	/** @return the port number given by a matched PORT_OPTPAT, or -1 if it's out of range */
+	static int parsePort(Matcher m) {
+		int port = Integer.parseInt(m.group(1));
+		return port >= 1 && port <= 65535 ? port : -1;
+	}
+	
+	public static int doServe(String[] args, int i, Map<String,String> env, Object[] io) {
+		PrintStream err = toPrintStream(io[2]);
+		int port = DEFAULT_SERVER_PORT;
+		int maxConnections = DEFAULT_MAX_SERVER_CONNECTIONS;
+		String bindAddress = "127.0.0.1";
+		Matcher m;
+		for( ; i<args.length; ++i ) {
+			if( (m = PORT_OPTPAT.matcher(args[i])).matches() && (port = parsePort(m)) != -1 ) {
+			} else if( (m = BIND_OPTPAT.matcher(args[i])).matches() ) {
+				bindAddress = m.group(1);
+			} else if( (m = MAX_CONNECTIONS_OPTPAT.matcher(args[i])).matches() && (maxConnections = Integer.parseInt(m.group(1))) > 0 ) {
+			} else {
+				if( err != null ) err.print("jcr:serve: Unrecognized or invalid argument: "+quote(args[i])+"\n");
+				return EXIT_CODE_USAGE_ERROR;
+			}
+		}
+		try {
+			String secret = env.get(SERVER_SECRET_VAR);
+			if( secret == null || secret.length() == 0 ) {
+				File secretFile = getServerSecretFile(env, port);
+				secret = generateServerSecret(secretFile);
+				if( err != null ) err.print("jcr:serve: "+SERVER_SECRET_VAR+" not set; generated one in "+secretFile+"\n");
+			}
+			ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+			try {
+				serve(serverSocket, secret, maxConnections, err);
+			} finally {
+				serverSocket.close();
+			}
+		} catch( IOException e ) {
+			if( err != null ) err.print("jcr:serve: "+e+"\n");
+			return 1;
+		}
+		return 0;
+	}
+	
+	public static int doClient(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+		PrintStream err = toPrintStream(io[2]);
+		int port = DEFAULT_SERVER_PORT;
+		String host = "127.0.0.1";
+		Matcher m;
+		for( ; i<args.length; ++i ) {
+			if( (m = PORT_OPTPAT.matcher(args[i])).matches() && (port = parsePort(m)) != -1 ) {
+			} else if( (m = HOST_OPTPAT.matcher(args[i])).matches() ) {
+				host = m.group(1);
+			} else if( "--".equals(args[i]) ) {
+				++i;
+				break;
+			} else if( args[i].startsWith("-") ) {
+				if( err != null ) err.print("jcr:client: Unrecognized or invalid option: "+quote(args[i])+"\n");
+				return EXIT_CODE_USAGE_ERROR;
+			} else {
+				break;
+			}
+		}
+		
+		Socket sock = null;
+		try {
+			sock = new Socket(host, port);
+			sock.setTcpNoDelay(true);
+			final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			String secret = env.get(SERVER_SECRET_VAR);
+			if( secret == null || secret.length() == 0 ) {
+				File secretFile = getServerSecretFile(env, port);
+				secret = "";
+				if( secretFile.exists() ) {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(secretFile), UTF8));
+					try {
+						String line = reader.readLine();
+						if( line != null ) secret = line.trim();
+					} finally {
+						reader.close();
+					}
+				}
+			}
+			dos.writeInt(SERVER_PROTOCOL_VERSION);
+			writeString(dos, secret);
+			writeString(dos, pwd.getPath());
+			dos.writeInt(args.length - i);
+			for( int j=i; j<args.length; ++j ) writeString(dos, args[j]);
+			dos.writeInt(env.size());
+			for( Map.Entry<String,String> e : env.entrySet() ) {
+				writeString(dos, e.getKey());
+				writeString(dos, e.getValue());
+			}
+			dos.flush();
+			
+			// stdin may block indefinitely, so it gets its own thread,
+			// which is cancelled if the command exits without reading it all.
+			Piper stdinPiper = Piper.start(toInputStream(io[0]), false, new FrameOutputStream(dos, FRAME_STDIN), true);
+			
+			OutputStream out = totOutputStream(io[1]);
+			OutputStream errOut = totOutputStream(io[2]);
+			byte[] buf = new byte[16384];
+			while( true ) {
+				int ch = dis.read();
+				if( ch == -1 ) throw new EOFException("Connection closed before exit code was received");
+				int len = dis.readInt();
+				if( ch == FRAME_EXIT ) {
+					stdinPiper.cancel();
+					return dis.readInt();
+				}
+				OutputStream dest = ch == FRAME_STDOUT ? out : ch == FRAME_STDERR ? errOut : null;
+				while( len > 0 ) {
+					int z = dis.read(buf, 0, Math.min(len, buf.length));
+					if( z < 0 ) throw new EOFException("Connection closed in the middle of a frame");
+					if( dest != null ) dest.write(buf, 0, z);
+					len -= z;
+				}
+				if( dest != null ) dest.flush();
+			}
+		} catch( IOException e ) {
+			if( err != null ) err.print("jcr:client: Error communicating with "+host+":"+port+": "+e+"\n");
+			return EXIT_CODE_PIPING_ERROR;
+		} finally {
+			if( sock != null ) try {
+				sock.close();
+			} catch( IOException e ) { }
+		}
+	}
+	
+	static final ConcurrentHashMap<String,String> MANGLED_ALIAS_CACHE = new ConcurrentHashMap<String,String>();
+	
+	public static String envMangleAlias(String name) {
+		String mangled = MANGLED_ALIAS_CACHE.get(name);
+		if( mangled == null ) {
+			mangled = "JCR_ALIAS_"+name.replace(":", "_").toUpperCase();
+			// Don't let a process that runs lots of different commands eat all the memory
+			if( MANGLED_ALIAS_CACHE.size() > 1024 ) MANGLED_ALIAS_CACHE.clear();
+			MANGLED_ALIAS_CACHE.put(name, mangled);
+		}
+		return mangled;
+	}
+	
+	//// Environment
+	
+	/**
+	 * An environment made of a parent map plus a (usually small) set of changes,
+	 * so that setting a variable doesn't mean copying the whole environment.
+	 * A null value in the delta is a tombstone, hiding the parent's variable.
+	 * Parents are assumed not to change; as with any other env map,
+	 * a LayeredEnv shouldn't be modified once it's been passed on.
+	 * The merged view is only built when something needs to iterate over it,
+	 * e.g. to populate ProcessBuilder#environment().
+	 */
+	static class LayeredEnv extends AbstractMap<String,String> {
+		/** Deltas no bigger than this are copied into child layers rather than chained */
+		static final int MAX_INHERITED_DELTA_SIZE = 64;
+		static final int MAX_DEPTH = 8;
+		
+		protected final Map<String,String> parent;
+		protected final HashMap<String,String> delta;
+		protected final int depth;
+		protected volatile Map<String,String> flattened;
+		
+		public LayeredEnv(Map<String,String> parent) {
+			if( parent instanceof LayeredEnv && ((LayeredEnv)parent).delta.size() <= MAX_INHERITED_DELTA_SIZE ) {
+				LayeredEnv p = (LayeredEnv)parent;
+				this.parent = p.parent;
+				this.delta = new HashMap<String,String>(p.delta);
+				this.depth = p.depth;
+			} else if( parent instanceof LayeredEnv && ((LayeredEnv)parent).depth >= MAX_DEPTH ) {
+				this.parent = new HashMap<String,String>(parent);
+				this.delta = new HashMap<String,String>();
+				this.depth = 1;
+			} else {
+				this.parent = parent;
+				this.delta = new HashMap<String,String>();
+				this.depth = parent instanceof LayeredEnv ? ((LayeredEnv)parent).depth + 1 : 1;
+			}
+		}
+		
+		@Override public String get(Object key) {
+			String value = delta.get(key);
+			if( value != null || delta.containsKey(key) ) return value;
+			return parent.get(key);
+		}
+		
+		@Override public boolean containsKey(Object key) {
+			return delta.containsKey(key) ? delta.get(key) != null : parent.containsKey(key);
+		}
+		
+		@Override public String put(String key, String value) {
+			if( value == null ) throw new NullPointerException("Environment variable values can't be null");
+			String old = get(key);
+			delta.put(key, value);
+			flattened = null;
+			return old;
+		}
+		
+		@Override public String remove(Object key) {
+			String old = get(key);
+			if( parent.containsKey(key) ) {
+				delta.put((String)key, null);
+			} else {
+				delta.remove(key);
+			}
+			flattened = null;
+			return old;
+		}
+		
+		protected Map<String,String> flatten() {
+			Map<String,String> flat = flattened;
+			if( flat == null ) {
+				HashMap<String,String> map = new HashMap<String,String>(parent);
+				for( Map.Entry<String,String> e : delta.entrySet() ) {
+					if( e.getValue() == null ) {
+						map.remove(e.getKey());
+					} else {
+						map.put(e.getKey(), e.getValue());
+					}
+				}
+				flattened = flat = Collections.unmodifiableMap(map);
+			}
+			return flat;
+		}
+		
+		@Override public int size() {
+			return flatten().size();
+		}
+		
+		@Override public Set<Map.Entry<String,String>> entrySet() {
+			return flatten().entrySet();
+		}
+	}
+	
+	public static String dealiasCommand(String name, Map<String,String> env) {
+		String resolved = env.get(envMangleAlias(name));
+		return resolved == null ? name : resolved;
+	}
+	
+	public static Map<String,String> STANDARD_ALIASES = new HashMap<String,String>();
+	static {
+		STANDARD_ALIASES.put("jcr:batch-args", CMD_BATCHARGS);
+		STANDARD_ALIASES.put("jcr:cat"     , CMD_CAT       );
+		STANDARD_ALIASES.put("jcr:client"  , CMD_CLIENT    );
+		STANDARD_ALIASES.put("jcr:docmd"   , CMD_DOCMD     );
+		STANDARD_ALIASES.put("jcr:printenv", CMD_PRINTENV  );
+		STANDARD_ALIASES.put("jcr:exit"    , CMD_EXIT      );
+		STANDARD_ALIASES.put("jcr:findexe" , CMD_FINDEXE   );
+		STANDARD_ALIASES.put("jcr:foreach" , CMD_FOREACH   );
+		STANDARD_ALIASES.put("jcr:hash"    , CMD_HASH      );
+		STANDARD_ALIASES.put("jcr:java-main", CMD_JAVAMAIN );
+		STANDARD_ALIASES.put("jcr:parallel", CMD_PARALLEL  );
+		STANDARD_ALIASES.put("jcr:pipe"    , CMD_PIPE      );
+		STANDARD_ALIASES.put("jcr:print"   , CMD_PRINT     );
+		STANDARD_ALIASES.put("jcr:runsys"  , CMD_RUNSYSPROC);
+		STANDARD_ALIASES.put("jcr:script"  , CMD_SCRIPT    );
+		STANDARD_ALIASES.put("jcr:serve"   , CMD_SERVE     );
+		STANDARD_ALIASES.put("jcr:until"   , CMD_UNTIL     );
+	}
+	
+	static Map<String,String> loadEnvFromPropertiesFile(String name, File pwd, Map<String,String> env) throws IOException {
+		@SuppressWarnings("resource")
+		InputStream is = getInputStream(name, pwd, env);
+		try {
+			Properties props = new Properties();
+			props.load(is);
+			Map<String,String> newEnv = new LayeredEnv(env);
+			for( Map.Entry<Object,Object> entry : props.entrySet() ) newEnv.put(entry.getKey().toString(), entry.getValue().toString());
+			return newEnv;
+		} finally {
+			is.close();
+		}
+	}
+	
+	protected static String HELP_TEXT =
+		"Usage: jcr36 [jcr:docmd] [<opts>] [<k>=<v> ...] [--] <command> [<arg> ...]\n"+
+		"\n"+
+		"Options:\n"+
+		"  --cd=<dir>  ; use <dir> as the pwd for the following command\n"+
+		"  --clear-env ; do not inherit environment variables\n"+
+		"  --load-env-from-properties-file=<file|uri>\n"+
+		"  --stdin=<file|uri>            ; read stdin from the given file or URI\n"+
+		"  --stdout=<file>               ; write stdout to <file>, replacing it\n"+
+		"  --stdout-append=<file>        ; append stdout to <file>\n"+
+		"  --stderr=<file>               ; write stderr to <file>, replacing it\n"+
+		"  --stderr-append=<file>        ; append stderr to <file>\n"+
+		"  --stderr-to-stdout            ; send stderr wherever stdout is going\n"+
+		"  --timeout=<duration>          ; terminate the command, and any processes it\n"+
+		"                                ; started, along with their descendants,\n"+
+		"                                ; after <duration> (e.g. 1.5s, 200ms, 2m), returning 143\n"+
+		"                                ; (in-process commands blocked reading input, e.g.\n"+
+		"                                ; jcr:cat of a pipe, stop only once the read returns)\n"+
+		"  --kill-after=<duration>       ; kill anything still running <duration> (default: 10s)\n"+
+		"                                ; after being asked to terminate, returning 137\n"+
+		"  --metrics-out=<file>          ; append a line of JSON with timings, exit code, etc,\n"+
+		"                                ; for each command run (including sub-commands) to <file>\n"+
+		"  --trace-out=<file>            ; write a timeline of commands, processes, and stream\n"+
+		"                                ; copying, including by child jcr36 processes, to <file>\n"+
+		"                                ; as Chrome trace events (see chrome://tracing or Perfetto)\n"+
+		"  --script=<file|uri>           ; same as jcr:script <file|uri>\n"+
+		"  --script <file>               ; same, for use in '#!/path/to/jcr36 --script' lines\n"+
+		"\n"+
+		"Commands:\n"+
+		"  # Set environment variables and run the specified sub-command:\n"+
+		"  jcr:docmd [<k>=<v> ...] <command> [<arg> ...]\n"+
+		"  \n"+
+		"  # print words, separated by <separator> (defauls: one space);\n"+
+		"  # -n to omit otherwise-implicit trailing newline:\n"+
+		"  jcr:print [-n] [--ofs=<separator>] [--] [<word> ...]\n"+
+		"  \n"+
+		"  # List paths of matching programs found in PATH; -v to explain the search:\n"+
+		"  jcr:findexe [-v] [--] <name> ...\n"+
+		"  \n"+
+		"  # Re-run a command until it exits with code 0 (or <code>), waiting <delay>\n" +
+		"  # between attempts.  Exponential backoff doubles the delay after each attempt\n" +
+		"  # (starting from 100ms, unless --delay is given) up to <max-delay>.\n" +
+		"  # --jitter randomly shortens each delay by up to <fraction> (default 1) of it.\n" +
+		"  # Gives up, returning the last attempt's exit code, after <n> attempts or when\n" +
+		"  # the next attempt would start after <timeout>.  Durations are <n>[ms|s|m|h]:\n" +
+		"  jcr:until [--delay=<delay>] [--backoff=constant|exponential] [--max-delay=<max-delay>] \\\n" +
+		"    [--jitter[=<fraction>]] [--timeout=<timeout>] [--max-attempts=<n>] \\\n" +
+		"    [--expect-code=<code>] [-v] <command> ...\n" +
+		"  \n"+
+		"  # Run commands concurrently, each one's stdout connected to the next one's stdin;\n"+
+		"  # exit code is the last command's, or that of the rightmost/leftmost that failed:\n"+
+		"  jcr:pipe [--pipefail[=rightmost|leftmost|off]] [--separator=<sep>] [--] \\\n"+
+		"    <command> [<arg> ...] [<sep> <command> [<arg> ...] ...]  # <sep> defaults to '|'\n"+
+		"  \n"+
+		"  # Run commands concurrently, at most <n> at a time (default: number of CPUs);\n"+
+		"  # exit code is 0 if all succeed, otherwise that of the first that failed.\n"+
+		"  # With --fail-fast, remaining commands are cancelled after the first failure:\n"+
+		"  jcr:parallel [--jobs=<n>] [--fail-fast] [--separator=<sep>] [--] \\\n"+
+		"    <command> [<arg> ...] [<sep> <command> [<arg> ...] ...]  # <sep> defaults to ';'\n"+
+		"  \n"+
+		"  # Run a command for each newline- (or with -0, NUL-) separated record read\n"+
+		"  # from stdin or <uri>, replacing '{}' (or <str>) in its arguments with the record,\n"+
+		"  # or appending the record if there is none.  With --journal, hashes of\n"+
+		"  # completed records are appended to <file>, and records listed there are skipped:\n"+
+		"  jcr:foreach [-0] [--input=<uri>] [-P <n>] [--fail-fast] [--replace=<str>] \\\n"+
+		"    [--journal=<file>] [--] <command> [<arg> ...]\n"+
+		"  \n"+
+		"  # Like jcr:foreach, but append as many records to each command as will fit\n"+
+		"  # in the OS's argument space (or <n>, counted the same way), given the environment:\n"+
+		"  jcr:batch-args [-0] [--input=<uri>] [-P <n>] [--fail-fast] [--max-chars=<n>] \\\n"+
+		"    [--] <command> [<arg> ...]\n"+
+		"  \n"+
+		"  # Print bitprint (default), SHA-1, SHA-256, and/or Tiger tree hash URNs\n"+
+		"  # of each file or URI (or stdin), followed by its name if there are several.\n"+
+		"  # With --check, read lines of '<urn>[<tab><file|uri>]' and verify each one,\n"+
+		"  # <n> at a time; URNs by themselves are looked up in blob repositories:\n"+
+		"  jcr:hash [--algorithm=<algorithm>[,...]] [--] [<file|uri> ...]\n"+
+		"  jcr:hash --check [--jobs=<n>] [--] [<list-file|uri> ...]\n"+
+		"  \n"+
+		"  # Run each line of a script as a command, stopping at the first that fails\n"+
+		"  # (unless --keep-going).  Lines with no command, only <k>=<v> and options\n"+
+		"  # like --cd, apply to the rest of the script.  Words are separated by spaces;\n"+
+		"  # '...' and \"...\" (which understands \\\" \\\\ \\n \\r \\t) quote, \\ escapes\n"+
+		"  # the next character or joins the next line, and # starts a comment:\n"+
+		"  jcr:script [--keep-going] [--] <file|uri>\n"+
+		"  \n"+
+		"  # Run a Java class's main method in this JVM, with System.exit trapped and\n"+
+		"  # System.in/out/err connected to the command's stdio.  Classes are loaded in\n"+
+		"  # isolation, and reused by later runs with the same classpath.  If\n"+
+		"  # JCR36_IN_PROCESS_JAVA=true, 'java' commands with these options are run this way\n"+
+		"  # when in this JVM's working directory and environment:\n"+
+		"  jcr:java-main [-cp <classpath>] <class> [<arg> ...]\n"+
+		"  jcr:java-main -jar <jar> [<arg> ...]\n"+
+		"  # ('jcr36', if it's a launcher for this jar, or 'java' running this same jar,\n"+
+		"  # is run in this JVM unless given a --timeout or JCR36_IN_PROCESS_SELF=false.)\n"+
+		"  \n"+
+		"  # Listen for commands from jcr:client on localhost, running each in this JVM:\n"+
+		"  # (Using JCR36_SERVER_SECRET, or a newly generated one in JCR36_SERVER_SECRET_FILE.)\n"+
+		"  jcr:serve [--port=<port>] [--bind=<address>] [--max-connections=<n>]\n"+
+		"  \n"+
+		"  # Run a command on a jcr:serve server, passing along env, pwd, and stdio:\n"+
+		"  jcr:client [--port=<port>] [--host=<host>] [--] <command> [<arg> ...]\n"+
+		"  \n"+
+		"  # Exit with status code:\n"+
+		"  jrc:exit [<code>]";
+	
+	static final Pattern LOAD_ENV_FROM_PROPERTIES_FILE_PATTERN = Pattern.compile("--load-env-from-properties-file=(.*)");
+	static final Pattern SCRIPT_OPTPAT = Pattern.compile("^--script=(.*)$");
+	static final Pattern KILL_AFTER_OPTPAT = Pattern.compile("^--kill-after=(.*)$");
+	static final Pattern METRICS_OUT_OPTPAT = Pattern.compile("^--metrics-out=(.*)$");
+	static final Pattern TRACE_OUT_OPTPAT = Pattern.compile("^--trace-out=(.*)$");
+	static final Pattern CD_PATTERN = Pattern.compile("--cd=(.*)");
+	
+	static final Pattern STDIN_PATTERN = Pattern.compile("--stdin=(.*)");
+	static final Pattern STDOUT_PATTERN = Pattern.compile("--stdout=(.*)");
+	static final Pattern STDOUT_APPEND_PATTERN = Pattern.compile("--stdout-append=(.*)");
+	static final Pattern STDERR_PATTERN = Pattern.compile("--stderr=(.*)");
+	static final Pattern STDERR_APPEND_PATTERN = Pattern.compile("--stderr-append=(.*)");
+	
+	//// In-process Java
+	
+	/**
+	 * If "true", 'java [-cp <classpath>] <class> [<arg> ...]' and 'java -jar <jar> [<arg> ...]'
+	 * commands are run by jcr:java-main, in this JVM, when doing so wouldn't change their meaning,
+	 * i.e. when they would be run in this JVM's working directory and environment
+	 * (ignoring aliases and this variable itself), without any other JVM options or a timeout.
+	 */
+	public static final String IN_PROCESS_JAVA_VAR = "JCR36_IN_PROCESS_JAVA";
+	
+	/**
+	 * Thrown in place of calling System.exit by classes loaded by a JavaMainClassLoader,
+	 * and caught by runJavaMain, which returns the status as the command's exit code.
+	 */
+	public static class JavaMainExit extends Error {
+		private static final long serialVersionUID = 1L;
+		public final int status;
+		JavaMainExit(int status) {
+			super("System.exit("+status+")", null, false, false);
+			this.status = status;
+		}
+		/** Called by patched classes instead of System.exit */
+		public static void exit(int status) {
+			throw new JavaMainExit(status);
+		}
+	}
+	
+	static final String JAVA_MAIN_EXIT_INTERNAL_NAME = JavaMainExit.class.getName().replace('.', '/');
+	
+	/**
+	 * Rewrite calls to java/lang/System.exit(I)V in the given class file
+	 * to call JavaMainExit.exit instead, by adding a constant for JavaMainExit
+	 * and pointing the exit Methodref(s) at it.
+	 * Returns the class file unchanged if it doesn't call System.exit.
+	 */
+	static byte[] patchSystemExitCalls(byte[] classFile) {
+		ByteBuffer bb = ByteBuffer.wrap(classFile);
+		if( classFile.length < 10 || bb.getInt(0) != 0xCAFEBABE ) return classFile;
+		int count = bb.getShort(8) & 0xFFFF;
+		int[] offsets = new int[count];
+		int pos = 10;
+		for( int k = 1; k < count; ++k ) {
+			offsets[k] = pos;
+			int tag = classFile[pos] & 0xFF;
+			switch( tag ) {
+			case 1: pos += 3 + (bb.getShort(pos+1) & 0xFFFF); break; // Utf8
+			case 7: case 8: case 16: case 19: case 20: pos += 3; break; // Class, String, MethodType, Module, Package
+			case 15: pos += 4; break; // MethodHandle
+			case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: pos += 5; break;
+			case 5: case 6: pos += 9; ++k; break; // Long and Double take two slots
+			default: return classFile; // Something newer than we understand; leave it alone
+			}
+		}
+		int constantPoolEnd = pos;
+		
+		BitSet systemUtf8s = new BitSet(), exitUtf8s = new BitSet(), intVoidUtf8s = new BitSet();
+		for( int k = 1; k < count; ++k ) {
+			if( offsets[k] == 0 || classFile[offsets[k]] != 1 ) continue;
+			int len = bb.getShort(offsets[k]+1) & 0xFFFF;
+			String s = new String(classFile, offsets[k]+3, len, UTF8);
+			if( "java/lang/System".equals(s) ) systemUtf8s.set(k);
+			else if( "exit".equals(s) ) exitUtf8s.set(k);
+			else if( "(I)V".equals(s) ) intVoidUtf8s.set(k);
+		}
+		if( systemUtf8s.isEmpty() || exitUtf8s.isEmpty() || intVoidUtf8s.isEmpty() ) return classFile;
+		
+		BitSet systemClasses = new BitSet(), exitNats = new BitSet();
+		for( int k = 1; k < count; ++k ) {
+			if( offsets[k] == 0 ) continue;
+			int o = offsets[k];
+			if( classFile[o] == 7 && systemUtf8s.get(bb.getShort(o+1) & 0xFFFF) ) systemClasses.set(k);
+			if( classFile[o] == 12 && exitUtf8s.get(bb.getShort(o+1) & 0xFFFF) && intVoidUtf8s.get(bb.getShort(o+3) & 0xFFFF) ) exitNats.set(k);
+		}
+		List<Integer> exitMethodrefs = new ArrayList<Integer>();
+		for( int k = 1; k < count; ++k ) {
+			if( offsets[k] == 0 ) continue;
+			int o = offsets[k];
+			if( classFile[o] == 10 && systemClasses.get(bb.getShort(o+1) & 0xFFFF) && exitNats.get(bb.getShort(o+3) & 0xFFFF) ) {
+				exitMethodrefs.add(o);
+			}
+		}
+		if( exitMethodrefs.isEmpty() || count + 2 > 0xFFFF ) return classFile;
+		
+		byte[] name = JAVA_MAIN_EXIT_INTERNAL_NAME.getBytes(UTF8);
+		ByteBuffer patched = ByteBuffer.allocate(classFile.length + 3 + name.length + 3);
+		patched.put(classFile, 0, constantPoolEnd);
+		patched.putShort(8, (short)(count + 2));
+		for( int o : exitMethodrefs ) patched.putShort(o+1, (short)(count + 1));
+		patched.put((byte)1).putShort((short)name.length).put(name);
+		patched.put((byte)7).putShort((short)count);
+		patched.put(classFile, constantPoolEnd, classFile.length - constantPoolEnd);
+		return patched.array();
+	}
+	
+	/**
+	 * Loads classes from a classpath in isolation from this program's own classes
+	 * (its parent being the system class loader's parent),
+	 * patching calls to System.exit so that they throw JavaMainExit instead.
+	 */
+	static class JavaMainClassLoader extends URLClassLoader {
+		static {
+			try {
+				// Java 7+; lets unrelated classes load concurrently
+				Method m = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+				m.setAccessible(true);
+				m.invoke(null);
+			} catch( Exception e ) {
+				// Oh well
+			}
+		}
+		
+		/** Names of packages defined so far; guarded by this */
+		protected final Set<String> definedPackageNames = new HashSet<String>();
+		
+		public JavaMainClassLoader(URL[] urls) {
+			super(urls, ClassLoader.getSystemClassLoader().getParent());
+		}
+		
+		@Override protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if( JavaMainExit.class.getName().equals(name) ) return JavaMainExit.class;
+			return super.loadClass(name, resolve);
+		}
+		
+		@Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+			URL resource = findResource(name.replace('.', '/')+".class");
+			if( resource == null ) throw new ClassNotFoundException(name);
+			byte[] classFile;
+			try {
+				InputStream is = resource.openStream();
+				try {
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					byte[] buf = new byte[8192];
+					int z;
+					while( (z = is.read(buf)) > 0 ) baos.write(buf, 0, z);
+					classFile = baos.toByteArray();
+				} finally {
+					is.close();
+				}
+			} catch( IOException e ) {
+				throw new ClassNotFoundException(name, e);
+			}
+			classFile = patchSystemExitCalls(classFile);
+			
+			int lastDot = name.lastIndexOf('.');
+			if( lastDot > 0 ) {
+				String packageName = name.substring(0, lastDot);
+				synchronized( this ) {
+					if( definedPackageNames.add(packageName) ) {
+						definePackage(packageName, null, null, null, null, null, null, null);
+					}
+				}
+			}
+			
+			URL codeSourceUrl = null;
+			String resourceString = resource.toString();
+			for( URL u : getURLs() ) {
+				if( resourceString.startsWith(u.toString()) || resourceString.startsWith("jar:"+u+"!/") ) {
+					codeSourceUrl = u;
+					break;
+				}
+			}
+			return defineClass(name, classFile, 0, classFile.length, new CodeSource(codeSourceUrl, (Certificate[])null));
+		}
+	}
+	
+	static class CachedJavaMainClassLoader {
+		final String signature;
+		final JavaMainClassLoader classLoader;
+		CachedJavaMainClassLoader(String signature, JavaMainClassLoader classLoader) {
+			this.signature = signature;
+			this.classLoader = classLoader;
+		}
+	}
+	
+	static final int JAVA_MAIN_CLASS_LOADER_CACHE_SIZE = 16;
+	static final ConcurrentHashMap<String,CachedJavaMainClassLoader> JAVA_MAIN_CLASS_LOADERS = new ConcurrentHashMap<String,CachedJavaMainClassLoader>();
+	
+	/**
+	 * Return a class loader for the given classpath, re-using the one from last time
+	 * (so that classes are only loaded and JIT-compiled once) unless any of the
+	 * classpath's files have changed since.  Changes to class files within
+	 * directories are not noticed.
+	 */
+	static JavaMainClassLoader getJavaMainClassLoader(URL[] classpath) {
+		String key = Arrays.toString(classpath);
+		StringBuilder signature = new StringBuilder();
+		for( URL u : classpath ) {
+			if( "file".equals(u.getProtocol()) ) {
+				File f;
+				try {
+					f = new File(u.toURI());
+				} catch( URISyntaxException e ) {
+					continue;
+				}
+				signature.append(f.lastModified()).append(':').append(f.length()).append(';');
+			}
+		}
+		String sig = signature.toString();
+		CachedJavaMainClassLoader cached = JAVA_MAIN_CLASS_LOADERS.get(key);
+		if( cached != null && cached.signature.equals(sig) ) return cached.classLoader;
+		// Old class loaders aren't closed, since things they loaded may still be running
+		if( JAVA_MAIN_CLASS_LOADERS.size() >= JAVA_MAIN_CLASS_LOADER_CACHE_SIZE ) JAVA_MAIN_CLASS_LOADERS.clear();
+		JavaMainClassLoader loader = new JavaMainClassLoader(classpath);
+		JAVA_MAIN_CLASS_LOADERS.put(key, new CachedJavaMainClassLoader(sig, loader));
+		return loader;
+	}
+	
+	/** A main class to be invoked, and where to load it from */
+	static class JavaMain {
+		final URL[] classpath;
+		final String className;
+		final String[] args;
+		JavaMain(URL[] classpath, String className, String[] args) {
+			this.classpath = classpath;
+			this.className = className;
+			this.args = args;
+		}
+	}
+	
+	/**
+	 * Parse a classpath the way java would, except that relative entries
+	 * are resolved relative to pwd.
+	 */
+	static List<URL> parseClasspath(String classpath, File pwd) throws IOException {
+		List<URL> urls = new ArrayList<URL>();
+		for( String entry : classpath.split(Pattern.quote(File.pathSeparator), -1) ) {
+			if( entry.isEmpty() ) entry = ".";
+			if( entry.equals("*") || entry.endsWith("/*") || entry.endsWith(File.separator+"*") ) {
+				File dir = new File(resolveFilePath(pwd, entry.substring(0, entry.length()-1), false));
+				File[] files = dir.listFiles();
+				if( files == null ) continue;
+				Arrays.sort(files);
+				for( File f : files ) {
+					String n = f.getName().toLowerCase(Locale.ROOT);
+					if( n.endsWith(".jar") ) urls.add(f.toURI().toURL());
+				}
+			} else {
+				urls.add(new File(resolveFilePath(pwd, entry, false)).toURI().toURL());
+			}
+		}
+		return urls;
+	}
+	
+	/**
+	 * Parse java's arguments, starting at args[i],
+	 * into a main class, its classpath, and its arguments.
+	 * Returns null if there are options other than
+	 * -cp/-classpath/--class-path and -jar, which can't be honored in-process.
+	 * 
+	 * @throws IOException if there is no main class or the jar's manifest can't be read
+	 */
+	static JavaMain parseJavaMain(String[] args, int i, File pwd, Map<String,String> env) throws IOException {
+		String classpath = null;
+		String jar = null;
+		for( ; i < args.length; ++i ) {
+			String arg = args[i];
+			if( "-cp".equals(arg) || "-classpath".equals(arg) || "--class-path".equals(arg) ) {
+				if( ++i == args.length ) throw new IOException(arg+" requires a classpath");
+				classpath = args[i];
+			} else if( arg.startsWith("--class-path=") ) {
+				classpath = arg.substring("--class-path=".length());
+			} else if( "-jar".equals(arg) ) {
+				if( ++i == args.length ) throw new IOException("-jar requires a jar file");
+				jar = args[i++];
+				break;
+			} else if( arg.startsWith("-") ) {
+				return null;
+			} else {
+				break;
+			}
+		}
+		
+		List<URL> urls = new ArrayList<URL>();
+		String className;
+		if( jar != null ) {
+			// As with java -jar, any other classpath is ignored
+			File jarFile = new File(resolveFilePath(pwd, jar, false));
+			Manifest manifest;
+			JarFile jf = new JarFile(jarFile);
+			try {
+				manifest = jf.getManifest();
+			} finally {
+				jf.close();
+			}
+			Attributes attrs = manifest == null ? null : manifest.getMainAttributes();
+			className = attrs == null ? null : attrs.getValue(Attributes.Name.MAIN_CLASS);
+			if( className == null ) throw new IOException("No Main-Class in manifest of "+jarFile);
+			URL jarUrl = jarFile.toURI().toURL();
+			urls.add(jarUrl);
+			String manifestClasspath = attrs.getValue(Attributes.Name.CLASS_PATH);
+			if( manifestClasspath != null ) {
+				for( String entry : manifestClasspath.trim().split("\\s+") ) {
+					if( !entry.isEmpty() ) urls.add(new URL(jarUrl, entry));
+				}
+			}
+		} else {
+			if( i == args.length ) throw new IOException("No main class given");
+			className = args[i++];
+			if( classpath == null ) classpath = env.get("CLASSPATH");
+			if( classpath == null ) classpath = ".";
+			urls.addAll(parseClasspath(classpath, pwd));
+		}
+		return new JavaMain(urls.toArray(new URL[urls.size()]), className, Arrays.copyOfRange(args, i, args.length));
+	}
+	
+	static final PrintStream NULL_PRINT_STREAM = new PrintStream(new OutputStream() {
+		@Override public void write(int b) { }
+		@Override public void write(byte[] buf, int off, int len) { }
+	});
+	
+	/**
+	 * System.in, System.out, and System.err of the mains being run by runJavaMain,
+	 * for the threads running them and any threads they start; null for other threads.
+	 */
+	static final InheritableThreadLocal<Object[]> JAVA_MAIN_STDIO = new InheritableThreadLocal<Object[]>();
+	
+	/**
+	 * Installed as System.in by installStdioDispatchers;
+	 * reads from the current thread's JAVA_MAIN_STDIO stdin,
+	 * or from what was System.in before if there isn't one.
+	 */
+	static class StdinDispatchingInputStream extends InputStream {
+		protected final InputStream fallback;
+		public StdinDispatchingInputStream(InputStream fallback) {
+			this.fallback = fallback;
+		}
+		protected InputStream target() {
+			Object[] stdio = JAVA_MAIN_STDIO.get();
+			return stdio == null ? fallback : (InputStream)stdio[0];
+		}
+		@Override public int read() throws IOException { return target().read(); }
+		@Override public int read(byte[] buf, int off, int len) throws IOException { return target().read(buf, off, len); }
+		@Override public long skip(long n) throws IOException { return target().skip(n); }
+		@Override public int available() throws IOException { return target().available(); }
+		@Override public void close() throws IOException { target().close(); }
+	}
+	
+	/**
+	 * Installed as System.out or System.err by installStdioDispatchers;
+	 * writes to the current thread's JAVA_MAIN_STDIO stream,
+	 * or to what was there before if there isn't one.
+	 * Every method is delegated, so that PrintStream's own lock isn't taken,
+	 * which would let one thread blocked on writing hold up all the others.
+	 */
+	static class StdioDispatchingPrintStream extends PrintStream {
+		protected final int index;
+		protected final PrintStream fallback;
+		public StdioDispatchingPrintStream(int index, PrintStream fallback) {
+			super(fallback);
+			this.index = index;
+			this.fallback = fallback;
+		}
+		protected PrintStream target() {
+			Object[] stdio = JAVA_MAIN_STDIO.get();
+			return stdio == null ? fallback : (PrintStream)stdio[index];
+		}
+		@Override public void write(int b) { target().write(b); }
+		@Override public void write(byte[] buf, int off, int len) { target().write(buf, off, len); }
+		@Override public void flush() { target().flush(); }
+		@Override public void close() { target().close(); }
+		@Override public boolean checkError() { return target().checkError(); }
+		@Override public void print(boolean b) { target().print(b); }
+		@Override public void print(char c) { target().print(c); }
+		@Override public void print(int i) { target().print(i); }
+		@Override public void print(long l) { target().print(l); }
+		@Override public void print(float f) { target().print(f); }
+		@Override public void print(double d) { target().print(d); }
+		@Override public void print(char[] s) { target().print(s); }
+		@Override public void print(String s) { target().print(s); }
+		@Override public void print(Object obj) { target().print(obj); }
+		@Override public void println() { target().println(); }
+		@Override public void println(boolean x) { target().println(x); }
+		@Override public void println(char x) { target().println(x); }
+		@Override public void println(int x) { target().println(x); }
+		@Override public void println(long x) { target().println(x); }
+		@Override public void println(float x) { target().println(x); }
+		@Override public void println(double x) { target().println(x); }
+		@Override public void println(char[] x) { target().println(x); }
+		@Override public void println(String x) { target().println(x); }
+		@Override public void println(Object x) { target().println(x); }
+		@Override public PrintStream printf(String format, Object... args) { target().printf(format, args); return this; }
+		@Override public PrintStream printf(Locale l, String format, Object... args) { target().printf(l, format, args); return this; }
+		@Override public PrintStream format(String format, Object... args) { target().format(format, args); return this; }
+		@Override public PrintStream format(Locale l, String format, Object... args) { target().format(l, format, args); return this; }
+		@Override public PrintStream append(CharSequence csq) { target().append(csq); return this; }
+		@Override public PrintStream append(CharSequence csq, int start, int end) { target().append(csq, start, end); return this; }
+		@Override public PrintStream append(char c) { target().append(c); return this; }
+	}
+	
+	/**
+	 * Replace System.in/out/err with ones that dispatch to JAVA_MAIN_STDIO,
+	 * unless that's already been done.  Unlike swapping System.in/out/err around
+	 * each run, this lets any number of mains run at once, each with its own stdio,
+	 * without affecting what any other thread sees.
+	 */
+	static synchronized void installStdioDispatchers() {
+		if( !(System.in instanceof StdinDispatchingInputStream) ) System.setIn(new StdinDispatchingInputStream(System.in));
+		if( !(System.out instanceof StdioDispatchingPrintStream) ) System.setOut(new StdioDispatchingPrintStream(1, System.out));
+		if( !(System.err instanceof StdioDispatchingPrintStream) ) System.setErr(new StdioDispatchingPrintStream(2, System.err));
+	}
+	
+	/** Is stream the given System stream, or what it dispatches to when not in a main? */
+	static boolean isSystemStream(Object stream, Object systemStream) {
+		if( stream == systemStream ) return true;
+		if( systemStream instanceof StdinDispatchingInputStream ) return stream == ((StdinDispatchingInputStream)systemStream).fallback;
+		if( systemStream instanceof StdioDispatchingPrintStream ) return stream == ((StdioDispatchingPrintStream)systemStream).fallback;
+		return false;
+	}
+	
+	/**
+	 * Run a main method in this JVM, with System.in/out/err connected to io
+	 * for its thread and any threads that it starts.
+	 * Its working directory and environment are this JVM's;
+	 * threads that it starts are not waited for.
+	 * 
+	 * @return the status passed to System.exit, or 0 if main returned, or 1 if it threw
+	 */
+	static int runJavaMain(JavaMain jm, Object[] io) {
+		InputStream in = toInputStream(io[0]);
+		PrintStream out = toPrintStream(io[1]);
+		PrintStream err = toPrintStream(io[2]);
+		if( out == null ) out = NULL_PRINT_STREAM;
+		if( err == null ) err = NULL_PRINT_STREAM;
+		// System.in/out/err themselves would dispatch back to these
+		if( in instanceof StdinDispatchingInputStream ) in = ((StdinDispatchingInputStream)in).target();
+		if( out instanceof StdioDispatchingPrintStream ) out = ((StdioDispatchingPrintStream)out).target();
+		if( err instanceof StdioDispatchingPrintStream ) err = ((StdioDispatchingPrintStream)err).target();
+		JavaMainClassLoader loader = getJavaMainClassLoader(jm.classpath);
+		
+		installStdioDispatchers();
+		InputStream sysIn = System.in;
+		PrintStream sysOut = System.out;
+		PrintStream sysErr = System.err;
+		Object[] oldStdio = JAVA_MAIN_STDIO.get();
+		Thread thread = Thread.currentThread();
+		ClassLoader oldContextClassLoader = thread.getContextClassLoader();
+		JAVA_MAIN_STDIO.set(new Object[] { in, out, err });
+		thread.setContextClassLoader(loader);
+		try {
+			// Static initializers run here, and may themselves call System.exit
+			Method main = Class.forName(jm.className, true, loader).getMethod("main", String[].class);
+			if( !Modifier.isStatic(main.getModifiers()) ) {
+				err.println("Error: Main method is not static in class "+jm.className);
+				return 1;
+			}
+			// java itself doesn't care whether the class is public
+			main.setAccessible(true);
+			main.invoke(null, (Object)jm.args);
+			return 0;
+		} catch( JavaMainExit e ) {
+			return e.status;
+		} catch( InvocationTargetException e ) {
+			if( e.getCause() instanceof JavaMainExit ) return ((JavaMainExit)e.getCause()).status;
+			err.print("Exception in thread \"main\" ");
+			trimInvocationFrames(e.getCause()).printStackTrace(err);
+			return 1;
+		} catch( ClassNotFoundException e ) {
+			err.println("Error: Could not find or load main class "+jm.className);
+			return 1;
+		} catch( NoSuchMethodException e ) {
+			err.println("Error: Main method not found in class "+jm.className);
+			return 1;
+		} catch( LinkageError e ) {
+			// Including ExceptionInInitializerError
+			err.print("Exception in thread \"main\" ");
+			e.printStackTrace(err);
+			return 1;
+		} catch( IllegalAccessException e ) {
+			err.println("Error: Main method of "+jm.className+" is not accessible: "+e.getMessage());
+			return 1;
+		} finally {
+			out.flush();
+			err.flush();
+			thread.setContextClassLoader(oldContextClassLoader);
+			JAVA_MAIN_STDIO.set(oldStdio);
+			// In case main replaced them itself
+			if( System.in != sysIn ) System.setIn(sysIn);
+			if( System.out != sysOut ) System.setOut(sysOut);
+			if( System.err != sysErr ) System.setErr(sysErr);
+		}
+	}
+	
+
+	/** Remove the frames of reflection and of this program from below main in t's stack trace, as java would show it */
+	static Throwable trimInvocationFrames(Throwable t) {
+		StackTraceElement[] trace = t.getStackTrace();
+		for( int k = 0; k < trace.length; ++k ) {
+			if( "java.lang.reflect.Method".equals(trace[k].getClassName()) && "invoke".equals(trace[k].getMethodName()) ) {
+				int end = k;
+				while( end > 0 && (
+					trace[end-1].getClassName().startsWith("jdk.internal.reflect.") ||
+					trace[end-1].getClassName().startsWith("sun.reflect.")
+				) ) --end;
+				t.setStackTrace(Arrays.copyOf(trace, end));
+				break;
+			}
+		}
+		return t;
+	}
+	
+	public static int doJavaMain(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+		JavaMain jm;
+		try {
+			jm = parseJavaMain(args, i, pwd, env);
+		} catch( IOException e ) {
+			printError(io[2], "jcr:java-main: "+e.getMessage());
+			return 1;
+		}
+		if( jm == null ) {
+			printError(io[2], "jcr:java-main: Only -cp/-classpath/--class-path and -jar options are supported");
+			return 1;
+		}
+		return runJavaMain(jm, io);
+	}
+	
+	/** Is k an alias or one of the variables that only jcr36 itself cares about? */
+	static boolean isJcr36Var(String k) {
+		return k.startsWith("JCR_ALIAS_") || IN_PROCESS_JAVA_VAR.equals(k) ||
+			METRICS_OUT_VAR.equals(k) || METRICS_DEPTH_VAR.equals(k) ||
+			TRACE_OUT_VAR.equals(k) || TRACE_ID_VAR.equals(k);
+	}
+	
+	/** Does env match this JVM's environment, ignoring jcr36's own variables? */
+	static boolean isJvmEnvironment(Map<String,String> env) {
+		Map<String,String> jvmEnv = System.getenv();
+		for( Map.Entry<String,String> e : env.entrySet() ) {
+			String k = e.getKey();
+			if( isJcr36Var(k) ) continue;
+			if( !e.getValue().equals(jvmEnv.get(k)) ) return false;
+		}
+		for( String k : jvmEnv.keySet() ) {
+			if( isJcr36Var(k) ) continue;
+			if( !env.containsKey(k) ) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * If IN_PROCESS_JAVA_VAR is enabled and args[i...] is a java command
+	 * that can be run in-process without changing its meaning, return it as a JavaMain.
+	 * Otherwise return null.
+	 */
+	static JavaMain getInProcessJavaMain(String[] args, int i, File pwd, Map<String,String> env) {
+		if( !"true".equals(env.get(IN_PROCESS_JAVA_VAR)) ) return null;
+		String program = new File(args[i]).getName();
+		if( !"java".equals(program) && !"java.exe".equalsIgnoreCase(program) ) return null;
+		try {
+			if( pwd != null && !pwd.getCanonicalFile().equals(new File("").getCanonicalFile()) ) return null;
+			if( !isJvmEnvironment(env) ) return null;
+			return parseJavaMain(args, i+1, pwd, env);
+		} catch( IOException e ) {
+			// Let java report the problem
+			return null;
+		}
+	}
+	
+	//// Self-invocation
+	
+	/**
+	 * Unless "false", commands that would start another instance of this program
+	 * ('jcr36', when that resolves to a launcher for it, or java with this class
+	 * as its main class, loaded from the same place) are instead run
+	 * by doJcrDoCmdMain in this JVM, with the same args, env, pwd, and io.
+	 */
+	public static final String IN_PROCESS_SELF_VAR = "JCR36_IN_PROCESS_SELF";
+	
+	static final Pattern SELF_PROGRAM_NAME_PATTERN = Pattern.compile("^jcr36(?:\\.(?:bat|cmd|exe|sh))?$", Pattern.CASE_INSENSITIVE);
+	
+	static volatile File selfLocation;
+	
+	/** The canonical jar file or directory that this class was loaded from, or null if not known */
+	static File getSelfLocation() {
+		File location = selfLocation;
+		if( location == null ) {
+			try {
+				location = new File(SimplerCommandRunner.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getCanonicalFile();
+			} catch( Exception e ) {
+				// No CodeSource, not a file, or not canonicalizable
+				return null;
+			}
+			selfLocation = location;
+		}
+		return location;
+	}
+	
+	/** Launcher scripts bigger than this aren't looked into */
+	static final int MAX_LAUNCHER_SCRIPT_SIZE = 64 * 1024;
+	
+	/**
+	 * Is file this program's own jar, or a (small) script that runs it,
+	 * i.e. that mentions its absolute path, or its name if in the same directory?
+	 */
+	static boolean isSelfLauncher(File file) {
+		File self = getSelfLocation();
+		if( self == null ) return false;
+		try {
+			file = file.getCanonicalFile();
+		} catch( IOException e ) {
+			return false;
+		}
+		if( file.equals(self) ) return true;
+		if( !file.isFile() || file.length() > MAX_LAUNCHER_SCRIPT_SIZE ) return false;
+		byte[] data = new byte[(int)file.length()];
+		try {
+			DataInputStream dis = new DataInputStream(new FileInputStream(file));
+			try {
+				dis.readFully(data);
+			} finally {
+				dis.close();
+			}
+		} catch( IOException e ) {
+			return false;
+		}
+		String script = new String(data, UTF8);
+		if( script.contains(self.getPath()) || script.contains(self.getPath().replace('\\', '/')) ) return true;
+		return self.getParentFile() != null && self.getParentFile().equals(file.getParentFile()) && script.contains(self.getName());
+	}
+	
+	static boolean isSelfLocation(URL url) {
+		File self = getSelfLocation();
+		if( self == null || !"file".equals(url.getProtocol()) ) return false;
+		try {
+			return self.equals(new File(url.toURI()).getCanonicalFile());
+		} catch( URISyntaxException e ) {
+			return false;
+		} catch( IOException e ) {
+			return false;
+		}
+	}
+	
+	/**
+	 * If args[i...] would run this program, return the index
+	 * of the first argument that would be passed to its main method.
+	 * Otherwise (or if disabled by IN_PROCESS_SELF_VAR) return -1.
+	 */
+	static int getSelfInvocationArgsIndex(String[] args, int i, File pwd, Map<String,String> env) {
+		if( "false".equals(env.get(IN_PROCESS_SELF_VAR)) ) return -1;
+		String program = new File(args[i]).getName();
+		if( SELF_PROGRAM_NAME_PATTERN.matcher(program).matches() ) {
+			// Only if it's what would actually be run
+			File launcher = program.equals(args[i]) ?
+				new File(resolveProgram(program, env)) :
+				new File(resolveFilePath(pwd == null ? new File("").getAbsoluteFile() : pwd, args[i], false));
+			return launcher.isAbsolute() && isSelfLauncher(launcher) ? i+1 : -1;
+		}
+		if( !"java".equals(program) && !"java.exe".equalsIgnoreCase(program) ) return -1;
+		
+		JavaMain jm;
+		try {
+			jm = parseJavaMain(args, i+1, pwd, env);
+		} catch( IOException e ) {
+			return -1;
+		}
+		if( jm == null || !SimplerCommandRunner.class.getName().equals(jm.className) ) return -1;
+		// The first entry that has the class is the one it'd be loaded from;
+		// make sure it's this one, and not some other version
+		for( URL u : jm.classpath ) {
+			if( isSelfLocation(u) ) return args.length - jm.args.length;
+			if( containsSelfClass(u) ) return -1;
+		}
+		return -1;
+	}
+	
+	static boolean containsSelfClass(URL classpathEntry) {
+		String classFileName = SimplerCommandRunner.class.getName().replace('.', '/')+".class";
+		URLClassLoader loader = new URLClassLoader(new URL[] { classpathEntry }, null);
+		try {
+			return loader.findResource(classFileName) != null;
+		} finally {
+			try {
+				loader.close();
+			} catch( IOException e ) {
+				// Whatever
+			}
+		}
+	}
+	
+	//// Metrics
+	
+	/**
+	 * If set, a line of JSON describing each command run
+	 * (how long each phase of running it took, its exit code, bytes piped, etc)
+	 * is appended to the named file.  Set by --metrics-out=<file>,
+	 * and inherited by sub-commands, including those run by other processes.
+	 */
+	public static final String METRICS_OUT_VAR = "JCR36_METRICS_OUT";
+	/** How many commands deep the current one is; set for sub-commands while recording metrics */
+	public static final String METRICS_DEPTH_VAR = "JCR36_METRICS_DEPTH";
+	
+	/**
+	 * What happened while running a command.
+	 * Filled in by whatever runs it; times are in nanoseconds, and -1 if not applicable.
+	 */
+	static class CommandMetrics {
+		final String command;
+		final int depth;
+		/** Time spent processing options and dealiasing the command name */
+		final long bindNs;
+		final long startTimeMs = System.currentTimeMillis();
+		final long startNs = System.nanoTime();
+		/** Resolved path of the program, for system processes */
+		String program;
+		long pathSearchNs = -1;
+		/** Time taken by ProcessBuilder.start() */
+		long spawnNs = -1;
+		/** System.nanoTime() when the process was started */
+		long processStartedNs;
+		/** From the process starting to exiting */
+		long runNs = -1;
+		/** From the process exiting to its output having been copied */
+		long drainNs = -1;
+		Piper stdinPiper, stdoutPiper, stderrPiper;
+		/** Number of attempts made by jcr:until, or 0 */
+		int attempts = 0;
+		
+		CommandMetrics(String command, int depth, long bindNs) {
+			this.command = command;
+			this.depth = depth;
+			this.bindNs = bindNs;
+		}
+		
+		static void appendNs(StringBuilder sb, String name, long ns) {
+			if( ns >= 0 ) sb.append(",\"").append(name).append("\":").append(ns);
+		}
+		static void appendBytes(StringBuilder sb, String name, Piper p) {
+			if( p != null ) sb.append(",\"").append(name).append("\":").append(p.getByteCount());
+		}
+		
+		/** @param exitCode null if the command threw an exception */
+		String toJson(Integer exitCode, long totalNs) {
+			StringBuilder sb = new StringBuilder(256);
+			sb.append("{\"start\":").append(startTimeMs);
+			sb.append(",\"depth\":").append(depth);
+			sb.append(",\"command\":").append(jsonQuote(command));
+			if( program != null ) sb.append(",\"program\":").append(jsonQuote(program));
+			sb.append(",\"exitCode\":").append(exitCode);
+			sb.append(",\"totalNs\":").append(totalNs);
+			appendNs(sb, "bindNs", bindNs);
+			appendNs(sb, "pathSearchNs", pathSearchNs);
+			appendNs(sb, "spawnNs", spawnNs);
+			appendNs(sb, "runNs", runNs);
+			appendNs(sb, "drainNs", drainNs);
+			appendBytes(sb, "stdinBytes", stdinPiper);
+			appendBytes(sb, "stdoutBytes", stdoutPiper);
+			appendBytes(sb, "stderrBytes", stderrPiper);
+			if( attempts > 0 ) sb.append(",\"retries\":").append(attempts - 1);
+			return sb.append("}\n").toString();
+		}
+	}
+	
+	/** Unlike quote, escapes all control characters the way JSON requires */
+	static String jsonQuote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for( int k = 0; k < s.length(); ++k ) {
+			char c = s.charAt(k);
+			switch( c ) {
+			case '"' : sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if( c < 0x20 ) {
+					sb.append("\\u00").append(hexEncodeDigit(c >> 4)).append(hexEncodeDigit(c & 0xF));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	/** Metrics for the command being run by the current thread, if they're being recorded */
+	static final ThreadLocal<CommandMetrics> CURRENT_METRICS = new ThreadLocal<CommandMetrics>();
+	
+	/**
+	 * Metrics files, kept open in append mode so that each record is a single write,
+	 * which keeps records from different threads and processes from being interleaved
+	 */
+	static final ConcurrentHashMap<String,FileOutputStream> METRICS_OUTPUTS = new ConcurrentHashMap<String,FileOutputStream>();
+	static final Set<String> FAILED_METRICS_OUTPUTS = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	
+	static void appendMetrics(String file, String record) {
+		try {
+			FileOutputStream fos = METRICS_OUTPUTS.get(file);
+			if( fos == null ) {
+				fos = new FileOutputStream(file, true);
+				FileOutputStream existing = METRICS_OUTPUTS.putIfAbsent(file, fos);
+				if( existing != null ) {
+					fos.close();
+					fos = existing;
+				}
+			}
+			fos.write(record.getBytes(UTF8));
+		} catch( IOException e ) {
+			// Metrics are not worth failing commands over, or complaining about more than once
+			if( FAILED_METRICS_OUTPUTS.add(file) ) {
+				System.err.println("jcr36: Failed to write metrics to "+file+": "+e.getMessage());
+			}
+		}
+	}
+	
+	/** Run the action, recording metrics to metricsFile and/or a span in traceFile, either of which may be null */
+	static int runInstrumentedAction(JCRAction pc, List<Closeable> toClose, String metricsFile, String traceFile) {
+		Map<String,String> subEnv = new LayeredEnv(pc.env);
+		CommandMetrics metrics = null;
+		if( metricsFile != null ) {
+			int depth = 0;
+			String depthStr = pc.env.get(METRICS_DEPTH_VAR);
+			if( depthStr != null ) try {
+				depth = Integer.parseInt(depthStr);
+			} catch( NumberFormatException e ) {
+				// Treat as top-level
+			}
+			metrics = new CommandMetrics(pc.cmd, depth, pc.bindNs);
+			subEnv.put(METRICS_DEPTH_VAR, String.valueOf(depth + 1));
+		}
+		Trace trace = null;
+		if( traceFile != null ) {
+			trace = getTrace(pc.env);
+			if( trace == null ) {
+				trace = startTrace(traceFile);
+				subEnv.put(TRACE_ID_VAR, trace.id);
+			}
+		}
+		JCRAction subPc = new JCRAction(pc.args, pc.index, pc.cmd, pc.pwd, subEnv, pc.io, pc.timeoutMs, pc.killAfterMs, pc.errorMessage);
+		
+		CommandMetrics outerMetrics = CURRENT_METRICS.get();
+		if( metrics != null ) CURRENT_METRICS.set(metrics);
+		long traceStartUs = trace == null ? 0 : Trace.nowUs();
+		Integer exitCode = null;
+		try {
+			exitCode = doRunAction(subPc, toClose);
+			return exitCode;
+		} finally {
+			if( metrics != null ) {
+				long totalNs = System.nanoTime() - metrics.startNs;
+				CURRENT_METRICS.set(outerMetrics);
+				appendMetrics(metricsFile, metrics.toJson(exitCode, totalNs));
+			}
+			if( trace != null ) {
+				String name = pc.index < pc.args.length ? pc.args[pc.index] : pc.cmd;
+				trace.span("command", name, traceStartUs, "{\"command\":"+jsonQuote(pc.cmd)+",\"exitCode\":"+exitCode+"}");
+			}
+		}
+	}
+	
+	//// Tracing
+	
+	/**
+	 * If set, spans for each command, system process, stream copy, and jcr:until attempt
+	 * are appended to the named file in Chrome's trace event format
+	 * (which chrome://tracing and Perfetto can open).  Set by --trace-out=<file>,
+	 * and inherited by sub-commands, including those run by other processes.
+	 */
+	public static final String TRACE_OUT_VAR = "JCR36_TRACE_OUT";
+	/**
+	 * Identifies the trace being written to TRACE_OUT_VAR.
+	 * Set by --trace-out (or when a trace is started without it),
+	 * so that sub-commands, other processes, and re-runs of the same command
+	 * add to the trace rather than starting a new one.
+	 */
+	public static final String TRACE_ID_VAR = "JCR36_TRACE_ID";
+	
+	// Java 9+
+	static final Method PROCESSHANDLE_CURRENT_METHOD = lookUpMethod("java.lang.ProcessHandle", "current");
+	static final Method PROCESSHANDLE_PID_METHOD = lookUpMethod("java.lang.ProcessHandle", "pid");
+	
+	static long getPid() {
+		if( PROCESSHANDLE_CURRENT_METHOD != null && PROCESSHANDLE_PID_METHOD != null ) {
+			try {
+				return ((Long)PROCESSHANDLE_PID_METHOD.invoke(PROCESSHANDLE_CURRENT_METHOD.invoke(null))).longValue();
+			} catch( Exception e ) {
+				// Fall through to the old way
+			}
+		}
+		// Conventionally "<pid>@<hostname>"
+		String name = java.lang.management.ManagementFactory.getRuntimeMXBean().getName();
+		try {
+			return Long.parseLong(name.substring(0, name.indexOf('@')));
+		} catch( RuntimeException e ) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * A trace file being added to by this process.
+	 * Events are written as a JSON array with no closing bracket (which trace viewers allow),
+	 * one event per line, each with a single append, so that any number of
+	 * threads and processes can add to it.
+	 */
+	static class Trace {
+		// Timestamps are microseconds since the epoch, so that processes' events line up
+		static final long EPOCH_US = System.currentTimeMillis() * 1000;
+		static final long EPOCH_NS = System.nanoTime();
+		static final long PID = getPid();
+		
+		final String file;
+		final String id;
+		/** Null if the file couldn't be opened */
+		final FileOutputStream out;
+		final Set<Long> namedThreads = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+		
+		Trace(String file, String id, FileOutputStream out) {
+			this.file = file;
+			this.id = id;
+			this.out = out;
+		}
+		
+		static long nowUs() {
+			return EPOCH_US + (System.nanoTime() - EPOCH_NS) / 1000;
+		}
+		
+		void write(String events) {
+			if( out == null ) return;
+			try {
+				out.write(events.getBytes(UTF8));
+			} catch( IOException e ) {
+				// Not worth failing the command over
+			}
+		}
+		
+		/**
+		 * Record a span on the current thread from startUs until now.
+		 * @param args a JSON object, or null
+		 */
+		void span(String cat, String name, long startUs, String args) {
+			long endUs = nowUs();
+			Thread thread = Thread.currentThread();
+			long tid = thread.getId();
+			StringBuilder sb = new StringBuilder(256);
+			if( namedThreads.add(tid) ) {
+				sb.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(PID).append(",\"tid\":").append(tid);
+				sb.append(",\"args\":{\"name\":").append(jsonQuote(thread.getName())).append("}},\n");
+			}
+			sb.append("{\"name\":").append(jsonQuote(name)).append(",\"cat\":").append(jsonQuote(cat));
+			sb.append(",\"ph\":\"X\",\"ts\":").append(startUs).append(",\"dur\":").append(endUs - startUs);
+			sb.append(",\"pid\":").append(PID).append(",\"tid\":").append(tid);
+			if( args != null ) sb.append(",\"args\":").append(args);
+			sb.append("},\n");
+			write(sb.toString());
+		}
+	}
+	
+	/** Traces by file name; only the most recent one for each file is kept */
+	static final ConcurrentHashMap<String,Trace> TRACES = new ConcurrentHashMap<String,Trace>();
+	/** IDs handed out by newTraceId whose traces haven't been started yet */
+	static final Set<String> PENDING_TRACE_IDS = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	
+	static Trace openTrace(String file, String id, boolean start) {
+		FileOutputStream out = null;
+		try {
+			if( start ) {
+				FileOutputStream header = new FileOutputStream(file);
+				try {
+					header.write("[\n".getBytes(UTF8));
+				} finally {
+					header.close();
+				}
+			}
+			out = new FileOutputStream(file, true);
+		} catch( IOException e ) {
+			System.err.println("jcr36: Failed to open trace file "+file+": "+e.getMessage());
+		}
+		Trace trace = new Trace(file, id, out);
+		trace.write(
+			"{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":"+Trace.PID+",\"tid\":0,"+
+			"\"args\":{\"name\":\"jcr36 (pid "+Trace.PID+")\",\"traceId\":"+jsonQuote(id)+"}},\n");
+		Trace replaced = TRACES.put(file, trace);
+		if( replaced != null ) closeQuietly(replaced.out);
+		return trace;
+	}
+	
+	/** The trace that env says to add to, or null if there isn't one (yet) */
+	static Trace getTrace(Map<String,String> env) {
+		String id = env.get(TRACE_ID_VAR);
+		if( id == null ) return null;
+		String file = env.get(TRACE_OUT_VAR);
+		if( file == null ) return null;
+		Trace trace = TRACES.get(file);
+		if( trace != null && trace.id.equals(id) ) return trace;
+		synchronized( TRACES ) {
+			trace = TRACES.get(file);
+			if( trace != null && trace.id.equals(id) ) return trace;
+			// Either newTraceId's, being started by its first command,
+			// or one started by some other process
+			return openTrace(file, id, PENDING_TRACE_IDS.remove(id));
+		}
+	}
+	
+	/** An ID for a new trace, which getTrace will start (replacing the file) when it's first asked for */
+	static String newTraceId() {
+		String id = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+		PENDING_TRACE_IDS.add(id);
+		return id;
+	}
+	
+	/** Start a new trace, replacing the file */
+	static Trace startTrace(String file) {
+		String id = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+		synchronized( TRACES ) {
+			return openTrace(file, id, true);
+		}
+	}
+	
+	static String jsonStringArray(String[] strings) {
+		StringBuilder sb = new StringBuilder("[");
+		for( int k = 0; k < strings.length; ++k ) {
+			if( k > 0 ) sb.append(',');
+			sb.append(jsonQuote(strings[k]));
+		}
+		return sb.append(']').toString();
+	}
+	
+	//// Procedures
+	
+	/**
+	 * A command implemented in Java and run in-process.
+	 * Besides the builtins, procedures can be added with {@link #registerProcedure(Procedure)},
+	 * or by listing implementing classes (which need a public no-argument constructor)
+	 * in META-INF/services/net.nuke24.jcr36.SimplerCommandRunner$Procedure
+	 * somewhere on the classpath.  Procedures are invoked by their URI,
+	 * either directly or via an alias (a JCR_ALIAS_... environment variable).
+	 */
+	public interface Procedure {
+		/** The command URI that this procedure implements */
+		String getUri();
+		/**
+		 * @param i index of the first argument following the command name
+		 * @param io stdin, stdout, and stderr (InputStream, OutputStream, OutputStream, any of which may be null)
+		 * @return exit code
+		 */
+		int run(String[] args, int i, File pwd, Map<String,String> env, Object[] io);
+	}
+	
+	static class BuiltinProcedure implements Procedure {
+		static final int BATCHARGS = 0;
+		static final int CAT = 1;
+		static final int CLIENT = 2;
+		static final int EXIT = 3;
+		static final int FINDEXE = 4;
+		static final int FOREACH = 5;
+		static final int HASH = 6;
+		static final int PARALLEL = 7;
+		static final int PIPE = 8;
+		static final int PRINT = 9;
+		static final int PRINTENV = 10;
+		static final int SCRIPT = 11;
+		static final int SERVE = 12;
+		static final int UNTIL = 13;
+		static final int JAVAMAIN = 14;
+		
+		protected final String uri;
+		protected final int code;
+		/**
+		 * If true, the procedure is passed its IO as-is, Redirects and all
+		 * (so that it can pass them on to system processes),
+		 * rather than as streams
+		 */
+		public final boolean rawIo;
+		
+		BuiltinProcedure(String uri, int code, boolean rawIo) {
+			this.uri = uri;
+			this.code = code;
+			this.rawIo = rawIo;
+		}
+		
+		@Override public String getUri() { return uri; }
+		
+		@Override public int run(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+			switch( code ) {
+			case BATCHARGS: return doBatchArgs(args, i, pwd, env, io);
+			case CAT      : return doJcrCat(args, i, pwd, env, io);
+			case CLIENT   : return doClient(args, i, pwd, env, io);
+			case EXIT     : return doJcrExit(args, i);
+			case FINDEXE  : return doFindExe(args, i, env, toPrintStream(io[1]), toPrintStream(io[2]));
+			case FOREACH  : return doForeach(args, i, pwd, env, io);
+			case HASH     : return doHash(args, i, pwd, env, io);
+			case JAVAMAIN : return doJavaMain(args, i, pwd, env, io);
+			case PARALLEL : return doParallel(args, i, pwd, env, io);
+			case PIPE     : return doPipe(args, i, pwd, env, io);
+			case PRINT    : return doJcrPrint(args, i, toPrintStream(io[1]));
+			case PRINTENV : return doJcrPrintEnv(args, i, env, io);
+			case SCRIPT   : return doScript(args, i, pwd, env, io);
+			case SERVE    : return doServe(args, i, env, io);
+			case UNTIL    : return doUntil(args, i, pwd, env, io);
+			default: throw new RuntimeException("Bad builtin procedure code: "+code);
+			}
+		}
+	}
+	
+	static final ConcurrentHashMap<String,Procedure> PROCEDURES = new ConcurrentHashMap<String,Procedure>();
+	static {
+		registerProcedure(new BuiltinProcedure(CMD_BATCHARGS, BuiltinProcedure.BATCHARGS, false));
+		registerProcedure(new BuiltinProcedure(CMD_CAT      , BuiltinProcedure.CAT      , false));
+		registerProcedure(new BuiltinProcedure(CMD_CLIENT   , BuiltinProcedure.CLIENT   , false));
+		registerProcedure(new BuiltinProcedure(CMD_EXIT     , BuiltinProcedure.EXIT     , false));
+		registerProcedure(new BuiltinProcedure(CMD_FINDEXE  , BuiltinProcedure.FINDEXE  , false));
+		registerProcedure(new BuiltinProcedure(CMD_FOREACH  , BuiltinProcedure.FOREACH  , false));
+		registerProcedure(new BuiltinProcedure(CMD_HASH     , BuiltinProcedure.HASH     , false));
+		registerProcedure(new BuiltinProcedure(CMD_JAVAMAIN , BuiltinProcedure.JAVAMAIN , false));
+		registerProcedure(new BuiltinProcedure(CMD_PARALLEL , BuiltinProcedure.PARALLEL , false));
+		registerProcedure(new BuiltinProcedure(CMD_PIPE     , BuiltinProcedure.PIPE     , true ));
+		registerProcedure(new BuiltinProcedure(CMD_PRINT    , BuiltinProcedure.PRINT    , false));
+		registerProcedure(new BuiltinProcedure(CMD_PRINTENV , BuiltinProcedure.PRINTENV , false));
+		registerProcedure(new BuiltinProcedure(CMD_SCRIPT   , BuiltinProcedure.SCRIPT   , true ));
+		registerProcedure(new BuiltinProcedure(CMD_SERVE    , BuiltinProcedure.SERVE    , false));
+		registerProcedure(new BuiltinProcedure(CMD_UNTIL    , BuiltinProcedure.UNTIL    , true ));
+	}
+	static volatile boolean serviceProceduresLoaded = false;
+	
+	/** Add (or replace) a procedure */
+	public static void registerProcedure(Procedure proc) {
+		PROCEDURES.put(proc.getUri(), proc);
+	}
+	
+	/**
+	 * Register procedures listed in META-INF/services files found by the given class loader,
+	 * except where that would replace an already-registered one.
+	 */
+	static void loadServiceProcedures(ClassLoader loader) {
+		try {
+			for( Procedure proc : ServiceLoader.load(Procedure.class, loader) ) {
+				PROCEDURES.putIfAbsent(proc.getUri(), proc);
+			}
+		} catch( ServiceConfigurationError e ) {
+			System.err.println("Warning: failed to load procedures: "+e.getMessage());
+		}
+	}
+	
+	/** @return the procedure implementing the given command URI, or null if there isn't one */
+	static Procedure getProcedure(String cmd) {
+		Procedure proc = PROCEDURES.get(cmd);
+		if( proc == null && !serviceProceduresLoaded ) {
+			// Only scanned for once something's asked for that isn't a builtin
+			synchronized( PROCEDURES ) {
+				if( !serviceProceduresLoaded ) {
+					loadServiceProcedures(SimplerCommandRunner.class.getClassLoader());
+					serviceProceduresLoaded = true;
+				}
+			}
+			proc = PROCEDURES.get(cmd);
+		}
+		return proc;
+	}
+	
+	/**
+	 * A parsed jcr:docmd command line: options and variable assignments,
+	 * followed by the name of the command to run and its arguments.
+	 * Parsing doesn't depend on the environment, so the result can be
+	 * bound to any number of environments without re-parsing.
+	 */
+	static class JCRCommand {
+		static final int OP_CLEAR_ENV = 0;
+		static final int OP_LOAD_ENV = 1;
+		static final int OP_CD = 2;
+		static final int OP_SET_VAR = 3;
+		static final int OP_STDIN = 4;
+		static final int OP_STDOUT = 5;
+		static final int OP_STDOUT_APPEND = 6;
+		static final int OP_STDERR = 7;
+		static final int OP_STDERR_APPEND = 8;
+		static final int OP_STDERR_TO_STDOUT = 9;
+		static final int OP_TIMEOUT = 10;
+		static final int OP_KILL_AFTER = 11;
+		static final int OP_METRICS_OUT = 12;
+		static final int OP_TRACE_OUT = 13;
+		
+		/** An option or variable assignment, to be applied by bind in order */
+		static final class Op {
+			public final int code;
+			public final String name;
+			public final String value;
+			public final long ms;
+			public Op(int code, String name, String value, long ms) {
+				this.code = code;
+				this.name = name;
+				this.value = value;
+				this.ms = ms;
+			}
+		}
+		
+		protected final Op[] ops;
+		public final String[] args;
+		/** Index of the command name within args; index == args.length if there is none */
+		public final int index;
+		/** If non-null, the command to run, already dealiased (e.g. for --help) */
+		public final String fixedCmd;
+		/** If non-null, an error to report instead of running anything useful */
+		public final String errorMessage;
+		private volatile JCRCommand subCommand;
+		
+		public JCRCommand(List<Op> ops, String[] args, int index, String fixedCmd, String errorMessage) {
+			this.ops = ops.toArray(new Op[ops.size()]);
+			this.args = args;
+			this.index = index;
+			this.fixedCmd = fixedCmd;
+			this.errorMessage = errorMessage;
+		}
+		
+		static JCRCommand error(List<Op> ops, String message, int exitCode) {
+			return new JCRCommand(ops, new String[] { CMD_EXIT, String.valueOf(exitCode) }, 0, CMD_EXIT, message);
+		}
+		
+		/** Parse jcr:docmd options and variable assignments up until the command name */
+		public static JCRCommand parse(String[] args, int i) {
+			ArrayList<Op> ops = new ArrayList<Op>();
+			Matcher m;
+			for( ; i<args.length; ++i ) {
+				String arg = args[i];
+				int eqidx = arg.indexOf('=');
+				if( "--clear-env".equals(arg) ) {
+					// That's right; it even clears the standard aliases!
+					ops.add(new Op(OP_CLEAR_ENV, null, null, 0));
+				} else if( "--".equals(arg) ) {
+					++i;
+					break;
+				} else if( "--version".equals(arg) ) {
+					return new JCRCommand(ops, new String[] { CMD_PRINT, VERSION }, 0, CMD_PRINT, null);
+				} else if( "--help".equals(arg) ) {
+					return new JCRCommand(ops, new String[] { CMD_PRINT, VERSION, "\n", "\n", HELP_TEXT }, 0, CMD_PRINT, null);
+				} else if( (m = LOAD_ENV_FROM_PROPERTIES_FILE_PATTERN.matcher(arg)).matches() ) {
+					ops.add(new Op(OP_LOAD_ENV, null, m.group(1), 0));
+				} else if( (m = CD_PATTERN.matcher(arg)).matches() ) {
+					ops.add(new Op(OP_CD, null, m.group(1), 0));
+				} else if( (m = STDIN_PATTERN.matcher(arg)).matches() ) {
+					ops.add(new Op(OP_STDIN, null, m.group(1), 0));
+				} else if( (m = STDOUT_PATTERN.matcher(arg)).matches() ) {
+					ops.add(new Op(OP_STDOUT, null, m.group(1), 0));
+				} else if( (m = STDOUT_APPEND_PATTERN.matcher(arg)).matches() ) {
+					ops.add(new Op(OP_STDOUT_APPEND, null, m.group(1), 0));
+				} else if( (m = STDERR_PATTERN.matcher(arg)).matches() ) {
+					ops.add(new Op(OP_STDERR, null, m.group(1), 0));
+				} else if( (m = STDERR_APPEND_PATTERN.matcher(arg)).matches() ) {
+					ops.add(new Op(OP_STDERR_APPEND, null, m.group(1), 0));
+				} else if( (m = TIMEOUT_OPTPAT.matcher(arg)).matches() || (m = KILL_AFTER_OPTPAT.matcher(arg)).matches() ) {
+					long ms;
+					try {
+						ms = parseDurationMs(m.group(1));
+					} catch( IllegalArgumentException e ) {
+						return error(ops, e.getMessage()+" in "+quote(arg), EXIT_CODE_USAGE_ERROR);
+					}
+					ops.add(new Op(m.pattern() == KILL_AFTER_OPTPAT ? OP_KILL_AFTER : OP_TIMEOUT, null, null, ms));
+				} else if( (m = SCRIPT_OPTPAT.matcher(arg)).matches() ) {
+					String[] scriptArgs = new String[args.length - i + 1];
+					scriptArgs[0] = CMD_SCRIPT;
+					scriptArgs[1] = m.group(1);
+					System.arraycopy(args, i+1, scriptArgs, 2, args.length - i - 1);
+					return new JCRCommand(ops, scriptArgs, 0, CMD_SCRIPT, null);
+				} else if( "--script".equals(arg) ) {
+					// As in '#!/usr/bin/jcr36 --script', followed by the script path
+					return new JCRCommand(ops, args, i, CMD_SCRIPT, null);
+				} else if( "--stderr-to-stdout".equals(arg) ) {
+					ops.add(new Op(OP_STDERR_TO_STDOUT, null, null, 0));
+				} else if( (m = METRICS_OUT_OPTPAT.matcher(arg)).matches() ) {
+					ops.add(new Op(OP_METRICS_OUT, METRICS_OUT_VAR, m.group(1), 0));
+				} else if( (m = TRACE_OUT_OPTPAT.matcher(arg)).matches() ) {
+					ops.add(new Op(OP_TRACE_OUT, TRACE_OUT_VAR, m.group(1), 0));
+				} else if( arg.startsWith("-") ) {
+					return error(ops, "Unrecognized option: "+quote(arg), 1);
+				} else if( eqidx >= 1 ) {
+					ops.add(new Op(OP_SET_VAR, arg.substring(0,eqidx), arg.substring(eqidx+1), 0));
+				} else {
+					break;
+				}
+			}
+			return new JCRCommand(ops, args, i, null, null);
+		}
+		
+		/** The command following this one's name, for when that name turns out to mean jcr:docmd */
+		protected JCRCommand getSubCommand() {
+			JCRCommand sc = subCommand;
+			if( sc == null ) subCommand = sc = parse(args, index+1);
+			return sc;
+		}
+		
+		/**
+		 * Apply options and variable assignments to the given context,
+		 * and dealias the command name (continuing into nested jcr:docmds).
+		 * Nothing is opened; redirects to local files are represented by
+		 * ProcessBuilder.Redirects, and from other URIs by UriInputs.
+		 */
+		public JCRAction bind(File pwd, Map<String,String> parentEnv, Object[] io) {
+			long startNs = System.nanoTime();
+			Map<String,String> env = parentEnv;
+			boolean envIsOwn = false;
+			Object[] parentIo = io;
+			long timeoutMs = -1;
+			long killAfterMs = getDefaultKillAfterMs();
+			for( JCRCommand c = this; ; c = c.getSubCommand() ) {
+				for( Op op : c.ops ) {
+					if( op.code >= OP_STDIN && op.code <= OP_STDERR_TO_STDOUT && io == parentIo ) io = io.clone();
+					switch( op.code ) {
+					case OP_CLEAR_ENV:
+						env = Collections.emptyMap();
+						envIsOwn = false;
+						break;
+					case OP_LOAD_ENV:
+						try {
+							env = loadEnvFromPropertiesFile(op.value, pwd, env);
+						} catch( IOException e ) {
+							throw new RuntimeException("Error reading from properties file '"+op.value+"'", e);
+						}
+						envIsOwn = false;
+						break;
+					case OP_CD:
+						pwd = new File(resolveFilePath(pwd, op.value, false));
+						break;
+					case OP_SET_VAR: case OP_METRICS_OUT: case OP_TRACE_OUT:
+						if( !envIsOwn ) {
+							env = new LayeredEnv(env);
+							envIsOwn = true;
+						}
+						if( op.code == OP_SET_VAR ) {
+							env.put(op.name, op.value);
+							break;
+						}
+						// Made absolute so that it means the same thing to sub-commands
+						String outFile = resolveFilePath(pwd, op.value, false);
+						// A different trace file means a new trace, which is given its ID now
+						// so that every run of this command (e.g. by jcr:until) adds to it
+						if( op.code == OP_TRACE_OUT && !outFile.equals(env.get(TRACE_OUT_VAR)) ) env.put(TRACE_ID_VAR, newTraceId());
+						env.put(op.name, outFile);
+						break;
+					case OP_STDIN:
+						io[0] = inputRedirect(op.value, pwd, env);
+						// Which refers to the env as it is now
+						envIsOwn = false;
+						break;
+					case OP_STDOUT: case OP_STDOUT_APPEND:
+						io[1] = outputRedirect(op.value, pwd, op.code == OP_STDOUT_APPEND);
+						break;
+					case OP_STDERR: case OP_STDERR_APPEND:
+						io[2] = outputRedirect(op.value, pwd, op.code == OP_STDERR_APPEND);
+						break;
+					case OP_STDERR_TO_STDOUT:
+						// doSysProc recognizes this as meaning redirectErrorStream
+						io[2] = io[1];
+						break;
+					case OP_TIMEOUT:
+						// Nested timeouts; the soonest one wins
+						timeoutMs = timeoutMs < 0 ? op.ms : Math.min(timeoutMs, op.ms);
+						break;
+					case OP_KILL_AFTER:
+						killAfterMs = op.ms;
+						break;
+					}
+				}
+				
+				String cmd =
+					c.fixedCmd != null ? c.fixedCmd :
+					c.index < c.args.length ? dealiasCommand(c.args[c.index], env) :
+					null;
+				if( !CMD_DOCMD.equals(cmd) || c.fixedCmd != null ) {
+					JCRAction action = new JCRAction(c.args, c.index, cmd, pwd, env, io, timeoutMs, killAfterMs, c.errorMessage);
+					action.bindNs = System.nanoTime() - startNs;
+					return action;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A command bound to a pwd, environment, and stdio, ready to be run
+	 * (any number of times) without any further parsing or dealiasing.
+	 */
+	static class JCRAction {
+		public final String[] args;
+		/** Index of the command name within args; its arguments follow */
+		public final int index;
+		/** Dealiased command name, or null if there's nothing to run */
+		public final String cmd;
+		public final File pwd;
+		public final Map<String,String> env;
+		public final Object[] io;
+		/** Milliseconds after which to terminate the command, or -1 for no limit */
+		public final long timeoutMs;
+		/** Milliseconds after termination at which to kill any processes still running */
+		public final long killAfterMs;
+		/** If non-null, written to stderr when the action is run */
+		public final String errorMessage;
+		/** How long bind took, for metrics; -1 if not known */
+		long bindNs = -1;
+		public JCRAction(String[] args, int index, String cmd, File pwd, Map<String,String> env, Object[] io, long timeoutMs, long killAfterMs, String errorMessage) {
+			this.args = args;
+			this.index = index;
+			this.cmd = cmd;
+			this.pwd = pwd;
+			this.env = env;
+			this.io = io;
+			this.timeoutMs = timeoutMs;
+			this.killAfterMs = killAfterMs;
+			this.errorMessage = errorMessage;
+		}
+		public JCRAction(String[] args, int index, String cmd, File pwd, Map<String,String> env, Object[] io) {
+			this(args, index, cmd, pwd, env, io, -1, getDefaultKillAfterMs(), null);
+		}
+		public JCRAction withIo(Object[] io) {
+			JCRAction action = new JCRAction(args, index, cmd, pwd, env, io, timeoutMs, killAfterMs, errorMessage);
+			action.bindNs = bindNs;
+			return action;
+		}
+		/** Is this command going to be run as a system process? */
+		public boolean isSysProc() {
+			return cmd != null && !CMD_DOCMD.equals(cmd) && getProcedure(cmd) == null;
+		}
+		/** Index of the program name, if isSysProc() */
+		public int sysProcIndex() {
+			return CMD_RUNSYSPROC.equals(cmd) ? index + 1 : index;
+		}
+		/** Run the action in the current thread and return its exit code */
+		public int run() {
+			ArrayList<Closeable> toClose = new ArrayList<Closeable>();
+			try {
+				return runAction(this, toClose);
+			} finally {
+				closeAll(toClose);
+			}
+		}
+		/** Start running the action in the background */
+		public JCRProcess start() {
+			FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+				@Override public Integer call() {
+					return run();
+				}
+			});
+			PUMP_EXECUTOR.execute(task);
+			return new JCRProcess(task);
+		}
+	}
+	
+	/** A started JCRAction */
+	static class JCRProcess {
+		protected final FutureTask<Integer> task;
+		public JCRProcess(FutureTask<Integer> task) {
+			this.task = task;
+		}
+		/** Interrupt the action, which should then terminate any processes it started */
+		public void destroy() {
+			task.cancel(true);
+		}
+		public int waitFor() throws InterruptedException {
+			try {
+				return task.get();
+			} catch( CancellationException e ) {
+				return EXIT_CODE_INTERRUPTED;
+			} catch( ExecutionException e ) {
+				if( e.getCause() instanceof RuntimeException ) throw (RuntimeException)e.getCause();
+				if( e.getCause() instanceof Error ) throw (Error)e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+	
+	static final ScheduledExecutorService WATCHDOG_EXECUTOR = Executors.newSingleThreadScheduledExecutor(DAEMON_THREAD_FACTORY);
+	
+	/**
+	 * Run an in-process command, interrupting it if it takes longer than pc.timeoutMs.
+	 * In-process commands respond to interruption by terminating any
+	 * processes they're waiting on (using pc.killAfterMs) and returning.
+	 * A command blocked reading a stream (e.g. jcr:cat of a pipe that nothing
+	 * is writing to) can't be interrupted, and will carry on until the read returns.
+	 */
+	static int runWithTimeout(JCRAction pc, List<Closeable> toClose) {
+		final Thread thread = Thread.currentThread();
+		// [0] = finished, [1] = timed out; guarded by itself
+		final boolean[] state = new boolean[2];
+		ScheduledFuture<?> watchdog = WATCHDOG_EXECUTOR.schedule(new Runnable() {
+			@Override public void run() {
+				synchronized( state ) {
+					if( state[0] ) return;
+					state[1] = true;
+					thread.interrupt();
+				}
+			}
+		}, pc.timeoutMs, TimeUnit.MILLISECONDS);
+		int exitCode;
+		Long outerKillAfterMs = INHERITED_KILL_AFTER_MS.get();
+		INHERITED_KILL_AFTER_MS.set(pc.killAfterMs);
+		try {
+			// errorMessage has already been printed
+			exitCode = doRunAction(new JCRAction(pc.args, pc.index, pc.cmd, pc.pwd, pc.env, pc.io, -1, pc.killAfterMs, null), toClose);
+		} finally {
+			if( outerKillAfterMs == null ) INHERITED_KILL_AFTER_MS.remove(); else INHERITED_KILL_AFTER_MS.set(outerKillAfterMs);
+			watchdog.cancel(false);
+			synchronized( state ) {
+				state[0] = true;
+				// That interrupt was for the command, not for whoever called us
+				if( state[1] ) Thread.interrupted();
+			}
+		}
+		return state[1] && exitCode == 0 ? EXIT_CODE_SIGTERMED : exitCode;
+	}
+	
+	/**
+	 * Run a prepared command, recording metrics and/or a trace span for it
+	 * if METRICS_OUT_VAR and/or TRACE_OUT_VAR are set.
+	 * Any streams opened for the command will be added to toClose.
+	 */
+	static int runAction(JCRAction pc, List<Closeable> toClose) {
+		if( pc.cmd != null ) {
+			String metricsFile = pc.env.get(METRICS_OUT_VAR);
+			String traceFile = pc.env.get(TRACE_OUT_VAR);
+			if( metricsFile != null || traceFile != null ) return runInstrumentedAction(pc, toClose, metricsFile, traceFile);
+		}
+		return doRunAction(pc, toClose);
+	}
+	
+	static int doRunAction(JCRAction pc, List<Closeable> toClose) {
+		String cmd = pc.cmd;
+		if( pc.errorMessage != null ) printError(pc.io[2], pc.errorMessage);
+		if( cmd == null ) return 0;
+		if( pc.timeoutMs >= 0 && !pc.isSysProc() ) return runWithTimeout(pc, toClose);
+		
+		String[] args = pc.args;
+		int i = pc.index;
+		File pwd = pc.pwd;
+		Map<String,String> env = pc.env;
+		Object[] io = openUriInput(pc.io, toClose);
+		if( CMD_RUNSYSPROC.equals(cmd) ) {
+			return doSysProc(args, i+1, pwd, env, io, pc.timeoutMs, pc.killAfterMs);
+		}
+		Procedure proc = getProcedure(cmd);
+		if( proc == null ) {
+			return doSysProc(args, i, pwd, env, io, pc.timeoutMs, pc.killAfterMs);
+		}
+		if( !(proc instanceof BuiltinProcedure && ((BuiltinProcedure)proc).rawIo) ) io = openRedirects(io, toClose);
+		return proc.run(args, i+1, pwd, env, io);
+	}
+	
+	public static int doJcrDoCmd(String[] args, int i, File pwd, Map<String,String> parentEnv, Object[] io)
+	{
+		return JCRCommand.parse(args, i).bind(pwd, parentEnv, io).run();
 	}
 	
 	public static Map<String,String> withAliases(Map<String,String> env, Map<String,String> aliases) {
 		if( aliases.size() == 0 ) return env;
-		env = new HashMap<String,String>(env);
+		env = new LayeredEnv(env);
 		for( Map.Entry<String,String> ae : aliases.entrySet() ) {
 			env.put(envMangleAlias(ae.getKey()), ae.getValue());
 		}
@@ -696,7 +6145,7 @@ public class SimplerCommandRunner {
 	}
 	
 	public static int doJcrDoCmdMain(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
-		int argi = 0;
+		int argi = i;
 		boolean loadStdAliases = true;
 		if( args.length > argi && "--no-std-aliases".equals(args[argi]) ) {
 			loadStdAliases = false;
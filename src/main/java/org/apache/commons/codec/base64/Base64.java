@@ -60,9 +60,6 @@
 
 package org.apache.commons.codec.base64;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 
 /**
@@ -76,8 +73,11 @@ import java.io.UnsupportedEncodingException;
  * 1996. Available at: http://www.ietf.org/rfc/rfc2045.txt
  * </p>
  * @author Jeffrey Rodriguez
- * @version $Revision: 1.1-TOG1 $ $Date: 2023-10-24$
+ * @version $Revision: 1.1-TOG2 $ $Date: 2026-10-17$
  * - 1.1-TOG1: 'commented out' deprecation
+ * - 1.1-TOG2: encode/decode into caller-supplied buffers,
+ *   URL-safe alphabet, whitespace-tolerant decoding, table-driven decoder,
+ *   and {@link Base64InputStream}/{@link Base64OutputStream}
  *
  * //@deprecated This class has been replaced by 
  * //            {@link org.apache.commons.codec.binary.Base64}
@@ -87,16 +87,31 @@ public final class Base64 {
     protected static final String DEFAULT_CHAR_ENCODING = "ISO-8859-1";
     private static final int BASELENGTH = 255;
     private static final int LOOKUPLENGTH = 64;
-    private static final int TWENTYFOURBITGROUP = 24;
-    private static final int EIGHTBIT = 8;
-    private static final int SIXTEENBIT = 16;
-    private static final int SIXBIT = 6;
-    private static final int FOURBYTE = 4;
-    private static final int SIGN = -128;
     private static final byte PAD = (byte) '=';
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
     private static byte[] base64Alphabet = new byte[BASELENGTH];
     private static byte[] lookUpBase64Alphabet = new byte[LOOKUPLENGTH];
+    private static byte[] lookUpUrlSafeAlphabet = new byte[LOOKUPLENGTH];
+
+    /** Flag: encode using '-' and '_' instead of '+' and '/' (RFC 4648 section 5) */
+    public static final int URL_SAFE = 1;
+    /** Flag: don't pad encoded output with '=' */
+    public static final int NO_PADDING = 2;
+    /** Flag: skip whitespace when decoding */
+    public static final int IGNORE_WHITESPACE = 4;
+
+    /**
+     * Decoding tables, one per position within a 4-character group,
+     * holding each character's value already shifted into place,
+     * so that a group decodes with 4 lookups and 3 ORs.
+     * Characters that aren't part of either alphabet map to -1,
+     * which makes the OR of the whole group negative.
+     * Both the standard and the URL-safe alphabets are accepted.
+     */
+    private static final int[] DECODE_0 = new int[256];
+    private static final int[] DECODE_1 = new int[256];
+    private static final int[] DECODE_2 = new int[256];
+    private static final int[] DECODE_3 = new int[256];
 
     static {
 
@@ -132,6 +147,23 @@ public final class Base64 {
         lookUpBase64Alphabet[62] = (byte) '+';
         lookUpBase64Alphabet[63] = (byte) '/';
 
+        System.arraycopy(lookUpBase64Alphabet, 0, lookUpUrlSafeAlphabet, 0, 62);
+        lookUpUrlSafeAlphabet[62] = (byte) '-';
+        lookUpUrlSafeAlphabet[63] = (byte) '_';
+
+        java.util.Arrays.fill(DECODE_0, -1);
+        java.util.Arrays.fill(DECODE_1, -1);
+        java.util.Arrays.fill(DECODE_2, -1);
+        java.util.Arrays.fill(DECODE_3, -1);
+        for (int v = 0; v < LOOKUPLENGTH; v++) {
+            for (int a = 0; a < 2; a++) {
+                int c = (a == 0 ? lookUpBase64Alphabet : lookUpUrlSafeAlphabet)[v];
+                DECODE_0[c] = v << 18;
+                DECODE_1[c] = v << 12;
+                DECODE_2[c] = v << 6;
+                DECODE_3[c] = v;
+            }
+        }
     }
 
     public static boolean isBase64(String isValidString) {
@@ -169,89 +201,8 @@ public final class Base64 {
             binaryData = EMPTY_BYTE_ARRAY;
         }
 
-        int lengthDataBits = binaryData.length * EIGHTBIT;
-        int fewerThan24bits = lengthDataBits % TWENTYFOURBITGROUP;
-        int numberTriplets = lengthDataBits / TWENTYFOURBITGROUP;
-        byte encodedData[] = null;
-
-
-        if (fewerThan24bits != 0) {
-            //data not divisible by 24 bit
-            encodedData = new byte[(numberTriplets + 1) * 4];
-        }
-        else {
-            // 16 or 8 bit 
-            encodedData = new byte[numberTriplets * 4];
-        }
-
-        byte k = 0, l = 0, b1 = 0, b2 = 0, b3 = 0;
-
-        int encodedIndex = 0;
-        int dataIndex = 0;
-        int i = 0;
-        for (i = 0; i < numberTriplets; i++) {
-
-            dataIndex = i * 3;
-            b1 = binaryData[dataIndex];
-            b2 = binaryData[dataIndex + 1];
-            b3 = binaryData[dataIndex + 2];
-
-            l = (byte) (b2 & 0x0f);
-            k = (byte) (b1 & 0x03);
-
-            encodedIndex = i * 4;
-            byte val1 = ((b1 & SIGN) == 0) 
-                ? (byte) (b1 >> 2) 
-                : (byte) ((b1) >> 2 ^ 0xc0);
-
-            byte val2 = ((b2 & SIGN) == 0) 
-                ? (byte) (b2 >> 4) 
-                : (byte) ((b2) >> 4 ^ 0xf0);
-
-            byte val3 = ((b3 & SIGN) == 0) 
-                ? (byte) (b3 >> 6) 
-                : (byte) ((b3) >> 6 ^ 0xfc);
-
-            encodedData[encodedIndex] = lookUpBase64Alphabet[val1];
-            encodedData[encodedIndex + 1] = lookUpBase64Alphabet[val2 | (k << 4)];
-            encodedData[encodedIndex + 2] = lookUpBase64Alphabet[(l << 2) | val3];
-            encodedData[encodedIndex + 3] = lookUpBase64Alphabet[b3 & 0x3f];
-        }
-
-        // form integral number of 6-bit groups
-        dataIndex = i * 3;
-        encodedIndex = i * 4;
-        if (fewerThan24bits == EIGHTBIT) {
-            b1 = binaryData[dataIndex];
-            k = (byte) (b1 & 0x03);
-            byte val1 = ((b1 & SIGN) == 0) 
-                ? (byte) (b1 >> 2) 
-                : (byte) ((b1) >> 2 ^ 0xc0);
-
-            encodedData[encodedIndex] = lookUpBase64Alphabet[val1];
-            encodedData[encodedIndex + 1] = lookUpBase64Alphabet[k << 4];
-            encodedData[encodedIndex + 2] = PAD;
-            encodedData[encodedIndex + 3] = PAD;
-        } 
-        else if (fewerThan24bits == SIXTEENBIT) {
-            b1 = binaryData[dataIndex];
-            b2 = binaryData[dataIndex + 1];
-            l = (byte) (b2 & 0x0f);
-            k = (byte) (b1 & 0x03);
-
-            byte val1 = ((b1 & SIGN) == 0) 
-                ? (byte) (b1 >> 2) 
-                : (byte) ((b1) >> 2 ^ 0xc0);
-
-            byte val2 = ((b2 & SIGN) == 0) 
-                ? (byte) (b2 >> 4) 
-                : (byte) ((b2) >> 4 ^ 0xf0);
-
-            encodedData[encodedIndex] = lookUpBase64Alphabet[val1];
-            encodedData[encodedIndex + 1] = lookUpBase64Alphabet[val2 | (k << 4)];
-            encodedData[encodedIndex + 2] = lookUpBase64Alphabet[l << 2];
-            encodedData[encodedIndex + 3] = PAD;
-        }
+        byte[] encodedData = new byte[(int) encodedLength(binaryData.length, 0)];
+        encode(binaryData, 0, binaryData.length, encodedData, 0, 0);
         return encodedData;
     }
 
@@ -297,97 +248,197 @@ public final class Base64 {
             charEncoding = DEFAULT_CHAR_ENCODING;
         }
 
-        // Convert to byte[]
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        OutputStreamWriter osw = new OutputStreamWriter(bos, charEncoding);
-        try {
-            osw.write(data);
-        }
-        catch (IOException ioe) {
-            throw new RuntimeException(ioe.toString());
+        byte[] encodedData = encode(data.getBytes(charEncoding));
+        // Base64 output is all ASCII
+        return new String(encodedData, DEFAULT_CHAR_ENCODING);
+    }
+
+    /**
+     * Decodes Base64 data into octects.
+     * Whitespace is ignored, and padding is optional.
+     *
+     * @param base64Data Byte array containing Base64 data
+     * @return Array containing decoded data.
+     * @throws IllegalArgumentException if the data isn't valid Base64
+     */
+    public static byte[] decode(byte[] base64Data) {
+        byte[] decodedData = new byte[maxDecodedLength(base64Data.length)];
+        int length = decode(base64Data, 0, base64Data.length, decodedData, 0, IGNORE_WHITESPACE);
+        if (length == decodedData.length) {
+            return decodedData;
         }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(decodedData, 0, trimmed, 0, length);
+        return trimmed;
+    }
 
-        // Encode
-        byte[] encodedData = encode(bos.toByteArray());
+    /**
+     * @return the number of bytes that encoding <code>length</code>
+     * bytes with the given flags will produce
+     */
+    public static long encodedLength(long length, int flags) {
+        return (flags & NO_PADDING) != 0 ? (length * 4 + 2) / 3 : (length + 2) / 3 * 4;
+    }
 
-        // Convert to String
-        if (encodedData == null) {
-            return "";
-        }
-        bos = new ByteArrayOutputStream(encodedData.length);
-        try {
-            bos.write(encodedData);
+    /**
+     * @return an upper bound on the number of bytes that decoding
+     * <code>length</code> bytes of Base64 data will produce
+     */
+    public static int maxDecodedLength(int length) {
+        return (int) (((long) length + 3) / 4 * 3);
+    }
+
+    /**
+     * Encodes bytes into a caller-supplied buffer, which must have room for
+     * {@link #encodedLength(long, int)} bytes.
+     *
+     * @param flags any combination of {@link #URL_SAFE} and {@link #NO_PADDING}
+     * @return the number of bytes written to <code>out</code>
+     */
+    public static int encode(byte[] in, int inOff, int inLen, byte[] out, int outOff, int flags) {
+        byte[] alphabet = (flags & URL_SAFE) != 0 ? lookUpUrlSafeAlphabet : lookUpBase64Alphabet;
+        int i = inOff;
+        int o = outOff;
+        for (int end = inOff + inLen - 2; i < end; i += 3) {
+            int v = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff);
+            out[o] = alphabet[v >>> 18];
+            out[o + 1] = alphabet[(v >>> 12) & 0x3f];
+            out[o + 2] = alphabet[(v >>> 6) & 0x3f];
+            out[o + 3] = alphabet[v & 0x3f];
+            o += 4;
         }
-        catch (IOException ioe) {
-            throw new RuntimeException(ioe.toString());
+        int remaining = inOff + inLen - i;
+        if (remaining > 0) {
+            int v = (in[i] & 0xff) << 16 | (remaining == 2 ? (in[i + 1] & 0xff) << 8 : 0);
+            out[o++] = alphabet[v >>> 18];
+            out[o++] = alphabet[(v >>> 12) & 0x3f];
+            if (remaining == 2) {
+                out[o++] = alphabet[(v >>> 6) & 0x3f];
+            }
+            if ((flags & NO_PADDING) == 0) {
+                out[o++] = PAD;
+                if (remaining == 1) {
+                    out[o++] = PAD;
+                }
+            }
         }
-
-        return bos.toString(charEncoding);
+        return o - outOff;
     }
 
     /**
-     * Decodes Base64 data into octects
+     * Decodes Base64 data (in either the standard or the URL-safe alphabet)
+     * into a caller-supplied buffer, which must have room for
+     * {@link #maxDecodedLength(int)} bytes.  Padding is optional.
      *
-     * @param binaryData Byte array containing Base64 data
-     * @return Array containing decoded data.
+     * @param flags {@link #IGNORE_WHITESPACE} to skip over whitespace
+     * @return the number of bytes written to <code>out</code>
+     * @throws IllegalArgumentException if the data isn't valid Base64
      */
-    public static byte[] decode(byte[] base64Data) {
-        // Should we throw away anything not in base64Data ?
+    public static int decode(byte[] in, int inOff, int inLen, byte[] out, int outOff, int flags) {
+        Decoder decoder = new Decoder(flags);
+        int length = decoder.decode(in, inOff, inLen, out, outOff);
+        return length + decoder.finish(out, outOff + length);
+    }
+
+    static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
 
-        // handle the edge case, so we don't have to worry about it later
-        if (base64Data.length == 0) {
-            return EMPTY_BYTE_ARRAY;
+    /**
+     * Incremental decoder, carrying partial 4-character groups
+     * over from one chunk of input to the next.
+     */
+    static final class Decoder {
+        private final boolean ignoreWhitespace;
+        /** Values of the characters of the current group so far */
+        private int acc = 0;
+        private int accCount = 0;
+        private boolean padded = false;
+        /** Total input characters consumed, for error messages */
+        private long position = 0;
+
+        Decoder(int flags) {
+            this.ignoreWhitespace = (flags & IGNORE_WHITESPACE) != 0;
         }
 
-        int numberQuadruple = base64Data.length / FOURBYTE;
-        byte decodedData[] = null;
-        byte b1 = 0, b2 = 0, b3 = 0, b4 = 0, marker0 = 0, marker1 = 0;
-
-        int encodedIndex = 0;
-        int dataIndex = 0;
-        {
-            // this block sizes the output array properly - rlw
-            int lastData = base64Data.length;
-            // ignore the '=' padding
-            while (base64Data[lastData - 1] == PAD) {
-                if (--lastData == 0) {
-                    return EMPTY_BYTE_ARRAY;
+        /**
+         * Decodes a chunk of input.  <code>out</code> must have room for
+         * {@link #maxDecodedLength(int)}(<code>inLen</code> + 3) bytes.
+         *
+         * @return the number of bytes written to <code>out</code>
+         */
+        int decode(byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+            int i = inOff;
+            int end = inOff + inLen;
+            int o = outOff;
+            while (i < end) {
+                if (accCount == 0 && !padded) {
+                    // Fast path: whole groups with no whitespace or padding
+                    for (int groupEnd = end - 3; i < groupEnd; i += 4) {
+                        int v = DECODE_0[in[i] & 0xff] | DECODE_1[in[i + 1] & 0xff]
+                            | DECODE_2[in[i + 2] & 0xff] | DECODE_3[in[i + 3] & 0xff];
+                        if (v < 0) {
+                            break;
+                        }
+                        out[o] = (byte) (v >> 16);
+                        out[o + 1] = (byte) (v >> 8);
+                        out[o + 2] = (byte) v;
+                        o += 3;
+                    }
+                    if (i >= end) {
+                        break;
+                    }
+                }
+                int c = in[i++] & 0xff;
+                int d = DECODE_3[c];
+                if (ignoreWhitespace && isWhitespace(c)) {
+                    continue;
+                } else if (c == PAD) {
+                    padded = true;
+                } else if (d < 0 || padded) {
+                    throw new IllegalArgumentException(
+                        (padded ? "Data after padding" : "Invalid Base64 character " + c)
+                        + " at offset " + (position + (i - 1 - inOff)));
+                } else {
+                    acc = (acc << 6) | d;
+                    if (++accCount == 4) {
+                        out[o] = (byte) (acc >> 16);
+                        out[o + 1] = (byte) (acc >> 8);
+                        out[o + 2] = (byte) acc;
+                        o += 3;
+                        acc = 0;
+                        accCount = 0;
+                    }
                 }
             }
-            decodedData = new byte[lastData - numberQuadruple];
+            position += inLen;
+            return o - outOff;
         }
 
-        for (int i = 0; i < numberQuadruple; i++) {
-            dataIndex = i * 4;
-            marker0 = base64Data[dataIndex + 2];
-            marker1 = base64Data[dataIndex + 3];
-
-            b1 = base64Alphabet[base64Data[dataIndex]];
-            b2 = base64Alphabet[base64Data[dataIndex + 1]];
-
-            if (marker0 != PAD && marker1 != PAD) {
-                //No PAD e.g 3cQl
-                b3 = base64Alphabet[marker0];
-                b4 = base64Alphabet[marker1];
-
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-                decodedData[encodedIndex + 1] = (byte) (((b2 & 0xf) << 4) | ((b3 >> 2) & 0xf));
-                decodedData[encodedIndex + 2] = (byte) (b3 << 6 | b4);
-            } 
-            else if (marker0 == PAD) {
-                //Two PAD e.g. 3c[Pad][Pad]
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-            } 
-            else if (marker1 == PAD) {
-                //One PAD e.g. 3cQ[Pad]
-                b3 = base64Alphabet[marker0];
-
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-                decodedData[encodedIndex + 1] = (byte) (((b2 & 0xf) << 4) | ((b3 >> 2) & 0xf));
+        /**
+         * Decodes whatever partial group is left at the end of the input.
+         *
+         * @return the number of bytes (0 to 2) written to <code>out</code>
+         */
+        int finish(byte[] out, int outOff) {
+            int count = accCount;
+            int v = acc;
+            acc = 0;
+            accCount = 0;
+            switch (count) {
+                case 0:
+                    return 0;
+                case 2:
+                    out[outOff] = (byte) (v >> 4);
+                    return 1;
+                case 3:
+                    out[outOff] = (byte) (v >> 10);
+                    out[outOff + 1] = (byte) (v >> 2);
+                    return 2;
+                default:
+                    throw new IllegalArgumentException("Truncated Base64 data (a single character left over)");
             }
-            encodedIndex += 3;
         }
-        return decodedData;
     }
 
 }
@@ -0,0 +1,102 @@
+package org.apache.commons.codec.base64;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes Base64 data read from an underlying stream,
+ * a buffer at a time, so that arbitrarily large payloads
+ * can be decoded without holding them in memory.
+ * Accepts both the standard and the URL-safe alphabets.
+ * Invalid input results in an {@link IOException}.
+ */
+public class Base64InputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Base64.Decoder decoder;
+    private final byte[] inBuf = new byte[BUFFER_SIZE];
+    private final byte[] outBuf = new byte[Base64.maxDecodedLength(BUFFER_SIZE + 3)];
+    private int outPos = 0;
+    private int outEnd = 0;
+    private boolean eof = false;
+
+    /**
+     * @param flags {@link Base64#IGNORE_WHITESPACE} to skip over whitespace
+     */
+    public Base64InputStream(InputStream in, int flags) {
+        super(in);
+        this.decoder = new Base64.Decoder(flags);
+    }
+
+    public Base64InputStream(InputStream in) {
+        this(in, Base64.IGNORE_WHITESPACE);
+    }
+
+    /** @return false if there's nothing more to read */
+    private boolean fill() throws IOException {
+        while (outPos == outEnd) {
+            if (eof) return false;
+            outPos = 0;
+            int n = in.read(inBuf, 0, inBuf.length);
+            try {
+                if (n < 0) {
+                    eof = true;
+                    outEnd = decoder.finish(outBuf, 0);
+                } else {
+                    outEnd = decoder.decode(inBuf, 0, n, outBuf, 0);
+                }
+            } catch (IllegalArgumentException e) {
+                outEnd = 0;
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return outBuf[outPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, outEnd - outPos);
+        System.arraycopy(outBuf, outPos, b, off, n);
+        outPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int k = (int) Math.min(n - skipped, outEnd - outPos);
+            outPos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return outEnd - outPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
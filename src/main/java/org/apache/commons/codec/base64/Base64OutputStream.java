@@ -0,0 +1,89 @@
+package org.apache.commons.codec.base64;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base64-encodes bytes written to it onto an underlying stream,
+ * a buffer at a time.  The final partial group (and padding, if any)
+ * is written by {@link #close()}.
+ */
+public class Base64OutputStream extends FilterOutputStream {
+    // Multiple of 3 so that only the last write needs padding
+    private static final int CHUNK_SIZE = 6144;
+
+    private final int flags;
+    private final byte[] pending = new byte[3];
+    private int pendingCount = 0;
+    private final byte[] outBuf = new byte[CHUNK_SIZE / 3 * 4];
+    private boolean closed = false;
+
+    /**
+     * @param flags any combination of {@link Base64#URL_SAFE}
+     *   and {@link Base64#NO_PADDING}
+     */
+    public Base64OutputStream(OutputStream out, int flags) {
+        super(out);
+        this.flags = flags;
+    }
+
+    public Base64OutputStream(OutputStream out) {
+        this(out, 0);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        pending[pendingCount++] = (byte) b;
+        if (pendingCount == 3) {
+            int n = Base64.encode(pending, 0, 3, outBuf, 0, flags);
+            out.write(outBuf, 0, n);
+            pendingCount = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (pendingCount != 0 && len > 0) {
+            write(b[off++]);
+            --len;
+        }
+        while (len >= 3) {
+            int chunk = Math.min(len - len % 3, CHUNK_SIZE);
+            int n = Base64.encode(b, off, chunk, outBuf, 0, flags);
+            out.write(outBuf, 0, n);
+            off += chunk;
+            len -= chunk;
+        }
+        while (len > 0) {
+            pending[pendingCount++] = b[off++];
+            --len;
+        }
+    }
+
+    /**
+     * Flushes the underlying stream.  Up to 2 bytes of input may remain
+     * buffered until {@link #close()}, since they can't be encoded
+     * without knowing what follows.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (pendingCount > 0) {
+                int n = Base64.encode(pending, 0, pendingCount, outBuf, 0, flags);
+                out.write(outBuf, 0, n);
+                pendingCount = 0;
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
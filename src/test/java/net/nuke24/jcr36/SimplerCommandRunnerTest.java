@@ -3,14 +3,30 @@ package net.nuke24.jcr36;
 import static net.nuke24.jcr36.SimplerCommandRunner.debug;
 import static net.nuke24.jcr36.SimplerCommandRunner.quote;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.base64.Base64;
+import org.apache.commons.codec.base64.Base64InputStream;
+import org.apache.commons.codec.base64.Base64OutputStream;
 
 public class SimplerCommandRunnerTest implements Runnable
 {
@@ -260,6 +276,1369 @@ public class SimplerCommandRunnerTest implements Runnable
 		assertEquals("foo\n", out.toString());
 	}
 	
+	static File makeTempDir(String prefix) {
+		try {
+			File dir = File.createTempFile(prefix, "");
+			dir.delete();
+			dir.mkdirs();
+			dir.deleteOnExit();
+			return dir;
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static void touch(File f) {
+		try {
+			new FileOutputStream(f).close();
+			f.deleteOnExit();
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static String readFile(File f) {
+		try {
+			FileInputStream fis = new FileInputStream(f);
+			try {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				byte[] buf = new byte[4096];
+				int z;
+				while( (z = fis.read(buf)) > 0 ) baos.write(buf, 0, z);
+				return new String(baos.toByteArray(), "UTF-8");
+			} finally {
+				fis.close();
+			}
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static void writeFile(File f, String content) {
+		try {
+			FileOutputStream fos = new FileOutputStream(f);
+			try {
+				fos.write(content.getBytes("UTF-8"));
+			} finally {
+				fos.close();
+			}
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// Exercises the FileChannel#transferTo path, and file names that need escaping
+	public void testCatFileToFile() {
+		File dir = makeTempDir("jcr36-test-cat");
+		File outFile = new File(dir, "out + (1).txt");
+		outFile.deleteOnExit();
+		try {
+			FileOutputStream fos = new FileOutputStream(outFile);
+			try {
+				int exitCode = SimplerCommandRunner.doJcrDoCmd(
+					new String[]{ "jcr:cat", "--ofs=--", "./src/test/resources/hello-world.txt", "data:,Hi!", "./src/test/resources/hello-world.txt" },
+					0, pwd, ENV_W_ALIASES, new Object[] { null, fos, System.err });
+				assertEquals(0, exitCode);
+			} finally {
+				fos.close();
+			}
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+		assertEquals("Hello, world!\n--Hi!--Hello, world!\n", readFile(outFile));
+		
+		OutputCollector out = OutputCollector.create();
+		int exitCode = SimplerCommandRunner.doJcrDoCmd(
+			new String[]{ "jcr:cat", outFile.getPath() },
+			0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err });
+		assertEquals(0, exitCode);
+		assertEquals("Hello, world!\n--Hi!--Hello, world!\n", out.toString());
+	}
+	
+	static class CloseTrackingOutputStream extends ByteArrayOutputStream {
+		boolean closed = false;
+		@Override public void close() {
+			closed = true;
+		}
+	}
+	
+	public void testPipersAreReusedAndCount() {
+		try {
+			for( int i=0; i<100; ++i ) {
+				byte[] data = new byte[i*1000];
+				CloseTrackingOutputStream owned = new CloseTrackingOutputStream();
+				CloseTrackingOutputStream notOwned = new CloseTrackingOutputStream();
+				SimplerCommandRunner.Piper p1 = SimplerCommandRunner.Piper.start(new ByteArrayInputStream(data), true, owned, true);
+				SimplerCommandRunner.Piper p2 = SimplerCommandRunner.Piper.start(new ByteArrayInputStream(data), true, notOwned, false);
+				p1.join();
+				p2.join();
+				assertEquals((long)data.length, p1.getByteCount());
+				assertEquals(data.length, owned.size());
+				assertEquals(data.length, notOwned.size());
+				assertTrue(owned.closed, "Piper should close output stream that it owns");
+				assertTrue(!notOwned.closed, "Piper should not close output stream that it doesn't own");
+			}
+		} catch( InterruptedException e ) {
+			throw new RuntimeException(e);
+		}
+		assertTrue(SimplerCommandRunner.PUMP_EXECUTOR.getLargestPoolSize() < 10,
+			"Expected pump threads to be reused, but the pool grew to "+SimplerCommandRunner.PUMP_EXECUTOR.getLargestPoolSize());
+	}
+	
+	public void testRedirectOutputToFiles() {
+		File dir = makeTempDir("jcr36-test-redirect");
+		File outFile = new File(dir, "out.txt");
+		File errFile = new File(dir, "err.txt");
+		outFile.deleteOnExit();
+		errFile.deleteOnExit();
+		
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(
+			new String[]{ "--stdout="+outFile.getPath(), "jcr:print", "Hello," },
+			0, pwd, ENV_W_ALIASES, new Object[] { null, null, System.err }));
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(
+			new String[]{ "--cd="+dir.getPath(), "--stdout-append=out.txt", "jcr:print", "world!" },
+			0, pwd, ENV_W_ALIASES, new Object[] { null, null, System.err }));
+		assertEquals("Hello,\nworld!\n", readFile(outFile));
+		
+		// java -version writes to stderr
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(
+			new String[]{ "--stdout="+outFile.getPath(), "--stderr="+errFile.getPath(), "jcr:runsys", "java", "-version" },
+			0, pwd, ENV_W_ALIASES, new Object[] { null, null, null }));
+		assertEquals("", readFile(outFile));
+		assertTrue(readFile(errFile).length() > 0, "Expected `java -version` to have written something to "+errFile);
+		
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(
+			new String[]{ "--stdout="+outFile.getPath(), "--stderr-to-stdout", "jcr:runsys", "java", "-version" },
+			0, pwd, ENV_W_ALIASES, new Object[] { null, null, null }));
+		assertEquals(readFile(errFile), readFile(outFile));
+	}
+	
+	/** A stand-in for `tr a-z A-Z`, for testing piping */
+	public static class UpperCaser {
+		public static void main(String[] args) throws IOException {
+			int c;
+			while( (c = System.in.read()) != -1 ) System.out.write(Character.toUpperCase((char)c));
+			System.out.flush();
+		}
+	}
+	
+	static String[] UPPERCASER_COMMAND = new String[] { "java", "-cp", System.getProperty("java.class.path"), UpperCaser.class.getName() };
+	
+	static String[] concat(String[]... parts) {
+		ArrayList<String> list = new ArrayList<String>();
+		for( String[] part : parts ) list.addAll(Arrays.asList(part));
+		return list.toArray(new String[list.size()]);
+	}
+	
+	public void testPipe() {
+		OutputCollector out = OutputCollector.create();
+		int exitCode = SimplerCommandRunner.doJcrDoCmd(concat(
+			new String[] { "jcr:pipe", "jcr:print", "Hello, world!", "|" },
+			UPPERCASER_COMMAND, new String[] { "|" }, UPPERCASER_COMMAND
+		), 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err });
+		assertEquals(0, exitCode);
+		assertEquals("HELLO, WORLD!\n", out.toString());
+		
+		out = OutputCollector.create();
+		exitCode = SimplerCommandRunner.doJcrDoCmd(
+			new String[] { "jcr:pipe", "--separator=then", "jcr:print", "foo", "then", "jcr:print", "bar" },
+			0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err });
+		assertEquals(0, exitCode);
+		assertEquals("bar\n", out.toString());
+	}
+	
+	public void testPipeFail() {
+		String[] failThenSucceed = new String[] { "jcr:exit", "3", "|", "jcr:exit", "4", "|", "jcr:print", "-n" };
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(concat(new String[] { "jcr:pipe" }, failThenSucceed), 0, pwd, ENV_W_ALIASES, IO_NULL));
+		assertEquals(4, SimplerCommandRunner.doJcrDoCmd(concat(new String[] { "jcr:pipe", "--pipefail" }, failThenSucceed), 0, pwd, ENV_W_ALIASES, IO_NULL));
+		assertEquals(3, SimplerCommandRunner.doJcrDoCmd(concat(new String[] { "jcr:pipe", "--pipefail=leftmost" }, failThenSucceed), 0, pwd, ENV_W_ALIASES, IO_NULL));
+	}
+	
+	public void testParallel() {
+		OutputCollector out = OutputCollector.create();
+		int exitCode = SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:parallel", "--jobs=3",
+			"jcr:cat", "data:,a1%0Aa2%0A", ";",
+			"jcr:cat", "data:,b1%0Ab2%0A", ";",
+			"jcr:cat", "data:,c1%0Ac2%0A"
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err });
+		assertEquals(0, exitCode);
+		// Jobs may finish in any order, but each one's output is written all at once
+		String output = out.toString();
+		assertEquals(18, output.length());
+		for( String job : new String[] { "a1\na2\n", "b1\nb2\n", "c1\nc2\n" } ) {
+			assertTrue(output.contains(job), "Expected output to contain "+job+"; got "+output);
+		}
+		
+		assertEquals(5, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:parallel", "jcr:exit", "0", ";", "jcr:exit", "5", ";", "jcr:exit", "6"
+		}, 0, pwd, ENV_W_ALIASES, IO_NULL));
+		
+		out = OutputCollector.create();
+		exitCode = SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:parallel", "--jobs=1", "--fail-fast", "jcr:exit", "2", ";", "jcr:print", "not reached"
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err });
+		assertEquals(2, exitCode);
+		assertEquals("", out.toString());
+		
+		assertEquals(SimplerCommandRunner.EXIT_CODE_USAGE_ERROR, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:parallel", "--jobs=99999999999", "jcr:exit", "0"
+		}, 0, pwd, ENV_W_ALIASES, IO_NULL));
+	}
+	
+	public void testSpillBuffer() {
+		try {
+			SimplerCommandRunner.SpillBuffer buf = new SimplerCommandRunner.SpillBuffer(4);
+			buf.write("abc".getBytes(SimplerCommandRunner.UTF8));
+			assertTrue(buf.file == null, "Expected 3 bytes to be kept in memory");
+			buf.write("defgh".getBytes(SimplerCommandRunner.UTF8));
+			assertTrue(buf.file != null && buf.file.exists(), "Expected 8 bytes to have been moved to a file");
+			File spillFile = buf.file;
+			buf.write('i');
+			assertEquals(9L, buf.size());
+			ByteArrayOutputStream collected = new ByteArrayOutputStream();
+			buf.writeTo(collected, collected);
+			assertEquals("abcdefghi", new String(collected.toByteArray(), SimplerCommandRunner.UTF8));
+			buf.dispose();
+			assertTrue(!spillFile.exists(), "Expected "+spillFile+" to be deleted by dispose()");
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public void testForeach() {
+		OutputCollector out = OutputCollector.create();
+		int exitCode = SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:foreach", "-0", "--input=data:,foo%00bar%00baz%00", "jcr:print", "[{}]"
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err });
+		assertEquals(0, exitCode);
+		assertEquals("[foo]\n[bar]\n[baz]\n", out.toString());
+		
+		// Without a placeholder, the record is appended; records come from stdin by default
+		out = OutputCollector.create();
+		exitCode = SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:foreach", "-P", "4", "jcr:print", "-n"
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { new ByteArrayInputStream("a\nb\nc\nd\n".getBytes()), out, System.err });
+		assertEquals(0, exitCode);
+		assertEquals(4, out.toString().length());
+		for( String record : new String[] { "a", "b", "c", "d" } ) {
+			assertTrue(out.toString().contains(record), "Expected output to contain "+record+"; got "+out.toString());
+		}
+	}
+	
+	public void testForeachJournal() {
+		File journal = new File(makeTempDir("jcr36-test-journal"), "journal.txt");
+		journal.deleteOnExit();
+		String[] command = new String[] {
+			"jcr:foreach", "--input=data:,0%0A1%0A2%0A3%0A", "--journal="+journal.getPath(), "jcr:exit", "{}"
+		};
+		// Record 0 succeeds, the rest fail
+		assertEquals(1, SimplerCommandRunner.doJcrDoCmd(command, 0, pwd, ENV_W_ALIASES, IO_NULL));
+		String hash0 = SimplerCommandRunner.journalHash("0");
+		assertEquals("0 "+hash0+"\n", readFile(journal));
+		
+		// A rerun should skip "0", wherever it is in the input, and nothing else
+		OutputCollector out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:foreach", "--input=data:,a%0A0%0Ab%0A", "--journal="+journal.getPath(), "jcr:print", "{}"
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err }));
+		assertEquals("a\nb\n", out.toString());
+		assertEquals("0 "+hash0+"\n0 "+SimplerCommandRunner.journalHash("a")+"\n2 "+SimplerCommandRunner.journalHash("b")+"\n", readFile(journal));
+		
+		// Each journal entry accounts for only one occurrence of a repeated record
+		out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:foreach", "--input=data:,b%0Ab%0A", "--journal="+journal.getPath(), "jcr:print", "{}"
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err }));
+		assertEquals("b\n", out.toString());
+		
+		// Every job is finished with, successful or not, so per-job state can be dropped
+		final java.util.concurrent.atomic.AtomicInteger finished = new java.util.concurrent.atomic.AtomicInteger();
+		SimplerCommandRunner.JobRunner runner = new SimplerCommandRunner.JobRunner(2, false, IO_NULL) {
+			@Override protected void jobFinished(int index) {
+				finished.incrementAndGet();
+			}
+		};
+		try {
+			for( int k = 0; k < 5; ++k ) runner.submit(k, new String[] { "jcr:exit", String.valueOf(k % 2) }, pwd, ENV_W_ALIASES);
+		} catch( InterruptedException e ) {
+			throw new RuntimeException(e);
+		}
+		assertEquals(1, runner.finish());
+		assertEquals(5, finished.get());
+	}
+	
+	public void testBatchArgs() {
+		long twoPerBatch = SimplerCommandRunner.argSize("jcr:print") + 2*SimplerCommandRunner.argSize("aa");
+		OutputCollector out = OutputCollector.create();
+		int exitCode = SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:batch-args", "--input=data:,aa%0Abb%0Acc%0Add%0Aee%0A", "--max-chars="+twoPerBatch, "jcr:print"
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err });
+		assertEquals(0, exitCode);
+		assertEquals("aa bb\ncc dd\nee\n", out.toString());
+		
+		// Without --max-chars, everything fits in one batch
+		out = OutputCollector.create();
+		exitCode = SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:batch-args", "-0", "jcr:print"
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { new ByteArrayInputStream("aa\0bb\0cc\0".getBytes()), out, System.err });
+		assertEquals(0, exitCode);
+		assertEquals("aa bb cc\n", out.toString());
+		
+		Map<String,String> bigEnv = new HashMap<String,String>(ENV_W_ALIASES);
+		bigEnv.put("BIG", new String(new char[10000]).replace('\0', 'x'));
+		assertTrue(
+			SimplerCommandRunner.getArgSpaceLimit(bigEnv) <= SimplerCommandRunner.getArgSpaceLimit(ENV_W_ALIASES),
+			"Expected a bigger environment to leave no more space for arguments");
+	}
+	
+	public void testUntil() {
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:until", "--expect-code=4", "jcr:exit", "4"
+		}, 0, pwd, ENV_W_ALIASES, IO_NULL));
+		
+		OutputCollector err = OutputCollector.create();
+		int exitCode = SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:until", "-v", "--backoff=exponential", "--delay=10ms", "--max-delay=40ms", "--max-attempts=5", "jcr:exit", "3"
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, null, err });
+		assertEquals(3, exitCode);
+		for( String expected : new String[] {
+			"Attempt 1 exited with code 3", "retrying in 10ms", "retrying in 20ms", "retrying in 40ms", "giving up after 5 attempts"
+		} ) {
+			assertTrue(err.toString().contains(expected), "Expected stderr to contain "+quote(expected)+"; got "+err.toString());
+		}
+		assertTrue(!err.toString().contains("Attempt 6"), "Expected no more than 5 attempts; got "+err.toString());
+		
+		long startTime = System.currentTimeMillis();
+		assertEquals(1, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:until", "--timeout=200ms", "--delay=20ms", "--jitter", "jcr:exit", "1"
+		}, 0, pwd, ENV_W_ALIASES, IO_NULL));
+		long elapsed = System.currentTimeMillis() - startTime;
+		assertTrue(elapsed < 5000, "Expected --timeout=200ms to stop retrying; took "+elapsed+"ms");
+	}
+	
+	public void testTimeout() {
+		Map<String,String> env = new HashMap<String,String>(ENV_W_ALIASES);
+		if( System.getenv("PATH") != null ) env.put("PATH", System.getenv("PATH"));
+		if( SimplerCommandRunner.resolvePrograms("sh", env, null).isEmpty() ) {
+			System.err.println("testTimeout: Skipping because there's no sh");
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		assertEquals(SimplerCommandRunner.EXIT_CODE_SIGTERMED, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:docmd", "--timeout=200ms", "sh", "-c", "sleep 30"
+		}, 0, pwd, env, IO_NULL));
+		
+		// Ignores SIGTERM, so needs killing
+		assertEquals(SimplerCommandRunner.EXIT_CODE_SIGKILLED, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:docmd", "--timeout=200ms", "--kill-after=200ms", "sh", "-c", "trap '' TERM; sleep 30"
+		}, 0, pwd, env, IO_NULL));
+		
+		// Processes run by in-process commands are killed after the same --kill-after
+		assertEquals(SimplerCommandRunner.EXIT_CODE_SIGKILLED, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:docmd", "--timeout=200ms", "--kill-after=200ms", "jcr:pipe", "sh", "-c", "trap '' TERM; sleep 30", "|", "jcr:cat"
+		}, 0, pwd, env, IO_NULL));
+		
+		// In-process commands get interrupted
+		assertEquals(SimplerCommandRunner.EXIT_CODE_INTERRUPTED, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:docmd", "--timeout=200ms", "jcr:until", "--delay=1s", "jcr:exit", "1"
+		}, 0, pwd, ENV_W_ALIASES, IO_NULL));
+		assertTrue(!Thread.currentThread().isInterrupted(), "Timeout shouldn't leave the caller interrupted");
+		
+		long elapsed = System.currentTimeMillis() - startTime;
+		assertTrue(elapsed < 10000, "Expected timeouts to cut things short; took "+elapsed+"ms");
+	}
+	
+	public void testStdinNotConsumedAfterExit() {
+		Map<String,String> env = new HashMap<String,String>(ENV_W_ALIASES);
+		if( System.getenv("PATH") != null ) env.put("PATH", System.getenv("PATH"));
+		if( SimplerCommandRunner.resolvePrograms("sh", env, null).isEmpty() ) {
+			System.err.println("testStdinNotConsumedAfterExit: Skipping because there's no sh");
+			return;
+		}
+		// Stdin shared with whatever runs next, which gives out one byte at a time, once the gate opens
+		final java.util.concurrent.CountDownLatch gate = new java.util.concurrent.CountDownLatch(1);
+		final java.util.concurrent.atomic.AtomicInteger remaining = new java.util.concurrent.atomic.AtomicInteger(100);
+		InputStream sharedStdin = new InputStream() {
+			@Override public int read() throws IOException {
+				byte[] buf = new byte[1];
+				return read(buf, 0, 1) == -1 ? -1 : buf[0];
+			}
+			@Override public int read(byte[] buf, int off, int len) throws IOException {
+				try {
+					gate.await();
+				} catch( InterruptedException e ) {
+					throw new java.io.InterruptedIOException();
+				}
+				if( remaining.get() == 0 ) return -1;
+				remaining.decrementAndGet();
+				buf[off] = 'x';
+				return 1;
+			}
+		};
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] { "sh", "-c", "exit 0" },
+			0, pwd, env, new Object[] { sharedStdin, null, null }));
+		gate.countDown();
+		try {
+			Thread.sleep(200);
+		} catch( InterruptedException e ) {
+			throw new RuntimeException(e);
+		}
+		// The read already in progress when the process exited may be lost, but nothing more
+		assertTrue(remaining.get() >= 99, "Expected stdin to be left for the next command; "+remaining.get()+" bytes left");
+	}
+	
+	public void testScriptTokenizer() {
+		SimplerCommandRunner.ScriptTokenizer t = new SimplerCommandRunner.ScriptTokenizer();
+		assertTrue(t.feed("  jcr:print 'a  b'\t\"c\\\"d\\n\" e\\ f''g # comment"), "Expected a complete line");
+		assertEquals(Arrays.asList("jcr:print", "a  b", "c\"d\n", "e fg"), Arrays.asList(t.take()));
+		assertTrue(!t.feed("foo \\"), "Expected a trailing backslash to continue the line");
+		assertTrue(t.feed("  bar"), "Expected a complete line");
+		assertEquals(Arrays.asList("foo", "bar"), Arrays.asList(t.take()));
+		try {
+			t.feed("jcr:print 'oops");
+			throw new RuntimeException("Expected an unterminated quote to be rejected");
+		} catch( IllegalArgumentException e ) { }
+	}
+	
+	public void testScript() {
+		String script =
+			"#!/usr/bin/jcr36 --script\n" +
+			"greeting='Hello, world!'\n" +
+			"--stderr-to-stdout\n" +
+			"jcr:cat x-jcr36-env:greeting data:,%0A\n" +
+			"jcr:print \\\n" +
+			"  continued\n" +
+			"jcr:exit 3\n" +
+			"jcr:print not reached\n";
+		OutputCollector out = OutputCollector.create();
+		int exitCode = SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"--script=data:,"+SimplerCommandRunner.urlEncodePath(script.getBytes(Charset.forName("UTF-8")))
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, null });
+		assertEquals(3, exitCode);
+		assertEquals("Hello, world!\ncontinued\n", out.toString());
+		
+		File scriptFile = new File(makeTempDir("jcr36-test-script"), "test.jcr");
+		scriptFile.deleteOnExit();
+		writeFile(scriptFile, "jcr:exit 3\njcr:print still going\n");
+		out = OutputCollector.create();
+		exitCode = SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:script", "--keep-going", scriptFile.getPath()
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err });
+		assertEquals(3, exitCode);
+		assertEquals("still going\n", out.toString());
+	}
+	
+	public void testCommandModel() {
+		SimplerCommandRunner.JCRCommand command = SimplerCommandRunner.JCRCommand.parse(new String[] {
+			"--stdin=data:,a%0Ab", "jcr:docmd", "--stderr-to-stdout", "jcr:foreach", "jcr:cat", "data:,{}", "x-jcr36-env:suffix", "data:,%0A"
+		}, 0);
+		
+		Map<String,String> env = new HashMap<String,String>(ENV_W_ALIASES);
+		env.put("suffix", "!");
+		OutputCollector out = OutputCollector.create();
+		SimplerCommandRunner.JCRAction action = command.bind(pwd, env, new Object[] { null, out, null });
+		assertEquals(SimplerCommandRunner.CMD_FOREACH, action.cmd);
+		// Each run should get its own stdin
+		assertEquals(0, action.run());
+		assertEquals(0, action.run());
+		assertEquals("a!\nb!\na!\nb!\n", out.toString());
+		
+		env.put("suffix", "?");
+		out = OutputCollector.create();
+		SimplerCommandRunner.JCRProcess proc = command.bind(pwd, env, new Object[] { null, out, null }).start();
+		try {
+			assertEquals(0, proc.waitFor());
+		} catch( InterruptedException e ) {
+			throw new RuntimeException(e);
+		}
+		assertEquals("a?\nb?\n", out.toString());
+		
+		out = OutputCollector.create();
+		action = SimplerCommandRunner.JCRCommand.parse(new String[] { "--bogus" }, 0).bind(pwd, env, new Object[] { null, null, out });
+		assertEquals(1, action.run());
+		assertEquals("Unrecognized option: \"--bogus\"\n", out.toString());
+	}
+	
+	public void testBase64() {
+		byte[] data = new byte[100003];
+		new java.util.Random(1234).nextBytes(data);
+		String b64 = new String(Base64.encode(data), Charset.forName("ISO-8859-1"));
+		
+		// Buffer API, with and without padding, in both alphabets
+		for( int flags : new int[] { 0, Base64.URL_SAFE, Base64.URL_SAFE | Base64.NO_PADDING } ) {
+			byte[] enc = new byte[(int)Base64.encodedLength(data.length, flags) + 4];
+			int encLen = Base64.encode(data, 0, data.length, enc, 2, flags);
+			assertEquals(Base64.encodedLength(data.length, flags), (long)encLen);
+			String encStr = new String(enc, 2, encLen, Charset.forName("ISO-8859-1"));
+			String expected = b64;
+			if( (flags & Base64.URL_SAFE) != 0 ) expected = expected.replace('+','-').replace('/','_');
+			if( (flags & Base64.NO_PADDING) != 0 ) expected = expected.replace("=","");
+			assertEquals(expected, encStr);
+			byte[] dec = new byte[Base64.maxDecodedLength(encLen) + 1];
+			int decLen = Base64.decode(enc, 2, encLen, dec, 1, 0);
+			assertEquals(data.length, decLen);
+			assertTrue(Arrays.equals(data, Arrays.copyOfRange(dec, 1, 1 + decLen)), "decode(encode(data)) should equal data with flags="+flags);
+		}
+		
+		assertEquals("Zm9vYmFy", Base64.encode("foobar"));
+		assertEquals("Zm9vYg==", Base64.encode("foob"));
+		assertEquals("foob", new String(Base64.decode(" Zm9v\r\nYg= =\n".getBytes()), Charset.forName("ISO-8859-1")));
+		for( String bad : new String[] { "Zm9v!", "Zm9vY", "Zg==Zg==" } ) {
+			try {
+				Base64.decode(bad.getBytes());
+				assertTrue(false, "Expected "+quote(bad)+" to be rejected");
+			} catch( IllegalArgumentException e ) {
+				// Good
+			}
+		}
+		
+		try {
+			// Streams, with line breaks every 76 characters and 1-byte writes mixed in
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			Base64OutputStream b64os = new Base64OutputStream(encoded);
+			b64os.write(data, 0, 1);
+			b64os.write(data[1]);
+			b64os.write(data, 2, data.length - 2);
+			b64os.close();
+			assertEquals(b64, encoded.toString("ISO-8859-1"));
+			
+			StringBuilder wrapped = new StringBuilder();
+			for( int i = 0; i < b64.length(); i += 76 ) {
+				wrapped.append(b64, i, Math.min(b64.length(), i + 76)).append("\r\n");
+			}
+			Base64InputStream b64is = new Base64InputStream(new ByteArrayInputStream(wrapped.toString().getBytes("ISO-8859-1")));
+			ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+			byte[] buf = new byte[1000];
+			int n;
+			decoded.write(b64is.read());
+			while( (n = b64is.read(buf)) > 0 ) decoded.write(buf, 0, n);
+			assertTrue(Arrays.equals(data, decoded.toByteArray()), "Base64InputStream should decode wrapped data");
+			
+			b64is = new Base64InputStream(new ByteArrayInputStream("Zm9v!".getBytes()), 0);
+			try {
+				while( b64is.read(buf) > 0 );
+				assertTrue(false, "Expected Base64InputStream to reject bad data");
+			} catch( IOException e ) {
+				// Good
+			}
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int n;
+		while( (n = in.read(buf)) > 0 ) baos.write(buf, 0, n);
+		in.close();
+		return new String(baos.toByteArray(), "UTF-8");
+	}
+	
+	public void testDataUri() {
+		SimplerCommandRunner.DataUri uri = SimplerCommandRunner.DataUri.parse("data:text/plain;charset=utf-8;name=a%20b;base64,aGk=");
+		assertEquals("text/plain", uri.mediaType);
+		assertEquals("utf-8", uri.parameters.get("charset"));
+		assertEquals("a b", uri.parameters.get("name"));
+		assertEquals(true, uri.isBase64);
+		uri = SimplerCommandRunner.DataUri.parse("DATA:,a;b,c");
+		assertEquals("", uri.mediaType);
+		assertEquals(false, uri.isBase64);
+		for( String bad : new String[] { "data:text/plain", "data:;base64;charset=x,", "data:text/plain;charset,hi" } ) {
+			try {
+				SimplerCommandRunner.DataUri.parse(bad);
+				assertTrue(false, "Expected "+quote(bad)+" to be rejected");
+			} catch( IllegalArgumentException e ) {
+				// Good
+			}
+		}
+		
+		try {
+			assertEquals("a;b,c", readAll(SimplerCommandRunner.getInputStream("DATA:,a;b,c", pwd, ENV_EMPTY)));
+			assertEquals("caf\u00e9 \ud83d\ude00%", readAll(SimplerCommandRunner.getInputStream("data:,caf\u00e9%20\ud83d\ude00%25", pwd, ENV_EMPTY)));
+			assertEquals("Hello, world!", readAll(SimplerCommandRunner.getInputStream("data:;base64,SGVsbG8s%0AIHdv%20cmxkIQ", pwd, ENV_EMPTY)));
+			
+			// Big enough that decoding it all up-front would be noticeable
+			StringBuilder big = new StringBuilder("data:application/octet-stream;base64,");
+			for( int i = 0; i < 200000; ++i ) big.append("AAEC");
+			InputStream in = SimplerCommandRunner.getInputStream(big.toString(), pwd, ENV_EMPTY);
+			byte[] buf = new byte[4096];
+			long total = 0;
+			int n;
+			while( (n = in.read(buf)) > 0 ) {
+				for( int j = 0; j < n; ++j ) assertEquals((int)((total + j) % 3), (int)buf[j]);
+				total += n;
+			}
+			in.close();
+			assertEquals(600000L, total);
+			
+			try {
+				readAll(SimplerCommandRunner.getInputStream("data:,100%", pwd, ENV_EMPTY));
+				assertTrue(false, "Expected truncated percent sequence to be rejected");
+			} catch( IOException e ) {
+				// Good
+			}
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public void testBlobRepository() {
+		byte[] content = "Hello, blob!\n".getBytes(Charset.forName("UTF-8"));
+		String sha1;
+		try {
+			assertEquals("3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ", SimplerCommandRunner.base32Encode(java.security.MessageDigest.getInstance("SHA-1").digest(new byte[0])));
+			sha1 = SimplerCommandRunner.base32Encode(java.security.MessageDigest.getInstance("SHA-1").digest(content));
+		} catch( java.security.NoSuchAlgorithmException e ) {
+			throw new RuntimeException(e);
+		}
+		
+		File emptyRepo = makeTempDir("jcr36-test-blobs-empty");
+		File repo = makeTempDir("jcr36-test-blobs");
+		File blobDir = new File(repo, "data/user/"+sha1.substring(0,2));
+		blobDir.mkdirs();
+		File blob = new File(blobDir, sha1);
+		writeFile(blob, "Hello, blob!\n");
+		blob.deleteOnExit();
+		File indexFile = new File(repo, SimplerCommandRunner.BlobRepository.INDEX_FILE_NAME);
+		indexFile.deleteOnExit();
+		
+		Map<String,String> env = new HashMap<String,String>(ENV_W_ALIASES);
+		env.put(SimplerCommandRunner.BLOB_REPOSITORIES_VAR, emptyRepo.getPath()+File.pathSeparator+repo.getPath());
+		String sha1Urn = "urn:sha1:"+sha1;
+		String bitprintUrn = "urn:bitprint:"+sha1+".AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+		
+		OutputCollector out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:cat", sha1Urn, bitprintUrn }, 0, pwd, env, new Object[] { null, out, System.err }));
+		assertEquals("Hello, blob!\nHello, blob!\n", out.toString());
+		assertTrue(readFile(indexFile).contains(sha1+"\tuser\n"), "Blob index should record the blob's sector");
+		assertEquals(blob.getAbsoluteFile(), SimplerCommandRunner.toLocalFile(sha1Urn, pwd, env).getAbsoluteFile());
+		
+		// With verification on, both halves of a bitprint are checked
+		env.put(SimplerCommandRunner.BLOB_VERIFY_VAR, "true");
+		String goodBitprintUrn;
+		try {
+			goodBitprintUrn = SimplerCommandRunner.hashUrns(new ByteArrayInputStream(content), Arrays.asList("bitprint")).get(0);
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+		out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:cat", goodBitprintUrn }, 0, pwd, env, new Object[] { null, out, System.err }));
+		assertEquals("Hello, blob!\n", out.toString());
+		OutputCollector err = OutputCollector.create();
+		assertTrue(SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:cat", bitprintUrn }, 0, pwd, env, new Object[] { null, out, err }) != 0, "Reading blob via bitprint with wrong Tiger tree hash should fail");
+		assertTrue(err.toString().contains("Tiger tree hash"), "Error message should mention Tiger tree hash mismatch; got: "+err.toString());
+		
+		// Corrupt it; with verification on, reading should fail
+		writeFile(blob, "Hello, glob!\n");
+		out = OutputCollector.create();
+		err = OutputCollector.create();
+		assertTrue(SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:cat", sha1Urn }, 0, pwd, env, new Object[] { null, out, err }) != 0, "Reading corrupted blob with verification on should fail");
+		assertTrue(err.toString().contains("doesn't match its hash"), "Error message should mention hash mismatch; got: "+err.toString());
+		// Including when it's used as stdin, which would otherwise be redirected from the file directly
+		assertTrue(SimplerCommandRunner.inputRedirect(sha1Urn, pwd, env) instanceof SimplerCommandRunner.UriInput, "Blob to be verified should be read via a UriInput");
+		err = OutputCollector.create();
+		assertTrue(SimplerCommandRunner.doJcrDoCmd(new String[] { "--stdin="+sha1Urn, "jcr:foreach", "jcr:print", "{}" }, 0, pwd, env, new Object[] { null, out, err }) != 0, "Reading corrupted blob from stdin with verification on should fail");
+		assertTrue(err.toString().contains("doesn't match its hash"), "Error message should mention hash mismatch; got: "+err.toString());
+		
+		blob.delete();
+		err = OutputCollector.create();
+		assertTrue(SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:cat", sha1Urn }, 0, pwd, env, new Object[] { null, out, err }) != 0, "Reading missing blob should fail");
+		assertTrue(err.toString().contains("not found"), "Error message should say blob was not found; got: "+err.toString());
+	}
+	
+	static String hex(byte[] data) {
+		StringBuilder sb = new StringBuilder();
+		for( byte b : data ) sb.append(String.format("%02X", b & 0xFF));
+		return sb.toString();
+	}
+	
+	public void testHash() {
+		SimplerCommandRunner.Tiger tiger = new SimplerCommandRunner.Tiger();
+		assertEquals("3293AC630C13F0245F92BBB1766E16167A4E58492DDE73F3", hex(tiger.digest()));
+		tiger.update("abc".getBytes(), 0, 3);
+		assertEquals("2AAB1484E8C158F2BFB8C5FF41B57A525129131C957B5F93", hex(tiger.digest()));
+		
+		// Several chunks' worth, so that subtrees get combined
+		byte[] data = new byte[3*1024*1024 + 12345];
+		new java.util.Random(42).nextBytes(data);
+		List<String> algorithms = Arrays.asList("bitprint", "tree:tiger", "sha1", "sha256");
+		List<String> expected = Arrays.asList(
+			"urn:bitprint:LRSLQFC5EZNRDHPDHVV7WSB2MMVUIURN.I7W75XCF2KMMIQSZMH4DDL5UEHRXE22LOI5GMCI",
+			"urn:tree:tiger:I7W75XCF2KMMIQSZMH4DDL5UEHRXE22LOI5GMCI",
+			"urn:sha1:LRSLQFC5EZNRDHPDHVV7WSB2MMVUIURN",
+			"urn:sha256:OF7VKIOGGM6VSZGXR2LC3YAPGYF2YI5TB44KG7EYMA3TRZZWVSAA");
+		File dir = makeTempDir("jcr36-test-hash");
+		File dataFile = new File(dir, "data.bin");
+		File listFile = new File(dir, "list.txt");
+		dataFile.deleteOnExit();
+		listFile.deleteOnExit();
+		try {
+			FileOutputStream fos = new FileOutputStream(dataFile);
+			fos.write(data);
+			fos.close();
+			// From a stream, and from a file, which gets memory-mapped
+			assertEquals(expected, SimplerCommandRunner.hashUrns(new ByteArrayInputStream(data), algorithms));
+			FileInputStream fis = new FileInputStream(dataFile);
+			try {
+				assertEquals(expected, SimplerCommandRunner.hashUrns(fis, algorithms));
+			} finally {
+				fis.close();
+			}
+			assertEquals(
+				Arrays.asList("urn:bitprint:3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ.LWPNACQDBZRYXW3VHJVCJ64QBZNGHOHHHZWCLNQ"),
+				SimplerCommandRunner.hashUrns(new ByteArrayInputStream(new byte[0]), Arrays.asList("bitprint")));
+			
+			// Incrementally, as done while verifying blobs, in awkwardly-sized pieces
+			SimplerCommandRunner.TigerTreeDigest tthDigest = new SimplerCommandRunner.TigerTreeDigest();
+			for( int off = 0; off < data.length; off += 1000 ) tthDigest.update(data, off, Math.min(1000, data.length - off));
+			assertEquals("urn:tree:tiger:I7W75XCF2KMMIQSZMH4DDL5UEHRXE22LOI5GMCI", "urn:tree:tiger:"+SimplerCommandRunner.base32Encode(tthDigest.digest()));
+			assertEquals("LWPNACQDBZRYXW3VHJVCJ64QBZNGHOHHHZWCLNQ", SimplerCommandRunner.base32Encode(tthDigest.digest()));
+			for( int i = 0; i < 3*1024; ++i ) tthDigest.update(data[i]);
+			assertEquals(
+				SimplerCommandRunner.hashUrns(new ByteArrayInputStream(data, 0, 3*1024), Arrays.asList("tree:tiger")).get(0),
+				"urn:tree:tiger:"+SimplerCommandRunner.base32Encode(tthDigest.digest()));
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+		
+		OutputCollector out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:hash", "--algorithm=sha1", dataFile.getPath(), "data:," }, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err }));
+		assertEquals(expected.get(2)+"\t"+dataFile.getPath()+"\nurn:sha1:3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ\tdata:,\n", out.toString());
+		
+		writeFile(listFile, "# A comment\n"+expected.get(0)+"\tdata.bin\n"+expected.get(3)+"\tdata.bin\n");
+		out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] { "--cd="+dir.getPath(), "jcr:hash", "--check", "--jobs=2", "list.txt" }, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, System.err }));
+		assertEquals("data.bin: OK\ndata.bin: OK\n", out.toString());
+		
+		out = OutputCollector.create();
+		OutputCollector err = OutputCollector.create();
+		assertEquals(1, SimplerCommandRunner.doJcrDoCmd(new String[] { "--cd="+dir.getPath(), "jcr:hash", "--check" }, 0, pwd, ENV_W_ALIASES, new Object[] {
+			new ByteArrayInputStream("urn:sha1:3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ\tdata.bin\n".getBytes()), out, err }));
+		assertEquals("data.bin: FAILED (content hashes to "+expected.get(2)+")\n", out.toString());
+		
+		// Results come out, in order, while the list is still being read
+		final java.io.PipedOutputStream listOut = new java.io.PipedOutputStream();
+		final java.io.PipedInputStream listIn;
+		try {
+			listIn = new java.io.PipedInputStream(listOut);
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+		final OutputCollector streamedOut = OutputCollector.create();
+		final int[] checkResult = new int[] { -1 };
+		Thread checker = new Thread() {
+			@Override public void run() {
+				checkResult[0] = SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:hash", "--check", "--jobs=1" }, 0, pwd, ENV_W_ALIASES, new Object[] { listIn, streamedOut, null });
+			}
+		};
+		checker.setDaemon(true);
+		checker.start();
+		StringBuilder expectedOut = new StringBuilder();
+		try {
+			for( int k = 0; k < 20; ++k ) {
+				String urn = k % 3 == 0 ? "urn:sha1:3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ" : "urn:sha1:LRSLQFC5EZNRDHPDHVV7WSB2MMVUIURN";
+				listOut.write((urn+"\tdata:,\n").getBytes(Charset.forName("UTF-8")));
+				expectedOut.append(k % 3 == 0 ? "data:,: OK\n" : "data:,: FAILED (content hashes to urn:sha1:3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ)\n");
+			}
+			listOut.flush();
+			for( long deadline = System.currentTimeMillis() + 10000; streamedOut.toString().isEmpty() && System.currentTimeMillis() < deadline; ) Thread.sleep(10);
+			assertTrue(!streamedOut.toString().isEmpty(), "Expected some results before the end of the list");
+			listOut.close();
+			checker.join(10000);
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		} catch( InterruptedException e ) {
+			throw new RuntimeException(e);
+		}
+		assertEquals(1, checkResult[0]);
+		assertEquals(expectedOut.toString(), streamedOut.toString());
+	}
+	
+	public void testHttpCache() {
+		final java.util.concurrent.atomic.AtomicInteger requests = new java.util.concurrent.atomic.AtomicInteger();
+		final java.util.concurrent.atomic.AtomicInteger notModified = new java.util.concurrent.atomic.AtomicInteger();
+		com.sun.net.httpserver.HttpServer server;
+		try {
+			server = com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+		server.createContext("/", new com.sun.net.httpserver.HttpHandler() {
+			@Override public void handle(com.sun.net.httpserver.HttpExchange ex) throws IOException {
+				requests.incrementAndGet();
+				String path = ex.getRequestURI().getPath();
+				if( path.startsWith("/slow") ) {
+					try {
+						Thread.sleep(300);
+					} catch( InterruptedException e ) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				if( path.startsWith("/fresh") ) ex.getResponseHeaders().set("Cache-Control", "max-age=60");
+				if( path.startsWith("/private") ) ex.getResponseHeaders().set("Cache-Control", "max-age=60, no-store");
+				ex.getResponseHeaders().set("ETag", "\"v1\"");
+				if( "\"v1\"".equals(ex.getRequestHeaders().getFirst("If-None-Match")) ) {
+					notModified.incrementAndGet();
+					ex.sendResponseHeaders(304, -1);
+				} else {
+					byte[] body = ("Body of "+path+"\n").getBytes("UTF-8");
+					ex.sendResponseHeaders(200, body.length);
+					ex.getResponseBody().write(body);
+				}
+				ex.close();
+			}
+		});
+		server.start();
+		File cacheDir = makeTempDir("jcr36-test-http-cache");
+		try {
+			final String base = "http://127.0.0.1:"+server.getAddress().getPort();
+			final Map<String,String> env = new HashMap<String,String>(ENV_W_ALIASES);
+			env.put(SimplerCommandRunner.HTTP_CACHE_DIR_VAR, cacheDir.getPath());
+			
+			// Fresh for 60 seconds, so fetched only once
+			assertEquals("Body of /fresh\n", readAll(SimplerCommandRunner.getInputStream(base+"/fresh", pwd, env)));
+			assertEquals("Body of /fresh\n", readAll(SimplerCommandRunner.getInputStream(base+"/fresh", pwd, env)));
+			assertEquals(1, requests.get());
+			
+			// No max-age, so revalidated each time, but the body isn't re-sent
+			assertEquals("Body of /stale\n", readAll(SimplerCommandRunner.getInputStream(base+"/stale", pwd, env)));
+			assertEquals("Body of /stale\n", readAll(SimplerCommandRunner.getInputStream(base+"/stale", pwd, env)));
+			assertEquals(3, requests.get());
+			assertEquals(1, notModified.get());
+			
+			// Concurrent requests for the same URL are coalesced
+			Thread[] threads = new Thread[4];
+			final String[] results = new String[threads.length];
+			for( int t=0; t<threads.length; ++t ) {
+				final int index = t;
+				threads[t] = new Thread() {
+					@Override public void run() {
+						try {
+							results[index] = readAll(SimplerCommandRunner.getInputStream(base+"/slow", pwd, env));
+						} catch( IOException e ) {
+							results[index] = e.toString();
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for( Thread t : threads ) t.join();
+			for( String result : results ) assertEquals("Body of /slow\n", result);
+			assertEquals(4, requests.get());
+			
+			// With room for only one body, the least recently used gets evicted
+			env.put(SimplerCommandRunner.HTTP_CACHE_MAX_SIZE_VAR, "20");
+			readAll(SimplerCommandRunner.getInputStream(base+"/fresh/a", pwd, env));
+			readAll(SimplerCommandRunner.getInputStream(base+"/fresh/b", pwd, env));
+			assertEquals(6, requests.get());
+			readAll(SimplerCommandRunner.getInputStream(base+"/fresh/b", pwd, env));
+			assertEquals(6, requests.get());
+			readAll(SimplerCommandRunner.getInputStream(base+"/fresh/a", pwd, env));
+			assertEquals(7, requests.get());
+			
+			// Without JCR36_HTTP_CACHE_DIR, every read goes to the server
+			readAll(SimplerCommandRunner.getInputStream(base+"/fresh", pwd, ENV_W_ALIASES));
+			assertEquals(8, requests.get());
+			
+			// no-store responses are passed through, but not written to the cache
+			int cachedFileCount = cacheDir.listFiles().length;
+			assertEquals("Body of /private\n", readAll(SimplerCommandRunner.getInputStream(base+"/private", pwd, env)));
+			assertEquals("Body of /private\n", readAll(SimplerCommandRunner.getInputStream(base+"/private", pwd, env)));
+			assertEquals(10, requests.get());
+			assertEquals(cachedFileCount, cacheDir.listFiles().length);
+			// Temporary files have all been renamed into place
+			for( File f : cacheDir.listFiles() ) assertTrue(!f.getName().endsWith(".tmp"), "Leftover temporary file in cache: "+f);
+			
+			assertEquals(20L, SimplerCommandRunner.parseSize("20"));
+			assertEquals(3L << 20, SimplerCommandRunner.parseSize("3m"));
+			assertEquals(2L << 30, SimplerCommandRunner.parseSize("2G"));
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		} catch( InterruptedException e ) {
+			throw new RuntimeException(e);
+		} finally {
+			server.stop(0);
+			File[] files = cacheDir.listFiles();
+			if( files != null ) for( File f : files ) f.delete();
+		}
+	}
+	
+	public void testLayeredEnv() {
+		Map<String,String> base = new HashMap<String,String>();
+		base.put("A", "1");
+		base.put("B", "2");
+		SimplerCommandRunner.LayeredEnv env = new SimplerCommandRunner.LayeredEnv(base);
+		env.put("C", "3");
+		env.remove("A");
+		assertEquals(null, env.get("A"));
+		assertEquals(false, env.containsKey("A"));
+		assertEquals("3", env.get("C"));
+		assertEquals(2, env.size());
+		Map<String,String> expected = new HashMap<String,String>();
+		expected.put("B", "2");
+		expected.put("C", "3");
+		assertEquals(expected, env);
+		// Base is untouched
+		assertEquals(2, base.size());
+		assertEquals("1", base.get("A"));
+		
+		// Small deltas are copied into children, rather than chained
+		SimplerCommandRunner.LayeredEnv child = new SimplerCommandRunner.LayeredEnv(env);
+		child.put("A", "one");
+		assertTrue(child.parent == base, "Child should share its parent's base map");
+		assertEquals("one", child.get("A"));
+		assertEquals(null, env.get("A"));
+		
+		// Variables set at different docmd levels, with --clear-env in between
+		OutputCollector out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"X=1", "jcr:docmd", "Y=2", "jcr:docmd", "--clear-env", "Z=3", SimplerCommandRunner.CMD_PRINTENV
+		}, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, null }));
+		assertEquals("Z=3\n", out.toString());
+	}
+	
+	/** Loaded via ServiceLoader by testProcedureRegistry */
+	public static class ShoutProcedure implements SimplerCommandRunner.Procedure {
+		public static final String URI = "http://ns.nuke24.net/JavaCommandRunner36/Test/Shout";
+		@Override public String getUri() { return URI; }
+		@Override public int run(String[] args, int i, File pwd, Map<String,String> env, Object[] io) {
+			PrintStream out = (PrintStream)io[1];
+			for( ; i<args.length; ++i ) out.print(args[i].toUpperCase()+"!\n");
+			return 0;
+		}
+	}
+	
+	public void testProcedureRegistry() {
+		assertTrue(SimplerCommandRunner.getProcedure(SimplerCommandRunner.CMD_CAT) != null, "jcr:cat should be registered");
+		assertEquals(SimplerCommandRunner.envMangleAlias("jcr:cat"), SimplerCommandRunner.envMangleAlias("jcr:cat"));
+		assertEquals("JCR_ALIAS_JCR_CAT", SimplerCommandRunner.envMangleAlias("jcr:cat"));
+		
+		File dir = makeTempDir("jcr36-test-services");
+		File servicesDir = new File(dir, "META-INF/services");
+		servicesDir.mkdirs();
+		File servicesFile = new File(servicesDir, SimplerCommandRunner.Procedure.class.getName());
+		writeFile(servicesFile, "# Test procedures\n"+ShoutProcedure.class.getName()+"\n");
+		try {
+			java.net.URLClassLoader loader = new java.net.URLClassLoader(new java.net.URL[] { dir.toURI().toURL() }, getClass().getClassLoader());
+			SimplerCommandRunner.loadServiceProcedures(loader);
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		} finally {
+			servicesFile.delete();
+			servicesDir.delete();
+			servicesDir.getParentFile().delete();
+		}
+		
+		Map<String,String> env = new HashMap<String,String>(ENV_W_ALIASES);
+		env.put(SimplerCommandRunner.envMangleAlias("test:shout"), ShoutProcedure.URI);
+		OutputCollector out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] { "test:shout", "hi", "there" }, 0, pwd, env, new Object[] { null, out, null }));
+		assertEquals("HI!\nTHERE!\n", out.toString());
+		assertEquals(false, SimplerCommandRunner.JCRCommand.parse(new String[] { "test:shout" }, 0).bind(pwd, env, IO_NULL).isSysProc());
+	}
+	
+	/** Run by testJavaMain */
+	public static class ExitingMain {
+		static int runCount = 0;
+		public static void main(String[] args) {
+			++runCount;
+			System.out.println(runCount+" "+Arrays.asList(args));
+			System.exit(Integer.parseInt(args[0]));
+		}
+	}
+	
+	/** Run by testJavaMain; 'generate <n>' writes n bytes, and 'count' prints how many bytes it reads */
+	public static class StreamingMain {
+		public static void main(String[] args) throws IOException {
+			byte[] buf = new byte[8192];
+			if( "generate".equals(args[0]) ) {
+				for( long n = Long.parseLong(args[1]); n > 0; n -= buf.length ) {
+					System.out.write(buf, 0, (int)Math.min(n, buf.length));
+				}
+				System.out.flush();
+			} else {
+				long total = 0;
+				int z;
+				while( (z = System.in.read(buf)) > 0 ) total += z;
+				System.out.println(total);
+			}
+		}
+	}
+	
+	public void testJavaMain() {
+		String classpath;
+		try {
+			classpath = new File(ExitingMain.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		} catch( java.net.URISyntaxException e ) {
+			throw new RuntimeException(e);
+		}
+		String className = ExitingMain.class.getName();
+		PrintStream oldOut = System.out;
+		
+		OutputCollector out = OutputCollector.create();
+		assertEquals(3, SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:java-main", "-cp", classpath, className, "3", "x" }, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, null }));
+		assertEquals("1 [3, x]\n", out.toString());
+		assertTrue(SimplerCommandRunner.isSystemStream(oldOut, System.out), "System.out should go to the original outside of mains");
+		// Loaded separately from the test's own copy
+		assertEquals(0, ExitingMain.runCount);
+		
+		out = OutputCollector.create();
+		OutputCollector err = OutputCollector.create();
+		assertEquals(1, SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:java-main", "-cp", classpath, "no.such.Main" }, 0, pwd, ENV_W_ALIASES, new Object[] { null, out, err }));
+		assertTrue(err.toString().contains("Could not find or load main class no.such.Main"), "Expected error about missing class; got "+err);
+		
+		// Several mains can run at once, each with its own stdio,
+		// even when one is waiting on another
+		final String[] pipeArgs = new String[] {
+			"jcr:pipe", "jcr:java-main", "-cp", classpath, StreamingMain.class.getName(), "generate", "4000000",
+			"|", "jcr:java-main", "-cp", classpath, StreamingMain.class.getName(), "count"
+		};
+		final OutputCollector pipeOut = OutputCollector.create();
+		final int[] pipeResult = new int[] { -1 };
+		Thread pipeThread = new Thread() {
+			@Override public void run() {
+				pipeResult[0] = SimplerCommandRunner.doJcrDoCmd(pipeArgs, 0, pwd, ENV_W_ALIASES, new Object[] { null, pipeOut, System.err });
+			}
+		};
+		pipeThread.setDaemon(true);
+		pipeThread.start();
+		try {
+			pipeThread.join(30000);
+		} catch( InterruptedException e ) {
+			throw new RuntimeException(e);
+		}
+		assertTrue(!pipeThread.isAlive(), "Pipeline of in-process mains should have finished");
+		assertEquals(0, pipeResult[0]);
+		assertEquals("4000000\n", pipeOut.toString());
+		
+		// 'java' commands run in-process when enabled, re-using the classes loaded last time
+		Map<String,String> env = new HashMap<String,String>(System.getenv());
+		env.putAll(ENV_W_ALIASES);
+		env.put(SimplerCommandRunner.IN_PROCESS_JAVA_VAR, "true");
+		out = OutputCollector.create();
+		assertEquals(4, SimplerCommandRunner.doJcrDoCmd(new String[] { "java", "-cp", classpath, className, "4" }, 0, pwd, env, new Object[] { null, out, null }));
+		assertEquals("2 [4]\n", out.toString());
+		
+		// ...but not when that would change the environment
+		if( SimplerCommandRunner.resolvePrograms("java", env, null).isEmpty() ) {
+			System.err.println("testJavaMain: Skipping subprocess check because java isn't on the PATH");
+			return;
+		}
+		env.put("JCR36_TEST_VAR", "1");
+		out = OutputCollector.create();
+		assertEquals(5, SimplerCommandRunner.doJcrDoCmd(new String[] { "java", "-cp", classpath, className, "5" }, 0, pwd, env, new Object[] { null, out, null }));
+		assertEquals("1 [5]\n", out.toString());
+	}
+	
+	public void testSelfInvocation() {
+		// Only registered in this JVM, so a new process wouldn't know about it
+		SimplerCommandRunner.registerProcedure(new ShoutProcedure());
+		Map<String,String> env = new HashMap<String,String>(System.getenv());
+		env.putAll(ENV_W_ALIASES);
+		env.put(SimplerCommandRunner.envMangleAlias("test:shout"), ShoutProcedure.URI);
+		
+		OutputCollector out;
+		File self = SimplerCommandRunner.getSelfLocation();
+		if( self != null ) {
+			// A 'jcr36' on the PATH that launches this same jar
+			File binDir = makeTempDir("jcr36-test-self-bin");
+			File launcher = new File(binDir, "jcr36");
+			launcher.deleteOnExit();
+			writeFile(launcher, "#!/bin/sh\nexec java -cp '"+self.getPath()+"' "+SimplerCommandRunner.class.getName()+" \"$@\"\n");
+			Map<String,String> launcherEnv = new HashMap<String,String>(env);
+			launcherEnv.put("PATH", binDir.getPath());
+			out = OutputCollector.create();
+			assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] { "jcr:runsys", "jcr36", "test:shout", "hi" }, 0, pwd, launcherEnv, new Object[] { null, out, null }));
+			assertEquals("HI!\n", out.toString());
+			assertEquals(1, SimplerCommandRunner.getSelfInvocationArgsIndex(new String[] { launcher.getPath(), "jcr:print" }, 0, pwd, env));
+			
+			// Some other program that happens to be called jcr36 doesn't count
+			writeFile(launcher, "#!/bin/sh\necho 'Something else'\n");
+			assertEquals(-1, SimplerCommandRunner.getSelfInvocationArgsIndex(new String[] { "jcr36", "jcr:print" }, 0, pwd, launcherEnv));
+			assertEquals(-1, SimplerCommandRunner.getSelfInvocationArgsIndex(new String[] { launcher.getPath(), "jcr:print" }, 0, pwd, env));
+			
+			out = OutputCollector.create();
+			assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] {
+				"java", "-cp", self.getPath(), SimplerCommandRunner.class.getName(), "--no-std-aliases", "test:shout", "there"
+			}, 0, pwd, env, new Object[] { null, out, null }));
+			assertEquals("THERE!\n", out.toString());
+		}
+		// Nor does a jcr36 that doesn't exist
+		assertEquals(-1, SimplerCommandRunner.getSelfInvocationArgsIndex(new String[] { "/nonexistent/dir/jcr36", "jcr:print" }, 0, pwd, env));
+		// Some other main class doesn't count
+		assertEquals(-1, SimplerCommandRunner.getSelfInvocationArgsIndex(new String[] { "java", "-cp", ".", "Foo", "jcr:print" }, 0, pwd, env));
+		
+		env.put(SimplerCommandRunner.IN_PROCESS_SELF_VAR, "false");
+		assertEquals(-1, SimplerCommandRunner.getSelfInvocationArgsIndex(new String[] { "jcr36", "jcr:print" }, 0, pwd, env));
+	}
+	
+	public void testMetrics() {
+		File metricsFile = new File(makeTempDir("jcr36-test-metrics"), "metrics.jsonl");
+		metricsFile.deleteOnExit();
+		assertEquals(1, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"--metrics-out="+metricsFile.getPath(), "jcr:until", "--max-attempts=2", "jcr:exit", "1"
+		}, 0, pwd, ENV_W_ALIASES, IO_NULL));
+		String[] records = readFile(metricsFile).split("\n");
+		assertEquals(3, records.length);
+		assertTrue(records[0].startsWith("{\"start\":"), "Expected a JSON object; got "+records[0]);
+		assertTrue(records[0].contains("\"depth\":1,\"command\":\""+SimplerCommandRunner.CMD_EXIT+"\",\"exitCode\":1,"), "Unexpected first record: "+records[0]);
+		assertTrue(records[2].contains("\"depth\":0,\"command\":\""+SimplerCommandRunner.CMD_UNTIL+"\",\"exitCode\":1,"), "Unexpected last record: "+records[2]);
+		assertTrue(records[2].endsWith(",\"retries\":1}"), "Expected 1 retry; got "+records[2]);
+		
+		Map<String,String> env = new HashMap<String,String>(System.getenv());
+		env.putAll(ENV_W_ALIASES);
+		if( SimplerCommandRunner.resolvePrograms("java", env, null).isEmpty() ) {
+			System.err.println("testMetrics: Skipping system process check because java isn't on the PATH");
+			return;
+		}
+		metricsFile = new File(metricsFile.getParentFile(), "sysproc-metrics.jsonl");
+		metricsFile.deleteOnExit();
+		env.put(SimplerCommandRunner.METRICS_OUT_VAR, metricsFile.getPath());
+		OutputCollector err = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] { "java", "-version" }, 0, pwd, env, new Object[] { null, null, err }));
+		String record = readFile(metricsFile);
+		for( String field : new String[] { "\"program\":", "\"pathSearchNs\":", "\"spawnNs\":", "\"runNs\":", "\"drainNs\":" } ) {
+			assertTrue(record.contains(field), "Expected "+field+" in "+record);
+		}
+		assertTrue(record.contains("\"stderrBytes\":"+err.toString().getBytes(Charset.forName("UTF-8")).length+"}"), "Expected stderrBytes to match output; got "+record);
+	}
+	
+	static int countOccurrences(String haystack, String needle) {
+		int count = 0;
+		for( int k = haystack.indexOf(needle); k >= 0; k = haystack.indexOf(needle, k+1) ) ++count;
+		return count;
+	}
+	
+	public void testTrace() {
+		File traceFile = new File(makeTempDir("jcr36-test-trace"), "trace.json");
+		traceFile.deleteOnExit();
+		assertEquals(1, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"--trace-out="+traceFile.getPath(), "jcr:until", "--max-attempts=2", "jcr:exit", "1"
+		}, 0, pwd, ENV_W_ALIASES, IO_NULL));
+		String trace = readFile(traceFile);
+		assertTrue(trace.startsWith("[\n{\"name\":\"process_name\""), "Expected trace to start with process metadata; got "+trace);
+		assertEquals(1, countOccurrences(trace, "\"process_name\""));
+		assertEquals(2, countOccurrences(trace, "\"name\":\"jcr:exit\",\"cat\":\"command\",\"ph\":\"X\""));
+		assertTrue(trace.contains("{\"name\":\"attempt 2\",\"cat\":\"until\",\"ph\":\"X\""), "Expected span for second attempt in "+trace);
+		assertTrue(trace.endsWith("\"exitCode\":1}},\n"), "Expected jcr:until's span last; got "+trace);
+		SimplerCommandRunner.Trace firstTrace = SimplerCommandRunner.TRACES.get(traceFile.getPath());
+		
+		// A command with its own --trace-out that's run several times adds to one trace
+		assertEquals(1, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"jcr:until", "--max-attempts=3", "--trace-out="+traceFile.getPath(), "jcr:exit", "1"
+		}, 0, pwd, ENV_W_ALIASES, IO_NULL));
+		trace = readFile(traceFile);
+		assertEquals(1, countOccurrences(trace, "\"process_name\""));
+		assertEquals(3, countOccurrences(trace, "\"name\":\"jcr:exit\",\"cat\":\"command\",\"ph\":\"X\""));
+		// ...and the one it replaced is closed
+		assertTrue(!firstTrace.out.getChannel().isOpen(), "Replaced trace's file should have been closed");
+		
+		// Child jcr36 processes add to the same trace
+		Map<String,String> env = new HashMap<String,String>(System.getenv());
+		env.putAll(ENV_W_ALIASES);
+		File self = SimplerCommandRunner.getSelfLocation();
+		if( self == null || SimplerCommandRunner.resolvePrograms("java", env, null).isEmpty() ) {
+			System.err.println("testTrace: Skipping child process check because java isn't on the PATH");
+			return;
+		}
+		env.put(SimplerCommandRunner.IN_PROCESS_SELF_VAR, "false");
+		OutputCollector out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[] {
+			"--trace-out="+traceFile.getPath(),
+			"java", "-cp", self.getPath(), SimplerCommandRunner.class.getName(), "jcr:print", "-n", "hi"
+		}, 0, pwd, env, new Object[] { null, out, null }));
+		assertEquals("hi", out.toString());
+		trace = readFile(traceFile);
+		assertEquals(2, countOccurrences(trace, "\"process_name\""));
+		String traceId = trace.substring(trace.indexOf("\"traceId\":"), trace.indexOf("}}"));
+		assertEquals(2, countOccurrences(trace, traceId));
+		assertTrue(trace.contains("{\"name\":\"jcr:print\",\"cat\":\"command\""), "Expected child's span in "+trace);
+		assertTrue(trace.contains("{\"name\":\"stdout\",\"cat\":\"pipe\""), "Expected span for copying child's stdout in "+trace);
+	}
+	
+	public void testFindExeUsesPathIndex() {
+		File binDir = makeTempDir("jcr36-test-bin");
+		// Not in binDir, since writing it would change binDir's mtime!
+		File indexFile = new File(makeTempDir("jcr36-test-index"), "path-index.txt");
+		indexFile.deleteOnExit();
+		touch(new File(binDir, "some-program"));
+		// Pretend it was last modified a while ago so that the listing can be trusted
+		binDir.setLastModified(System.currentTimeMillis() - 60000);
+		
+		Map<String,String> env = new HashMap<String,String>(ENV_W_ALIASES);
+		env.put("PATH", binDir.getPath());
+		env.put(SimplerCommandRunner.PATH_INDEX_FILE_VAR, indexFile.getPath());
+		
+		OutputCollector out = OutputCollector.create();
+		OutputCollector err = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[]{ "jcr:findexe", "-v", "some-program", "some-other-program" }, 0, pwd, env, new Object[] { null, out, err }));
+		assertEquals(new File(binDir, "some-program").getPath()+"\n", out.toString());
+		assertTrue(err.toString().contains("PATH index: 0 cache hits, 1 misses"), "Expected first lookup to miss; got "+err.toString());
+		assertTrue(err.toString().contains("PATH index: 1 cache hits, 0 misses"), "Expected second lookup to hit; got "+err.toString());
+		assertTrue(indexFile.exists(), "Expected "+indexFile+" to have been written");
+		
+		// Adding a file changes the directory's mtime, invalidating the cached listing
+		touch(new File(binDir, "some-other-program"));
+		binDir.setLastModified(System.currentTimeMillis() - 30000);
+		out = OutputCollector.create();
+		assertEquals(0, SimplerCommandRunner.doJcrDoCmd(new String[]{ "jcr:findexe", "some-other-program" }, 0, pwd, env, new Object[] { null, out, null }));
+		assertEquals(new File(binDir, "some-other-program").getPath()+"\n", out.toString());
+		
+		// A fresh index should be able to pick up where that one left off
+		SimplerCommandRunner.PathIndex index = new SimplerCommandRunner.PathIndex();
+		index.load(indexFile);
+		int[] stats = new int[2];
+		assertTrue(index.exists(binDir.getPath(), "some-other-program", stats), "Expected loaded index to know about some-other-program");
+		assertEquals(1, stats[0]);
+		
+		// Concurrent saves (as by separate processes) each use their own temporary file
+		final File binDirF = binDir, indexFileF = indexFile;
+		Thread[] savers = new Thread[8];
+		final IOException[] errors = new IOException[savers.length];
+		for( int t=0; t<savers.length; ++t ) {
+			final int saverIndex = t;
+			savers[t] = new Thread() {
+				@Override public void run() {
+					SimplerCommandRunner.PathIndex idx = new SimplerCommandRunner.PathIndex();
+					idx.getNames(binDirF.getPath(), new int[2]);
+					try {
+						idx.save(indexFileF);
+					} catch( IOException e ) {
+						errors[saverIndex] = e;
+					}
+				}
+			};
+			savers[t].start();
+		}
+		for( Thread t : savers ) {
+			try {
+				t.join();
+			} catch( InterruptedException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+		for( IOException e : errors ) if( e != null ) throw new RuntimeException(e);
+		assertEquals(Arrays.asList(indexFile.getName()), Arrays.asList(indexFile.getParentFile().list()));
+		index = new SimplerCommandRunner.PathIndex();
+		index.load(indexFile);
+		stats = new int[2];
+		assertTrue(index.exists(binDir.getPath(), "some-other-program", stats), "Expected index saved concurrently to know about some-other-program");
+		assertEquals(1, stats[0]);
+	}
+	
+	public void testServerAndClient() {
+		final ServerSocket serverSocket;
+		try {
+			serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+		Thread serverThread = new Thread() {
+			@Override public void run() {
+				try {
+					SimplerCommandRunner.serve(serverSocket, "test-secret", 16, null);
+				} catch( IOException e ) {
+					// Presumably closed by the test
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+		try {
+			final String portOpt = "--port="+serverSocket.getLocalPort();
+			final Map<String,String> env = new HashMap<String,String>(ENV_W_ALIASES);
+			env.put(SimplerCommandRunner.SERVER_SECRET_VAR, "test-secret");
+			assertEquals(7, SimplerCommandRunner.doJcrDoCmd(
+				new String[]{ "jcr:client", portOpt, "jcr:exit", "7" },
+				0, pwd, env, new Object[] { null, null, System.err }));
+			
+			// Without the secret (here, from a file that doesn't have it), the command isn't run
+			File secretDir = makeTempDir("jcr36-test-secret");
+			File secretFile = new File(secretDir, "server.secret");
+			Map<String,String> wrongSecretEnv = new HashMap<String,String>(ENV_W_ALIASES);
+			wrongSecretEnv.put(SimplerCommandRunner.SERVER_SECRET_FILE_VAR, secretFile.getPath());
+			String generatedSecret = SimplerCommandRunner.generateServerSecret(secretFile);
+			assertTrue(generatedSecret.length() >= 32, "Expected a long generated secret, got "+generatedSecret);
+			assertEquals(generatedSecret, readFile(secretFile));
+			if( File.separatorChar == '/' ) {
+				Set<java.nio.file.attribute.PosixFilePermission> perms = java.nio.file.Files.getPosixFilePermissions(secretFile.toPath());
+				assertEquals(EnumSet.of(java.nio.file.attribute.PosixFilePermission.OWNER_READ, java.nio.file.attribute.PosixFilePermission.OWNER_WRITE), perms);
+			}
+			OutputCollector rejectedErr = OutputCollector.create();
+			assertEquals(SimplerCommandRunner.EXIT_CODE_USAGE_ERROR, SimplerCommandRunner.doJcrDoCmd(
+				new String[]{ "jcr:client", portOpt, "jcr:print", "should not run" },
+				0, pwd, wrongSecretEnv, new Object[] { null, null, rejectedErr }));
+			assertEquals("Bad "+SimplerCommandRunner.SERVER_SECRET_VAR+"\n", rejectedErr.toString());
+			secretFile.delete();
+			secretDir.delete();
+			
+			// The secret is checked before the rest of the request is read
+			java.net.Socket raw = new java.net.Socket(InetAddress.getByName("127.0.0.1"), serverSocket.getLocalPort());
+			try {
+				java.io.DataOutputStream rawOut = new java.io.DataOutputStream(raw.getOutputStream());
+				rawOut.writeInt(SimplerCommandRunner.SERVER_PROTOCOL_VERSION);
+				SimplerCommandRunner.writeString(rawOut, "wrong-secret");
+				rawOut.flush();
+				java.io.DataInputStream rawIn = new java.io.DataInputStream(raw.getInputStream());
+				assertEquals(SimplerCommandRunner.FRAME_STDERR, rawIn.read());
+				rawIn.readFully(new byte[rawIn.readInt()]);
+				assertEquals(SimplerCommandRunner.FRAME_EXIT, rawIn.read());
+				assertEquals(4, rawIn.readInt());
+				assertEquals(SimplerCommandRunner.EXIT_CODE_USAGE_ERROR, rawIn.readInt());
+			} finally {
+				raw.close();
+			}
+			// Nonsensical counts are rejected rather than allocated
+			raw = new java.net.Socket(InetAddress.getByName("127.0.0.1"), serverSocket.getLocalPort());
+			try {
+				java.io.DataOutputStream rawOut = new java.io.DataOutputStream(raw.getOutputStream());
+				rawOut.writeInt(SimplerCommandRunner.SERVER_PROTOCOL_VERSION);
+				SimplerCommandRunner.writeString(rawOut, "test-secret");
+				SimplerCommandRunner.writeString(rawOut, pwd.getPath());
+				rawOut.writeInt(-1);
+				rawOut.flush();
+				assertEquals(-1, raw.getInputStream().read());
+			} finally {
+				raw.close();
+			}
+			
+			assertEquals(SimplerCommandRunner.EXIT_CODE_USAGE_ERROR, SimplerCommandRunner.doJcrDoCmd(
+				new String[]{ "jcr:client", "--port=99999", "jcr:exit", "0" },
+				0, pwd, env, IO_NULL));
+			
+			// Each client's env should be isolated from the others'
+			final String[] outputs = new String[8];
+			Thread[] clients = new Thread[outputs.length];
+			for( int t=0; t<clients.length; ++t ) {
+				final int index = t;
+				clients[t] = new Thread() {
+					@Override public void run() {
+						OutputCollector out = OutputCollector.create();
+						SimplerCommandRunner.doJcrDoCmd(
+							new String[]{ "jcr:docmd", "foo=client"+index, "--cd=src/test", "jcr:client", portOpt, "jcr:cat", "x-jcr36-env:foo", "data:,%20", "resources/hello-world.txt" },
+							0, pwd, env, new Object[] { null, out, System.err });
+						outputs[index] = out.toString();
+					}
+				};
+				clients[t].start();
+			}
+			for( int t=0; t<clients.length; ++t ) {
+				clients[t].join();
+				assertEquals("client"+t+" Hello, world!\n", outputs[t]);
+			}
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		} catch( InterruptedException e ) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				serverSocket.close();
+			} catch( IOException e ) { }
+		}
+	}
+	
 	@Override public void run() {
 		testMainNothing();
 		testPrint();
@@ -283,6 +1662,35 @@ public class SimplerCommandRunnerTest implements Runnable
 		testOptionNotParsedAsCommand();
 		testPostDashDashOptionesqueCommand();
 		testJcrDoCmdResetsOptionParsing();
+		testServerAndClient();
+		testFindExeUsesPathIndex();
+		testCatFileToFile();
+		testPipersAreReusedAndCount();
+		testRedirectOutputToFiles();
+		testPipe();
+		testPipeFail();
+		testParallel();
+		testSpillBuffer();
+		testForeach();
+		testForeachJournal();
+		testBatchArgs();
+		testUntil();
+		testTimeout();
+		testStdinNotConsumedAfterExit();
+		testScriptTokenizer();
+		testScript();
+		testCommandModel();
+		testBase64();
+		testDataUri();
+		testBlobRepository();
+		testHash();
+		testHttpCache();
+		testLayeredEnv();
+		testProcedureRegistry();
+		testJavaMain();
+		testSelfInvocation();
+		testMetrics();
+		testTrace();
 	}
 	
 	public static void main(String[] args) {